@@ -0,0 +1,139 @@
+package com.blankj.utilcode.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ *     author: Blankj
+ *     blog  : http://blankj.com
+ *     time  : 2026/10/17
+ *     desc  : test bitmaps of CacheUtils, which need the real Bitmap of a device
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class CacheUtilsBitmapTest {
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "CacheUtilsBitmapTest" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteDir(cacheDir);
+    }
+
+    @Test
+    public void putAndGetRawBitmap() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        for (Bitmap.Config config : new Bitmap.Config[]{
+                Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565, Bitmap.Config.ALPHA_8}) {
+            final Bitmap bitmap = newBitmap(13, 7, config);
+            cacheUtils.putRawBitmap("raw", bitmap);
+            // the pixels follow a header of 16 bytes
+            assertEquals(16 + bitmap.getByteCount(), cacheUtils.getBytes("raw").length);
+
+            final Bitmap raw = cacheUtils.getBitmap("raw", 1, 1);
+            assertNotNull(raw);
+            assertEquals(config, raw.getConfig());
+            // raw bitmaps aren't sampled
+            assertEquals(13, raw.getWidth());
+            assertEquals(7, raw.getHeight());
+            assertTrue(raw.sameAs(bitmap));
+        }
+    }
+
+    @Test
+    public void getBitmapDecodesSampled() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        cacheUtils.put("png", toPng(newBitmap(400, 300, Bitmap.Config.ARGB_8888)));
+
+        final Bitmap full = cacheUtils.getBitmap("png", 400, 300);
+        assertEquals(400, full.getWidth());
+        assertEquals(300, full.getHeight());
+        // the largest power of 2 which keeps both sides at least as required
+        final Bitmap half = cacheUtils.getBitmap("png", 100, 100);
+        assertEquals(200, half.getWidth());
+        assertEquals(150, half.getHeight());
+        final Bitmap quarter = cacheUtils.getBitmap("png", 100, 75);
+        assertEquals(100, quarter.getWidth());
+        assertEquals(75, quarter.getHeight());
+    }
+
+    @Test
+    public void getBitmapReusesPooledBitmap() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir).setBitmapPoolSize(1024 * 1024);
+        final Bitmap bitmap = newBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        cacheUtils.putRawBitmap("raw", bitmap);
+        cacheUtils.put("png", toPng(bitmap));
+
+        final Bitmap raw = cacheUtils.getBitmap("raw", 64, 64);
+        assertTrue(cacheUtils.recycleBitmap(raw));
+        final Bitmap reusedByRaw = cacheUtils.getBitmap("raw", 64, 64);
+        assertSame(raw, reusedByRaw);
+        assertTrue(reusedByRaw.sameAs(bitmap));
+
+        assertTrue(cacheUtils.recycleBitmap(reusedByRaw));
+        final Bitmap reusedByDecode = cacheUtils.getBitmap("png", 64, 64);
+        assertSame(raw, reusedByDecode);
+        assertTrue(reusedByDecode.sameAs(bitmap));
+
+        // nothing is pooled, a new bitmap is allocated
+        assertNotSame(raw, cacheUtils.getBitmap("raw", 64, 64));
+        // larger than the pool
+        assertFalse(cacheUtils.recycleBitmap(newBitmap(1024, 1024, Bitmap.Config.ARGB_8888)));
+        cacheUtils.setBitmapPoolSize(0);
+        assertFalse(cacheUtils.recycleBitmap(reusedByDecode));
+    }
+
+    private static Bitmap newBitmap(final int width, final int height, final Bitmap.Config config) {
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                bitmap.setPixel(x, y, Color.argb(255, x * 255 / width, y * 255 / height, 128));
+            }
+        }
+        return bitmap;
+    }
+
+    private static byte[] toPng(final Bitmap bitmap) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertTrue(bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos));
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,144 @@
+package com.blankj.utilcode.util;
+
+import android.graphics.Rect;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ *     author: Blankj
+ *     blog  : http://blankj.com
+ *     time  : 2026/10/17
+ *     desc  : test codecs of CacheUtils against the parcel and json of a device
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class CacheUtilsCodecTest {
+
+    private static final int CALLS = 2000;
+
+    /**
+     * The parcelable codec only adds the length to the marshalled parcel.
+     */
+    @Test
+    public void parcelableCodecComparedWithParcelable2Bytes() throws Exception {
+        final CacheUtils.Codec<Rect> codec = CacheUtils.Codecs.parcelable(Rect.CREATOR);
+        final Rect rect = new Rect(1, 2, 300, 400);
+        final RoundTrip byCodec = new RoundTrip(codec);
+        final RoundTrip byParcel = new RoundTrip("parcelable2Bytes", "bytes2Parcelable",
+                Rect.CREATOR);
+        assertEquals(rect, byCodec.run(rect));
+        assertEquals(rect, byParcel.run(rect));
+
+        final long[] nanos = best(byCodec, rect, byParcel, rect);
+        final String costs = nanos[0] + " ns by codec, " + nanos[1] + " ns by parcelable2Bytes";
+        System.out.println(costs);
+        assertTrue(costs, nanos[0] < 2 * nanos[1]);
+    }
+
+    /**
+     * A list of strings by codec is at least twice as fast as its json array.
+     */
+    @Test
+    public void listCodecComparedWithJsonArray2Bytes() throws Exception {
+        final CacheUtils.Codec<List<String>> codec =
+                CacheUtils.Codecs.listOf(CacheUtils.Codecs.STRING);
+        final List<String> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list.add("value" + i);
+        }
+        final RoundTrip byCodec = new RoundTrip(codec);
+        final RoundTrip byJson = new RoundTrip("jsonArray2Bytes", "bytes2JSONArray");
+        assertEquals(list, byCodec.run(list));
+        assertEquals(new JSONArray(list).toString(), byJson.run(new JSONArray(list)).toString());
+
+        final long[] nanos = best(byCodec, list, byJson, new JSONArray(list));
+        final String costs = nanos[0] + " ns by codec, " + nanos[1] + " ns by jsonArray2Bytes";
+        System.out.println(costs);
+        assertTrue(costs, nanos[0] * 2 < nanos[1]);
+    }
+
+    /**
+     * Return the best cost of both round trips, timed in alternate batches.
+     */
+    private static long[] best(final RoundTrip first, final Object firstValue,
+                               final RoundTrip second, final Object secondValue)
+            throws Exception {
+        final long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int round = 0; round < 10; round++) {
+            best[0] = Math.min(best[0], first.nanosPerCall(firstValue));
+            best[1] = Math.min(best[1], second.nanosPerCall(secondValue));
+        }
+        return best;
+    }
+
+    /**
+     * The encoding and decoding of a value by the private helpers of CacheUtils.
+     */
+    private static final class RoundTrip {
+        private final Method encode;
+        private final Method decode;
+        // the arguments which follow the value of encode and the bytes of decode
+        private final Object[] encodeArgs;
+        private final Object[] decodeArgs;
+
+        RoundTrip(final String encode, final String decode, final Object... decodeArgs)
+                throws Exception {
+            final Class<?> helper = Class.forName(CacheUtils.class.getName() + "$CacheHelper");
+            this.encode = findMethod(helper, encode);
+            this.decode = findMethod(helper, decode);
+            this.encodeArgs = new Object[0];
+            this.decodeArgs = decodeArgs;
+        }
+
+        RoundTrip(final CacheUtils.Codec<?> codec) throws Exception {
+            final Class<?> buffer = Class.forName(CacheUtils.class.getName() + "$CodecBuffer");
+            this.encode = buffer.getDeclaredMethod("encode", Object.class, CacheUtils.Codec.class);
+            this.decode = buffer.getDeclaredMethod("decode", byte[].class, CacheUtils.Codec.class);
+            this.encode.setAccessible(true);
+            this.decode.setAccessible(true);
+            this.encodeArgs = new Object[]{codec};
+            this.decodeArgs = encodeArgs;
+        }
+
+        Object run(final Object value) throws Exception {
+            final Object bytes = encode.invoke(null, prepend(value, encodeArgs));
+            return decode.invoke(null, prepend(bytes, decodeArgs));
+        }
+
+        long nanosPerCall(final Object value) throws Exception {
+            final long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                run(value);
+            }
+            return (System.nanoTime() - start) / CALLS;
+        }
+
+        private static Object[] prepend(final Object first, final Object[] rest) {
+            final Object[] args = new Object[rest.length + 1];
+            args[0] = first;
+            System.arraycopy(rest, 0, args, 1, rest.length);
+            return args;
+        }
+
+        private static Method findMethod(final Class<?> clazz, final String name) {
+            for (Method method : clazz.getDeclaredMethods()) {
+                if (method.getName().equals(name)) {
+                    method.setAccessible(true);
+                    return method;
+                }
+            }
+            throw new AssertionError(name + " not found");
+        }
+    }
+}
@@ -9,18 +9,27 @@ import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.Process;
+import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LruCache;
 import android.support.v4.util.SimpleArrayMap;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * <pre>
@@ -39,13 +48,44 @@ public final class CacheUtils {
     private static final long DEFAULT_MAX_SIZE = Long.MAX_VALUE;
     private static final int DEFAULT_MAX_COUNT = Integer.MAX_VALUE;
     private static final SimpleArrayMap<String, CacheUtils> CACHE_MAP = new SimpleArrayMap<>();
-    private CacheManager mCacheManager;
-
-    private CacheUtils(@NonNull final File cacheDir, final long maxSize, final int maxCount) {
+    private static final int IO_POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int BATCH_CHUNK_SIZE = 8;
+    private static final int SWEEP_LIMIT = 256;
+    private static final Map<Class<?>, Codec<?>> CODECS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<CodecBuffer> CODEC_BUFFER = new ThreadLocal<>();
+    private static volatile ExecutorService sIoPool;
+    private static volatile ScheduledExecutorService sSweeper;
+    private final CacheManager[] mCacheManagers;
+    private volatile MemoryCache mMemoryCache;
+    private volatile boolean mChecksumEnabled;
+    private volatile int mCompressThreshold = -1;
+    private volatile BitmapPool mBitmapPool;
+    private ScheduledFuture<?> mSweepFuture;
+
+    private CacheUtils(@NonNull final File cacheDir,
+                       final long maxSize,
+                       final int maxCount,
+                       final int shardCount) {
         if (!cacheDir.exists() && !cacheDir.mkdirs()) {
             throw new RuntimeException("can't make dirs in " + cacheDir.getAbsolutePath());
         }
-        mCacheManager = new CacheManager(cacheDir, maxSize, maxCount);
+        mCacheManagers = new CacheManager[shardCount];
+        if (shardCount == 1) {
+            mCacheManagers[0] = new CacheManager(cacheDir, maxSize, maxCount);
+            return;
+        }
+        final long shardMaxSize = maxSize == DEFAULT_MAX_SIZE
+                ? DEFAULT_MAX_SIZE : (maxSize + shardCount - 1) / shardCount;
+        final int shardMaxCount = maxCount == DEFAULT_MAX_COUNT
+                ? DEFAULT_MAX_COUNT : (maxCount + shardCount - 1) / shardCount;
+        for (int i = 0; i < shardCount; i++) {
+            final File shardDir = new File(cacheDir, "shard-" + i);
+            if (!shardDir.exists() && !shardDir.mkdirs()) {
+                throw new RuntimeException("can't make dirs in " + shardDir.getAbsolutePath());
+            }
+            mCacheManagers[i] = new CacheManager(shardDir, shardMaxSize, shardMaxCount);
+        }
     }
 
     /**
@@ -123,15 +163,48 @@ public final class CacheUtils {
     public static CacheUtils getInstance(@NonNull final File cacheDir,
                                          final long maxSize,
                                          final int maxCount) {
+        return getInstance(cacheDir, maxSize, maxCount, 1);
+    }
+
+    /**
+     * Return the single {@link CacheUtils} instance, which splits the cache directory
+     * into shards.
+     * <p>Keys are routed to a shard by hash, each shard has its own sub-directory,
+     * quota, counters and eviction index, so threads of different shards don't contend.</p>
+     * <p>The shard count of a directory must not change between launches.</p>
+     *
+     * @param cacheDir   The directory of cache.
+     * @param maxSize    The max size of cache, in bytes, split evenly among shards.
+     * @param maxCount   The max count of cache, split evenly among shards.
+     * @param shardCount The count of shards.
+     * @return the single {@link CacheUtils} instance
+     * @throws IllegalArgumentException if the directory is already open with another shard count
+     */
+    public static CacheUtils getInstance(@NonNull final File cacheDir,
+                                         final long maxSize,
+                                         final int maxCount,
+                                         @IntRange(from = 1) final int shardCount) {
         final String cacheKey = cacheDir.getAbsoluteFile() + "_" + Process.myPid();
         CacheUtils cache = CACHE_MAP.get(cacheKey);
         if (cache == null) {
-            cache = new CacheUtils(cacheDir, maxSize, maxCount);
+            cache = new CacheUtils(cacheDir, maxSize, maxCount, Math.max(1, shardCount));
             CACHE_MAP.put(cacheKey, cache);
+        } else if (cache.mCacheManagers.length != Math.max(1, shardCount)) {
+            // the files of a directory are laid out for a single shard count
+            throw new IllegalArgumentException("cache dir " + cacheDir.getAbsolutePath()
+                    + " is open with " + cache.mCacheManagers.length + " shards");
         }
         return cache;
     }
 
+    private CacheManager getCacheManager(final String key) {
+        final int shardCount = mCacheManagers.length;
+        if (shardCount == 1) return mCacheManagers[0];
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return mCacheManagers[(h & 0x7fffffff) % shardCount];
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // bytes io
     ///////////////////////////////////////////////////////////////////////////
@@ -163,13 +236,62 @@ public final class CacheUtils {
      * @param value    The value of cache.
      * @param saveTime The save time of cache, in seconds.
      */
-    public void put(@NonNull final String key, byte[] value, final int saveTime) {
-        if (value == null || value.length <= 0) return;
-        if (saveTime >= 0) value = CacheHelper.newByteArrayWithTime(saveTime, value);
-        File file = mCacheManager.getFileBeforePut(key);
-        CacheHelper.writeFileFromBytes(file, value);
-        mCacheManager.updateModify(file);
-        mCacheManager.put(file);
+    public void put(@NonNull final String key, final byte[] value, final int saveTime) {
+        putBytes(key, value, saveTime, true);
+    }
+
+    private void putBytes(final String key,
+                          final byte[] value,
+                          final int saveTime,
+                          final boolean isShared) {
+        final CacheManager cacheManager = getCacheManager(key);
+        final Staged staged = stage(cacheManager, key, value, saveTime, isShared);
+        if (staged != null) {
+            cacheManager.publish(key, staged.tempFile, staged.data, staged.dueMillis);
+        }
+    }
+
+    /**
+     * Write the value to a temp file of key, which is published afterwards.
+     *
+     * @return the staged value, or null if there is nothing to publish
+     */
+    private Staged stage(final CacheManager cacheManager,
+                         final String key,
+                         final byte[] value,
+                         final int saveTime,
+                         final boolean isShared) {
+        if (value == null || value.length <= 0) return null;
+        final long dueMillis = CacheHelper.createDueMillis(saveTime);
+        final File tempFile;
+        try {
+            tempFile = cacheManager.newTempFile(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // write outside of the lock, so writers of different keys run in parallel
+        final int compressThreshold = mCompressThreshold;
+        final Compressor compressor = compressThreshold >= 0 && value.length >= compressThreshold
+                ? Compressor.obtain() : null;
+        final boolean written;
+        try {
+            final ByteBuffer compressed = compressor == null ? null : compressor.deflate(value);
+            final ByteBuffer payload = compressed == null ? ByteBuffer.wrap(value) : compressed;
+            written = CacheHelper.writeFileFromBytes(
+                    tempFile,
+                    CacheHelper.newHeader(dueMillis, payload, mChecksumEnabled, compressed != null),
+                    payload
+            );
+        } finally {
+            if (compressor != null) compressor.recycle();
+        }
+        if (!written) {
+            tempFile.delete();
+            return null;
+        }
+        final byte[] memoryValue = mMemoryCache == null ? null : isShared ? value.clone() : value;
+        return new Staged(key, tempFile, memoryValue, dueMillis);
     }
 
     /**
@@ -194,15 +316,88 @@ public final class CacheUtils {
      * @return the bytes if cache exists or defaultValue otherwise
      */
     public byte[] getBytes(@NonNull final String key, final byte[] defaultValue) {
-        final File file = mCacheManager.getFileIfExists(key);
-        if (file == null) return defaultValue;
-        byte[] data = CacheHelper.readFile2Bytes(file);
-        if (CacheHelper.isDue(data)) {
-            mCacheManager.removeByKey(key);
-            return defaultValue;
+        final byte[] bytes = readBytes(key);
+        if (bytes == null) return defaultValue;
+        // the bytes may be shared with the memory cache
+        return mMemoryCache == null ? bytes : bytes.clone();
+    }
+
+    /**
+     * Return the bytes in cache, the result must not be modified.
+     */
+    private byte[] readBytes(final String key) {
+        final CacheManager cacheManager = getCacheManager(key);
+        final String name = cacheManager.getFileName(key);
+        final MemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            final MemoryEntry entry = memoryCache.getEntry(name);
+            if (entry != null) return readMemory(cacheManager, key, name, entry);
+        }
+        return readFile(cacheManager, key, name);
+    }
+
+    private byte[] readMemory(final CacheManager cacheManager,
+                              final String key,
+                              final String name,
+                              final MemoryEntry entry) {
+        if (entry.isDue()) {
+            mMemoryCache.remove(name);
+            cacheManager.removeByKey(key);
+            return null;
+        }
+        cacheManager.touch(name);
+        return entry.data;
+    }
+
+    private byte[] readFile(final CacheManager cacheManager, final String key, final String name) {
+        final File file = cacheManager.getFileIfExists(key);
+        if (file == null) return null;
+        final Record record = CacheHelper.readRecord(file, Integer.MAX_VALUE);
+        if (record == null) return null;
+        if (record.data == null) {
+            cacheManager.removeByKey(key);
+            return null;
+        }
+        cacheManager.updateModify(file);
+        final MemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            memoryCache.put(name, record.data, record.dueMillis);
+        }
+        return record.data;
+    }
+
+    /**
+     * Return the bytes in cache as a read-only buffer without copying.
+     * <p>Values larger than 256 KB are mapped from the file instead of read on the heap.</p>
+     *
+     * @param key The key of cache.
+     * @return the buffer if cache exists or null otherwise
+     */
+    public ByteBuffer getByteBuffer(@NonNull final String key) {
+        final CacheManager cacheManager = getCacheManager(key);
+        final String name = cacheManager.getFileName(key);
+        final MemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            final MemoryEntry entry = memoryCache.getEntry(name);
+            if (entry != null) {
+                final byte[] bytes = readMemory(cacheManager, key, name, entry);
+                return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            }
+        }
+        final File file = cacheManager.getFileIfExists(key);
+        if (file == null) return null;
+        final Record record = CacheHelper.readRecord(file, CacheHelper.MAP_THRESHOLD);
+        if (record == null) return null;
+        if (record.data == null && record.buffer == null) {
+            cacheManager.removeByKey(key);
+            return null;
+        }
+        cacheManager.updateModify(file);
+        if (record.buffer != null) return record.buffer;
+        if (memoryCache != null) {
+            memoryCache.put(name, record.data, record.dueMillis);
         }
-        mCacheManager.updateModify(file);
-        return CacheHelper.getDataWithoutDueTime(data);
+        return ByteBuffer.wrap(record.data).asReadOnlyBuffer();
     }
 
     /**
@@ -223,7 +418,7 @@ public final class CacheUtils {
      * @param saveTime The save time of cache, in seconds.
      */
     public void put(@NonNull final String key, final String value, final int saveTime) {
-        put(key, CacheHelper.string2Bytes(value), saveTime);
+        putBytes(key, CacheHelper.string2Bytes(value), saveTime, false);
     }
 
     /**
@@ -248,7 +443,7 @@ public final class CacheUtils {
      * @return the string value if cache exists or defaultValue otherwise
      */
     public String getString(@NonNull final String key, final String defaultValue) {
-        byte[] bytes = getBytes(key);
+        byte[] bytes = readBytes(key);
         if (bytes == null) return defaultValue;
         return CacheHelper.bytes2String(bytes);
     }
@@ -273,7 +468,7 @@ public final class CacheUtils {
     public void put(@NonNull final String key,
                     final JSONObject value,
                     final int saveTime) {
-        put(key, CacheHelper.jsonObject2Bytes(value), saveTime);
+        putBytes(key, CacheHelper.jsonObject2Bytes(value), saveTime, false);
     }
 
     /**
@@ -299,7 +494,7 @@ public final class CacheUtils {
      * @return the JSONObject if cache exists or defaultValue otherwise
      */
     public JSONObject getJSONObject(@NonNull final String key, final JSONObject defaultValue) {
-        byte[] bytes = getBytes(key);
+        byte[] bytes = readBytes(key);
         if (bytes == null) return defaultValue;
         return CacheHelper.bytes2JSONObject(bytes);
     }
@@ -322,7 +517,7 @@ public final class CacheUtils {
      * @param saveTime The save time of cache, in seconds.
      */
     public void put(@NonNull final String key, final JSONArray value, final int saveTime) {
-        put(key, CacheHelper.jsonArray2Bytes(value), saveTime);
+        putBytes(key, CacheHelper.jsonArray2Bytes(value), saveTime, false);
     }
 
     /**
@@ -348,7 +543,7 @@ public final class CacheUtils {
      * @return the JSONArray if cache exists or defaultValue otherwise
      */
     public JSONArray getJSONArray(@NonNull final String key, final JSONArray defaultValue) {
-        byte[] bytes = getBytes(key);
+        byte[] bytes = readBytes(key);
         if (bytes == null) return defaultValue;
         return CacheHelper.bytes2JSONArray(bytes);
     }
@@ -371,7 +566,7 @@ public final class CacheUtils {
      * @param saveTime The save time of cache, in seconds.
      */
     public void put(@NonNull final String key, final Bitmap value, final int saveTime) {
-        put(key, CacheHelper.bitmap2Bytes(value), saveTime);
+        putBytes(key, CacheHelper.bitmap2Bytes(value), saveTime, false);
     }
 
     /**
@@ -396,11 +591,85 @@ public final class CacheUtils {
      * @return the bitmap if cache exists or defaultValue otherwise
      */
     public Bitmap getBitmap(@NonNull final String key, final Bitmap defaultValue) {
-        byte[] bytes = getBytes(key);
+        byte[] bytes = readBytes(key);
         if (bytes == null) return defaultValue;
+        if (BitmapHelper.isRawBitmap(bytes)) return BitmapHelper.decodeRaw(bytes, null);
         return CacheHelper.bytes2Bitmap(bytes);
     }
 
+    /**
+     * Put the uncompressed pixels of bitmap in cache.
+     * <p>It costs more disk than {@link #put(String, Bitmap)}, but skips encoding on write
+     * and decoding on read, which suits small bitmaps such as thumbnails.</p>
+     *
+     * @param key   The key of cache.
+     * @param value The value of cache.
+     */
+    public void putRawBitmap(@NonNull final String key, final Bitmap value) {
+        putRawBitmap(key, value, -1);
+    }
+
+    /**
+     * Put the uncompressed pixels of bitmap in cache.
+     * <p>It costs more disk than {@link #put(String, Bitmap, int)}, but skips encoding on write
+     * and decoding on read, which suits small bitmaps such as thumbnails.</p>
+     *
+     * @param key      The key of cache.
+     * @param value    The value of cache.
+     * @param saveTime The save time of cache, in seconds.
+     */
+    public void putRawBitmap(@NonNull final String key, final Bitmap value, final int saveTime) {
+        putBytes(key, BitmapHelper.encodeRaw(value), saveTime, false);
+    }
+
+    /**
+     * Return the bitmap in cache, decoded no larger than needed for the size.
+     * <p>Encoded images, such as the bytes of jpeg, png or webp put by
+     * {@link #put(String, byte[])}, are decoded with a sample size, raw bitmaps are
+     * returned in full size. The pixels are decoded into a bitmap of the bitmap pool
+     * if there is one fits, see {@link #setBitmapPoolSize(int)}.</p>
+     *
+     * @param key       The key of cache.
+     * @param reqWidth  The required width.
+     * @param reqHeight The required height.
+     * @return the bitmap if cache exists or null otherwise
+     */
+    public Bitmap getBitmap(@NonNull final String key,
+                            @IntRange(from = 1) final int reqWidth,
+                            @IntRange(from = 1) final int reqHeight) {
+        final byte[] bytes = readBytes(key);
+        if (bytes == null || bytes.length <= 0) return null;
+        final BitmapPool bitmapPool = mBitmapPool;
+        if (BitmapHelper.isRawBitmap(bytes)) return BitmapHelper.decodeRaw(bytes, bitmapPool);
+        return BitmapHelper.decodeSampled(bytes, reqWidth, reqHeight, bitmapPool);
+    }
+
+    /**
+     * Set the size of bitmap pool, whose bitmaps are reused by
+     * {@link #getBitmap(String, int, int)} to avoid allocating pixels on each decode.
+     *
+     * @param maxSize The max size of bitmap pool, in bytes, 0 to disable it.
+     * @return the single {@link CacheUtils} instance
+     */
+    public CacheUtils setBitmapPoolSize(@IntRange(from = 0) final int maxSize) {
+        final BitmapPool bitmapPool = mBitmapPool;
+        mBitmapPool = maxSize <= 0 ? null : new BitmapPool(maxSize);
+        if (bitmapPool != null) bitmapPool.clear();
+        return this;
+    }
+
+    /**
+     * Return the bitmap which is no longer used to the bitmap pool.
+     * <p>The bitmap must not be used after it is returned.</p>
+     *
+     * @param bitmap The bitmap.
+     * @return {@code true}: it is pooled<br>{@code false}: otherwise
+     */
+    public boolean recycleBitmap(@NonNull final Bitmap bitmap) {
+        final BitmapPool bitmapPool = mBitmapPool;
+        return bitmapPool != null && bitmapPool.put(bitmap);
+    }
+
     /**
      * Put drawable in cache.
      *
@@ -408,7 +677,7 @@ public final class CacheUtils {
      * @param value The value of cache.
      */
     public void put(@NonNull final String key, final Drawable value) {
-        put(key, CacheHelper.drawable2Bytes(value));
+        putBytes(key, CacheHelper.drawable2Bytes(value), -1, false);
     }
 
     /**
@@ -419,7 +688,7 @@ public final class CacheUtils {
      * @param saveTime The save time of cache, in seconds.
      */
     public void put(@NonNull final String key, final Drawable value, final int saveTime) {
-        put(key, CacheHelper.drawable2Bytes(value), saveTime);
+        putBytes(key, CacheHelper.drawable2Bytes(value), saveTime, false);
     }
 
     /**
@@ -444,7 +713,7 @@ public final class CacheUtils {
      * @return the drawable if cache exists or defaultValue otherwise
      */
     public Drawable getDrawable(@NonNull final String key, final Drawable defaultValue) {
-        byte[] bytes = getBytes(key);
+        byte[] bytes = readBytes(key);
         if (bytes == null) return defaultValue;
         return CacheHelper.bytes2Drawable(bytes);
     }
@@ -467,7 +736,7 @@ public final class CacheUtils {
      * @param saveTime The save time of cache, in seconds.
      */
     public void put(@NonNull final String key, final Parcelable value, final int saveTime) {
-        put(key, CacheHelper.parcelable2Bytes(value), saveTime);
+        putBytes(key, CacheHelper.parcelable2Bytes(value), saveTime, false);
     }
 
     /**
@@ -499,7 +768,7 @@ public final class CacheUtils {
     public <T> T getParcelable(@NonNull final String key,
                                @NonNull final Parcelable.Creator<T> creator,
                                final T defaultValue) {
-        byte[] bytes = getBytes(key);
+        byte[] bytes = readBytes(key);
         if (bytes == null) return defaultValue;
         return CacheHelper.bytes2Parcelable(bytes, creator);
     }
@@ -522,7 +791,7 @@ public final class CacheUtils {
      * @param saveTime The save time of cache, in seconds.
      */
     public void put(@NonNull final String key, final Serializable value, final int saveTime) {
-        put(key, CacheHelper.serializable2Bytes(value), saveTime);
+        putBytes(key, CacheHelper.serializable2Bytes(value), saveTime, false);
     }
 
     /**
@@ -543,192 +812,1642 @@ public final class CacheUtils {
      * @return the bitmap if cache exists or defaultValue otherwise
      */
     public Object getSerializable(@NonNull final String key, final Object defaultValue) {
-        byte[] bytes = getBytes(key);
+        byte[] bytes = readBytes(key);
         if (bytes == null) return defaultValue;
-        return CacheHelper.bytes2Object(getBytes(key));
+        return CacheHelper.bytes2Object(bytes);
     }
 
+    ///////////////////////////////////////////////////////////////////////////
+    // codec io
+    ///////////////////////////////////////////////////////////////////////////
+
     /**
-     * Return the size of cache, in bytes.
+     * Register the codec of type, which is used by {@link #put(String, Object, Class)}
+     * and {@link #get(String, Class)}.
+     * <p>Codecs of boxed primitives and string are registered by default.</p>
      *
-     * @return the size of cache, in bytes
+     * @param type  The type of value.
+     * @param codec The codec of value, null to unregister.
+     * @param <T>   The value type.
      */
-    public long getCacheSize() {
-        return mCacheManager.getCacheSize();
+    public static <T> void registerCodec(@NonNull final Class<T> type, final Codec<T> codec) {
+        if (codec == null) {
+            CODECS.remove(type);
+        } else {
+            CODECS.put(type, codec);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Codec<T> getCodec(final Class<T> type) {
+        final Codec<T> codec = (Codec<T>) CODECS.get(type);
+        if (codec == null) {
+            throw new IllegalArgumentException("no codec registered for " + type.getName());
+        }
+        return codec;
     }
 
     /**
-     * Return the count of cache.
+     * Put value in cache by the codec registered for type.
      *
-     * @return the count of cache
+     * @param key   The key of cache.
+     * @param value The value of cache.
+     * @param type  The type of value.
+     * @param <T>   The value type.
      */
-    public int getCacheCount() {
-        return mCacheManager.getCacheCount();
+    public <T> void put(@NonNull final String key, final T value, @NonNull final Class<T> type) {
+        put(key, value, getCodec(type), -1);
     }
 
     /**
-     * Remove the cache by key.
+     * Put value in cache by the codec registered for type.
      *
-     * @param key The key of cache.
-     * @return {@code true}: success<br>{@code false}: fail
+     * @param key      The key of cache.
+     * @param value    The value of cache.
+     * @param type     The type of value.
+     * @param saveTime The save time of cache, in seconds.
+     * @param <T>      The value type.
      */
-    public boolean remove(@NonNull final String key) {
-        return mCacheManager.removeByKey(key);
+    public <T> void put(@NonNull final String key,
+                        final T value,
+                        @NonNull final Class<T> type,
+                        final int saveTime) {
+        put(key, value, getCodec(type), saveTime);
     }
 
     /**
-     * Clear all of the cache.
+     * Return the value in cache by the codec registered for type.
      *
-     * @return {@code true}: success<br>{@code false}: fail
+     * @param key  The key of cache.
+     * @param type The type of value.
+     * @param <T>  The value type.
+     * @return the value if cache exists or null otherwise
      */
-    public boolean clear() {
-        return mCacheManager.clear();
+    public <T> T get(@NonNull final String key, @NonNull final Class<T> type) {
+        return get(key, getCodec(type), null);
     }
 
-    private static class CacheHelper {
+    /**
+     * Return the value in cache by the codec registered for type.
+     *
+     * @param key          The key of cache.
+     * @param type         The type of value.
+     * @param defaultValue The default value if the cache doesn't exist.
+     * @param <T>          The value type.
+     * @return the value if cache exists or defaultValue otherwise
+     */
+    public <T> T get(@NonNull final String key,
+                     @NonNull final Class<T> type,
+                     final T defaultValue) {
+        return get(key, getCodec(type), defaultValue);
+    }
 
-        static final int timeInfoLen = 14;
+    /**
+     * Put value in cache by codec.
+     *
+     * @param key   The key of cache.
+     * @param value The value of cache.
+     * @param codec The codec of value.
+     * @param <T>   The value type.
+     */
+    public <T> void put(@NonNull final String key, final T value, @NonNull final Codec<T> codec) {
+        put(key, value, codec, -1);
+    }
 
-        private static byte[] newByteArrayWithTime(final int second, final byte[] data) {
-            byte[] time = createDueTime(second).getBytes();
-            byte[] content = new byte[time.length + data.length];
-            System.arraycopy(time, 0, content, 0, time.length);
-            System.arraycopy(data, 0, content, time.length, data.length);
-            return content;
-        }
+    /**
+     * Put value in cache by codec.
+     *
+     * @param key      The key of cache.
+     * @param value    The value of cache.
+     * @param codec    The codec of value.
+     * @param saveTime The save time of cache, in seconds.
+     * @param <T>      The value type.
+     */
+    public <T> void put(@NonNull final String key,
+                        final T value,
+                        @NonNull final Codec<T> codec,
+                        final int saveTime) {
+        putBytes(key, CodecBuffer.encode(value, codec), saveTime, false);
+    }
 
-        /**
-         * Return the string of due time.
-         *
-         * @param seconds The seconds.
-         * @return the string of due time
-         */
-        private static String createDueTime(final int seconds) {
-            return String.format(
-                    Locale.getDefault(), "_$%010d$_",
-                    System.currentTimeMillis() / 1000 + seconds
-            );
-        }
+    /**
+     * Return the value in cache by codec.
+     *
+     * @param key   The key of cache.
+     * @param codec The codec of value.
+     * @param <T>   The value type.
+     * @return the value if cache exists or null otherwise
+     */
+    public <T> T get(@NonNull final String key, @NonNull final Codec<T> codec) {
+        return get(key, codec, null);
+    }
 
-        private static boolean isDue(final byte[] data) {
-            long millis = getDueTime(data);
-            return millis != -1 && System.currentTimeMillis() > millis;
-        }
+    /**
+     * Return the value in cache by codec.
+     *
+     * @param key          The key of cache.
+     * @param codec        The codec of value.
+     * @param defaultValue The default value if the cache doesn't exist or is corrupt.
+     * @param <T>          The value type.
+     * @return the value if cache exists or defaultValue otherwise
+     */
+    public <T> T get(@NonNull final String key,
+                     @NonNull final Codec<T> codec,
+                     final T defaultValue) {
+        final byte[] bytes = readBytes(key);
+        if (bytes == null) return defaultValue;
+        final T value = CodecBuffer.decode(bytes, codec);
+        return value == null ? defaultValue : value;
+    }
 
-        private static long getDueTime(final byte[] data) {
-            if (hasTimeInfo(data)) {
-                String millis = new String(copyOfRange(data, 2, 12));
-                try {
-                    return Long.parseLong(millis) * 1000;
-                } catch (NumberFormatException e) {
-                    return -1;
-                }
-            }
-            return -1;
-        }
+    ///////////////////////////////////////////////////////////////////////////
+    // stream io
+    ///////////////////////////////////////////////////////////////////////////
 
-        private static byte[] getDataWithoutDueTime(final byte[] data) {
-            if (hasTimeInfo(data)) {
-                return copyOfRange(data, timeInfoLen, data.length);
-            }
-            return data;
-        }
+    /**
+     * Open a stream to put value in cache without holding it on heap.
+     * <p>The value is written to a temp file, which replaces the cache
+     * when the stream is closed, or is discarded by {@link CacheOutputStream#abort()}.</p>
+     *
+     * @param key The key of cache.
+     * @return the stream to write the value of cache
+     * @throws IOException if the temp file can't be created
+     */
+    public CacheOutputStream openOutputStream(@NonNull final String key) throws IOException {
+        return openOutputStream(key, -1);
+    }
 
-        private static byte[] copyOfRange(final byte[] original, final int from, final int to) {
-            int newLength = to - from;
-            if (newLength < 0) throw new IllegalArgumentException(from + " > " + to);
-            byte[] copy = new byte[newLength];
-            System.arraycopy(original, from, copy, 0, Math.min(original.length - from, newLength));
-            return copy;
-        }
+    /**
+     * Open a stream to put value in cache without holding it on heap.
+     * <p>The value is written to a temp file, which replaces the cache
+     * when the stream is closed, or is discarded by {@link CacheOutputStream#abort()}.</p>
+     *
+     * @param key      The key of cache.
+     * @param saveTime The save time of cache, in seconds.
+     * @return the stream to write the value of cache
+     * @throws IOException if the temp file can't be created
+     */
+    public CacheOutputStream openOutputStream(@NonNull final String key, final int saveTime)
+            throws IOException {
+        return new CacheOutputStream(key, CacheHelper.createDueMillis(saveTime), mChecksumEnabled);
+    }
 
-        private static boolean hasTimeInfo(final byte[] data) {
-            return data != null
-                    && data.length >= timeInfoLen
-                    && data[0] == '_'
-                    && data[1] == '$'
-                    && data[12] == '$'
-                    && data[13] == '_';
+    /**
+     * Open a stream to read the value in cache without holding it on heap.
+     * <p>The caller must close the stream.</p>
+     *
+     * @param key The key of cache.
+     * @return the stream of value if cache exists or null otherwise
+     */
+    public InputStream openInputStream(@NonNull final String key) {
+        final CacheManager cacheManager = getCacheManager(key);
+        final MemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            final String name = cacheManager.getFileName(key);
+            final MemoryEntry entry = memoryCache.getEntry(name);
+            if (entry != null) {
+                final byte[] bytes = readMemory(cacheManager, key, name, entry);
+                return bytes == null ? null : new ByteArrayInputStream(bytes);
+            }
         }
-
-        private static void writeFileFromBytes(final File file, final byte[] bytes) {
-            FileChannel fc = null;
-            try {
-                fc = new FileOutputStream(file, false).getChannel();
-                fc.write(ByteBuffer.wrap(bytes));
-                fc.force(true);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (fc != null) {
-                        fc.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+        final File file = cacheManager.getFileIfExists(key);
+        if (file == null) return null;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            final FileChannel fc = fis.getChannel();
+            final Header header = CacheHelper.readHeader(fc);
+            if (CacheHelper.isDue(header.dueMillis)) {
+                fis.close();
+                cacheManager.removeByKey(key);
+                return null;
+            }
+            fc.position(header.offset);
+            cacheManager.updateModify(file);
+            InputStream is = new BufferedInputStream(fis);
+            if (header.hasChecksum) is = new CheckedCacheInputStream(is, header.checksum);
+            if (header.compressed) {
+                // skip the length of value before the deflated bytes
+                for (int i = 0; i < 4; i++) {
+                    if (is.read() < 0) throw new EOFException("corrupt cache " + file);
                 }
+                is = header.hasChecksum
+                        ? new CheckedInflaterInputStream(is) : new InflaterInputStream(is);
             }
-        }
-
-        private static byte[] readFile2Bytes(final File file) {
-            FileChannel fc = null;
+            return is;
+        } catch (IOException e) {
+            e.printStackTrace();
             try {
-                fc = new RandomAccessFile(file, "r").getChannel();
-                int size = (int) fc.size();
-                MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
-                byte[] data = new byte[size];
-                mbb.get(data, 0, size);
-                return data;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            } finally {
-                try {
-                    if (fc != null) {
-                        fc.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (fis != null) {
+                    fis.close();
                 }
+            } catch (IOException ignore) {
             }
+            return null;
         }
+    }
 
-        private static byte[] string2Bytes(final String string) {
-            if (string == null) return null;
-            return string.getBytes();
+    /**
+     * Return the size of cache, in bytes.
+     *
+     * @return the size of cache, in bytes
+     */
+    public long getCacheSize() {
+        long size = 0;
+        for (CacheManager cacheManager : mCacheManagers) {
+            size += cacheManager.getCacheSize();
         }
+        return size;
+    }
 
-        private static String bytes2String(final byte[] bytes) {
-            if (bytes == null) return null;
-            return new String(bytes);
+    /**
+     * Return the count of cache.
+     *
+     * @return the count of cache
+     */
+    public int getCacheCount() {
+        int count = 0;
+        for (CacheManager cacheManager : mCacheManagers) {
+            count += cacheManager.getCacheCount();
         }
+        return count;
+    }
 
-        private static byte[] jsonObject2Bytes(final JSONObject jsonObject) {
-            if (jsonObject == null) return null;
-            return jsonObject.toString().getBytes();
-        }
+    /**
+     * Return the count of shards.
+     *
+     * @return the count of shards
+     */
+    public int getShardCount() {
+        return mCacheManagers.length;
+    }
 
-        private static JSONObject bytes2JSONObject(final byte[] bytes) {
-            if (bytes == null) return null;
-            try {
-                return new JSONObject(new String(bytes));
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
-            }
-        }
+    /**
+     * Return the size of cache in the shard, in bytes.
+     *
+     * @param shard The index of shard.
+     * @return the size of cache in the shard, in bytes
+     */
+    public long getShardCacheSize(final int shard) {
+        return mCacheManagers[shard].getCacheSize();
+    }
 
-        private static byte[] jsonArray2Bytes(final JSONArray jsonArray) {
-            if (jsonArray == null) return null;
-            return jsonArray.toString().getBytes();
-        }
+    /**
+     * Return the count of cache in the shard.
+     *
+     * @param shard The index of shard.
+     * @return the count of cache in the shard
+     */
+    public int getShardCacheCount(final int shard) {
+        return mCacheManagers[shard].getCacheCount();
+    }
 
-        private static JSONArray bytes2JSONArray(final byte[] bytes) {
-            if (bytes == null) return null;
-            try {
-                return new JSONArray(new String(bytes));
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * Return the size of expired caches removed by sweeping in the shard, in bytes.
+     *
+     * @param shard The index of shard.
+     * @return the size of expired caches removed by sweeping in the shard, in bytes
+     */
+    public long getShardSweptSize(final int shard) {
+        return mCacheManagers[shard].sweptSize.get();
+    }
+
+    /**
+     * Remove the cache by key.
+     *
+     * @param key The key of cache.
+     * @return {@code true}: success<br>{@code false}: fail
+     */
+    public boolean remove(@NonNull final String key) {
+        return getCacheManager(key).removeByKey(key);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // batch io
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return the bytes in cache of keys.
+     * <p>The values in memory cache are returned directly, the other files are read
+     * in parallel on a bounded pool of io threads.</p>
+     *
+     * @param keys The keys of cache.
+     * @return the map of key and bytes, which only contains the existing caches
+     */
+    public Map<String, byte[]> getAll(@NonNull final Collection<String> keys) {
+        final Map<String, byte[]> result = new ConcurrentHashMap<>(keys.size());
+        final MemoryCache memoryCache = mMemoryCache;
+        final List<String> misses;
+        if (memoryCache == null) {
+            misses = new ArrayList<>(keys);
+        } else {
+            misses = new ArrayList<>();
+            for (String key : keys) {
+                final CacheManager cacheManager = getCacheManager(key);
+                final String name = cacheManager.getFileName(key);
+                final MemoryEntry entry = memoryCache.getEntry(name);
+                if (entry == null) {
+                    misses.add(key);
+                    continue;
+                }
+                final byte[] bytes = readMemory(cacheManager, key, name, entry);
+                if (bytes != null) result.put(key, bytes.clone());
+            }
+        }
+        forEachKey(misses, new KeyAction() {
+            @Override
+            public void run(final String key) {
+                final CacheManager cacheManager = getCacheManager(key);
+                final byte[] bytes = readFile(cacheManager, key, cacheManager.getFileName(key));
+                if (bytes != null) result.put(key, memoryCache == null ? bytes : bytes.clone());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Put bytes of keys in cache.
+     * <p>The files are written in parallel on a bounded pool of io threads,
+     * and the journal of each shard is flushed once for the whole batch.</p>
+     *
+     * @param values The map of key and bytes.
+     */
+    public void putAll(@NonNull final Map<String, byte[]> values) {
+        putAll(values, -1);
+    }
+
+    /**
+     * Put bytes of keys in cache.
+     * <p>The files are written in parallel on a bounded pool of io threads,
+     * and the journal of each shard is flushed once for the whole batch.</p>
+     *
+     * @param values   The map of key and bytes.
+     * @param saveTime The save time of cache, in seconds.
+     */
+    public void putAll(@NonNull final Map<String, byte[]> values, final int saveTime) {
+        final Queue<Staged> staged = new ConcurrentLinkedQueue<>();
+        try {
+            forEachKey(new ArrayList<>(values.keySet()), new KeyAction() {
+                @Override
+                public void run(final String key) {
+                    final Staged value = stage(
+                            getCacheManager(key), key, values.get(key), saveTime, true
+                    );
+                    if (value != null) staged.add(value);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            for (Staged value : staged) {
+                value.tempFile.delete();
+            }
+            throw e;
+        }
+        final Map<CacheManager, List<Staged>> batches = new HashMap<>();
+        for (Staged value : staged) {
+            final CacheManager cacheManager = getCacheManager(value.key);
+            List<Staged> batch = batches.get(cacheManager);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(cacheManager, batch);
+            }
+            batch.add(value);
+        }
+        for (Map.Entry<CacheManager, List<Staged>> entry : batches.entrySet()) {
+            entry.getKey().publishAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Remove the cache of keys.
+     * <p>The files are deleted in parallel on a bounded pool of io threads,
+     * and the journal of each shard is flushed once for the whole batch.</p>
+     *
+     * @param keys The keys of cache.
+     * @return {@code true}: success<br>{@code false}: fail
+     */
+    public boolean removeAll(@NonNull final Collection<String> keys) {
+        final AtomicBoolean flag = new AtomicBoolean(true);
+        try {
+            forEachKey(new ArrayList<>(keys), new KeyAction() {
+                @Override
+                public void run(final String key) {
+                    if (!getCacheManager(key).removeByKey(key, false)) flag.set(false);
+                }
+            });
+        } finally {
+            for (CacheManager cacheManager : mCacheManagers) {
+                cacheManager.journal.flush();
+            }
+        }
+        return flag.get();
+    }
+
+    private interface KeyAction {
+        void run(String key);
+    }
+
+    /**
+     * Run the action for each key, fanning chunks of keys out to the io pool
+     * while the calling thread runs the first chunk.
+     * <p>It waits for all chunks, then rethrows the first failure of action.</p>
+     */
+    private static void forEachKey(final List<String> keys, final KeyAction action) {
+        final int size = keys.size();
+        if (size <= BATCH_CHUNK_SIZE) {
+            for (String key : keys) {
+                action.run(key);
+            }
+            return;
+        }
+        final int chunkSize = Math.max(
+                BATCH_CHUNK_SIZE, (size + IO_POOL_SIZE) / (IO_POOL_SIZE + 1)
+        );
+        final ExecutorService pool = getIoPool();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int from = chunkSize; from < size; from += chunkSize) {
+            final List<String> chunk = keys.subList(from, Math.min(size, from + chunkSize));
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (String key : chunk) {
+                        action.run(key);
+                    }
+                }
+            }));
+        }
+        Throwable error = null;
+        try {
+            for (String key : keys.subList(0, chunkSize)) {
+                action.run(key);
+            }
+        } catch (RuntimeException | Error e) {
+            error = e;
+        }
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (error == null) error = e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+    }
+
+    private static ExecutorService getIoPool() {
+        if (sIoPool == null) {
+            synchronized (CacheUtils.class) {
+                if (sIoPool == null) {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                            IO_POOL_SIZE, IO_POOL_SIZE,
+                            30, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                @Override
+                                public Thread newThread(@NonNull final Runnable r) {
+                                    Thread t = new Thread(r, "cache-io-" + count.incrementAndGet());
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            }
+                    );
+                    pool.allowCoreThreadTimeOut(true);
+                    sIoPool = pool;
+                }
+            }
+        }
+        return sIoPool;
+    }
+
+    /**
+     * Clear all of the cache.
+     *
+     * @return {@code true}: success<br>{@code false}: fail
+     */
+    public boolean clear() {
+        boolean flag = true;
+        for (CacheManager cacheManager : mCacheManagers) {
+            if (!cacheManager.clear()) flag = false;
+        }
+        return flag;
+    }
+
+    /**
+     * Set the interval of sweeping expired caches in background.
+     * <p>Each sweep removes at most 256 expired caches in order of due time,
+     * caches are still checked when they are read.</p>
+     *
+     * @param interval The interval of sweeping, 0 to stop sweeping.
+     * @param unit     The time unit of the interval parameter.
+     * @return the single {@link CacheUtils} instance
+     */
+    public synchronized CacheUtils setSweepInterval(@IntRange(from = 0) final long interval,
+                                                    @NonNull final TimeUnit unit) {
+        if (mSweepFuture != null) {
+            mSweepFuture.cancel(false);
+            mSweepFuture = null;
+        }
+        if (interval > 0) {
+            mSweepFuture = getSweeper().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    final int limit = Math.max(1, SWEEP_LIMIT / mCacheManagers.length);
+                    for (CacheManager cacheManager : mCacheManagers) {
+                        cacheManager.sweep(limit);
+                    }
+                }
+            }, interval, interval, unit);
+        }
+        return this;
+    }
+
+    /**
+     * Remove the expired caches now.
+     *
+     * @return the size of removed caches, in bytes
+     */
+    public long sweep() {
+        long size = 0;
+        for (CacheManager cacheManager : mCacheManagers) {
+            size += cacheManager.sweep(Integer.MAX_VALUE);
+        }
+        return size;
+    }
+
+    /**
+     * Return the size of expired caches removed by sweeping, in bytes.
+     *
+     * @return the size of expired caches removed by sweeping, in bytes
+     */
+    public long getSweptSize() {
+        long size = 0;
+        for (CacheManager cacheManager : mCacheManagers) {
+            size += cacheManager.sweptSize.get();
+        }
+        return size;
+    }
+
+    private static ScheduledExecutorService getSweeper() {
+        if (sSweeper == null) {
+            synchronized (CacheUtils.class) {
+                if (sSweeper == null) {
+                    sSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull final Runnable r) {
+                            Thread t = new Thread(r, "cache-sweeper");
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return sSweeper;
+    }
+
+    /**
+     * Set whether to store a checksum of the value in cache.
+     * <p>Values with a checksum are verified on read and removed if corrupt.</p>
+     *
+     * @param checksumEnabled True to store a checksum, false otherwise.
+     * @return the single {@link CacheUtils} instance
+     */
+    public CacheUtils setChecksumEnabled(final boolean checksumEnabled) {
+        mChecksumEnabled = checksumEnabled;
+        return this;
+    }
+
+    /**
+     * Set the size from which values are compressed with deflate when they are put in cache.
+     * <p>Compressed and raw values coexist, which one is recorded in the header of cache,
+     * and reads inflate them transparently. A value is kept raw if compression doesn't
+     * make it smaller. Values written by {@link #openOutputStream(String)} are kept raw.</p>
+     *
+     * @param threshold The size of value, in bytes, from which it is compressed,
+     *                  -1 to disable compression.
+     * @return the single {@link CacheUtils} instance
+     */
+    public CacheUtils setCompressThreshold(@IntRange(from = -1) final int threshold) {
+        mCompressThreshold = threshold < 0 ? -1 : threshold;
+        return this;
+    }
+
+    /**
+     * Set the size of memory cache which sits in front of the disk cache.
+     * <p>Reads are served from memory and fall through to disk on a miss,
+     * writes go to both.</p>
+     *
+     * @param maxSize The max size of memory cache, in bytes, 0 to disable it.
+     * @return the single {@link CacheUtils} instance
+     */
+    public CacheUtils setMemoryCacheSize(@IntRange(from = 0) final int maxSize) {
+        final MemoryCache memoryCache = mMemoryCache;
+        if (maxSize <= 0) {
+            mMemoryCache = null;
+            if (memoryCache != null) memoryCache.evictAll();
+        } else if (memoryCache == null) {
+            mMemoryCache = new MemoryCache(maxSize);
+        } else {
+            memoryCache.resize(maxSize);
+        }
+        return this;
+    }
+
+    /**
+     * Return the size of memory cache, in bytes.
+     *
+     * @return the size of memory cache, in bytes
+     */
+    public int getMemoryCacheSize() {
+        final MemoryCache memoryCache = mMemoryCache;
+        return memoryCache == null ? 0 : memoryCache.size();
+    }
+
+    /**
+     * Return the count of reads served by the memory cache.
+     *
+     * @return the count of reads served by the memory cache
+     */
+    public long getMemoryCacheHitCount() {
+        final MemoryCache memoryCache = mMemoryCache;
+        return memoryCache == null ? 0 : memoryCache.hits.get();
+    }
+
+    /**
+     * Return the count of reads which fell through to the disk cache.
+     *
+     * @return the count of reads which fell through to the disk cache
+     */
+    public long getMemoryCacheMissCount() {
+        final MemoryCache memoryCache = mMemoryCache;
+        return memoryCache == null ? 0 : memoryCache.misses.get();
+    }
+
+    /**
+     * The codec which converts value to bytes of cache.
+     *
+     * @param <T> The value type.
+     */
+    public interface Codec<T> {
+
+        /**
+         * Write the value.
+         *
+         * @param value The value, not null.
+         * @param out   The output of bytes.
+         * @throws IOException if the value can't be written
+         */
+        void encode(@NonNull T value, @NonNull DataOutput out) throws IOException;
+
+        /**
+         * Read the value.
+         *
+         * @param in The input of bytes.
+         * @return the value
+         * @throws IOException if the bytes are corrupt
+         */
+        T decode(@NonNull DataInput in) throws IOException;
+    }
+
+    /**
+     * The built-in codecs, which write big-endian primitives and length-prefixed UTF-8 strings.
+     */
+    public static final class Codecs {
+
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        public static final Codec<Integer> INT = new Codec<Integer>() {
+            @Override
+            public void encode(@NonNull final Integer value, @NonNull final DataOutput out)
+                    throws IOException {
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer decode(@NonNull final DataInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+
+        public static final Codec<Long> LONG = new Codec<Long>() {
+            @Override
+            public void encode(@NonNull final Long value, @NonNull final DataOutput out)
+                    throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long decode(@NonNull final DataInput in) throws IOException {
+                return in.readLong();
+            }
+        };
+
+        public static final Codec<Float> FLOAT = new Codec<Float>() {
+            @Override
+            public void encode(@NonNull final Float value, @NonNull final DataOutput out)
+                    throws IOException {
+                out.writeFloat(value);
+            }
+
+            @Override
+            public Float decode(@NonNull final DataInput in) throws IOException {
+                return in.readFloat();
+            }
+        };
+
+        public static final Codec<Double> DOUBLE = new Codec<Double>() {
+            @Override
+            public void encode(@NonNull final Double value, @NonNull final DataOutput out)
+                    throws IOException {
+                out.writeDouble(value);
+            }
+
+            @Override
+            public Double decode(@NonNull final DataInput in) throws IOException {
+                return in.readDouble();
+            }
+        };
+
+        public static final Codec<Boolean> BOOLEAN = new Codec<Boolean>() {
+            @Override
+            public void encode(@NonNull final Boolean value, @NonNull final DataOutput out)
+                    throws IOException {
+                out.writeBoolean(value);
+            }
+
+            @Override
+            public Boolean decode(@NonNull final DataInput in) throws IOException {
+                return in.readBoolean();
+            }
+        };
+
+        public static final Codec<String> STRING = new Codec<String>() {
+            @Override
+            public void encode(@NonNull final String value, @NonNull final DataOutput out)
+                    throws IOException {
+                final byte[] bytes = value.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            @Override
+            public String decode(@NonNull final DataInput in) throws IOException {
+                final byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                return new String(bytes, UTF_8);
+            }
+        };
+
+        private Codecs() {
+            throw new UnsupportedOperationException("u can't instantiate me...");
+        }
+
+        /**
+         * Read the length of bytes which follow, rejecting a corrupt one before it is allocated.
+         */
+        private static int readLength(final DataInput in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0
+                    || in instanceof InputStream && length > ((InputStream) in).available()) {
+                throw new IOException("corrupt length " + length);
+            }
+            return length;
+        }
+
+        /**
+         * Return the codec of list, which writes the size followed by the elements.
+         *
+         * @param elementCodec The codec of element, elements must not be null.
+         * @param <T>          The element type.
+         * @return the codec of list
+         */
+        public static <T> Codec<List<T>> listOf(@NonNull final Codec<T> elementCodec) {
+            return new Codec<List<T>>() {
+                @Override
+                public void encode(@NonNull final List<T> value, @NonNull final DataOutput out)
+                        throws IOException {
+                    out.writeInt(value.size());
+                    for (T element : value) {
+                        elementCodec.encode(element, out);
+                    }
+                }
+
+                @Override
+                public List<T> decode(@NonNull final DataInput in) throws IOException {
+                    final int size = in.readInt();
+                    if (size < 0) throw new IOException("corrupt size " + size);
+                    final List<T> list = new ArrayList<>(Math.min(size, 1024));
+                    for (int i = 0; i < size; i++) {
+                        list.add(elementCodec.decode(in));
+                    }
+                    return list;
+                }
+            };
+        }
+
+        /**
+         * Return the codec of parcelable, which writes the length-prefixed marshalled parcel.
+         * <p>The bytes depend on the platform version, so don't keep them across upgrades.</p>
+         *
+         * @param creator The creator.
+         * @param <T>     The value type.
+         * @return the codec of parcelable
+         */
+        public static <T extends Parcelable> Codec<T> parcelable(
+                @NonNull final Parcelable.Creator<T> creator) {
+            return new Codec<T>() {
+                @Override
+                public void encode(@NonNull final T value, @NonNull final DataOutput out)
+                        throws IOException {
+                    final byte[] bytes = CacheHelper.parcelable2Bytes(value);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                @Override
+                public T decode(@NonNull final DataInput in) throws IOException {
+                    final byte[] bytes = new byte[readLength(in)];
+                    in.readFully(bytes);
+                    return CacheHelper.bytes2Parcelable(bytes, creator);
+                }
+            };
+        }
+    }
+
+    static {
+        CODECS.put(Integer.class, Codecs.INT);
+        CODECS.put(int.class, Codecs.INT);
+        CODECS.put(Long.class, Codecs.LONG);
+        CODECS.put(long.class, Codecs.LONG);
+        CODECS.put(Float.class, Codecs.FLOAT);
+        CODECS.put(float.class, Codecs.FLOAT);
+        CODECS.put(Double.class, Codecs.DOUBLE);
+        CODECS.put(double.class, Codecs.DOUBLE);
+        CODECS.put(Boolean.class, Codecs.BOOLEAN);
+        CODECS.put(boolean.class, Codecs.BOOLEAN);
+        CODECS.put(String.class, Codecs.STRING);
+    }
+
+    /**
+     * The buffer of encoding reused by each thread, so encoding a value allocates its bytes only.
+     * <p>It's confined to its thread, so it writes without the locks of
+     * {@link ByteArrayOutputStream}, which a codec would take for each byte.</p>
+     */
+    private static final class CodecBuffer extends ByteArrayOutputStream {
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+        private final DataOutputStream out = new DataOutputStream(this);
+
+        CodecBuffer() {
+            super(256);
+        }
+
+        @Override
+        public void write(final int b) {
+            if (count == buf.length) buf = Arrays.copyOf(buf, count << 1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(@NonNull final byte[] b, final int off, final int len) {
+            if (len > buf.length - count) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private static <T> byte[] encode(final T value, final Codec<T> codec) {
+            if (value == null) return null;
+            CodecBuffer buffer = CODEC_BUFFER.get();
+            if (buffer == null) {
+                buffer = new CodecBuffer();
+                CODEC_BUFFER.set(buffer);
+            }
+            buffer.reset();
+            try {
+                codec.encode(value, buffer.out);
+                buffer.out.flush();
+                return buffer.toByteArray();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                // don't retain the buffer grown by a large value
+                if (buffer.buf.length > MAX_RETAINED_SIZE) {
+                    CODEC_BUFFER.remove();
+                }
+            }
+        }
+
+        private static <T> T decode(final byte[] bytes, final Codec<T> codec) {
+            try {
+                return codec.decode(new DataInputStream(new CodecInput(bytes)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The input of decoding, confined to its thread, so it reads without the locks of
+     * {@link ByteArrayInputStream}.
+     */
+    private static final class CodecInput extends ByteArrayInputStream {
+
+        CodecInput(final byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public int read() {
+            return pos < count ? buf[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len) {
+            if (pos >= count) return len == 0 ? 0 : -1;
+            final int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return count - pos;
+        }
+    }
+
+    /**
+     * The pool of mutable bitmaps, bucketed by the allocation size.
+     */
+    private static final class BitmapPool {
+        // the reused bitmap can't be over 4 times larger than needed
+        private static final int MAX_OVERSIZE = 4;
+        private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+        private final int maxSize;
+        private int size;
+
+        BitmapPool(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized boolean put(final Bitmap bitmap) {
+            if (bitmap.isRecycled() || !bitmap.isMutable()) return false;
+            final int byteCount = bitmap.getAllocationByteCount();
+            if (byteCount <= 0 || byteCount > maxSize) return false;
+            ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                buckets.put(byteCount, bucket);
+            }
+            bucket.offerLast(bitmap);
+            size += byteCount;
+            // evict the largest ones first, they are the least likely to fit
+            while (size > maxSize) {
+                final Map.Entry<Integer, ArrayDeque<Bitmap>> last = buckets.lastEntry();
+                final Bitmap evicted = last.getValue().pollFirst();
+                if (last.getValue().isEmpty()) buckets.remove(last.getKey());
+                size -= last.getKey();
+                evicted.recycle();
+            }
+            return !bitmap.isRecycled();
+        }
+
+        synchronized Bitmap get(final int byteCount) {
+            final Integer key = buckets.ceilingKey(byteCount);
+            if (key == null || key > (long) byteCount * MAX_OVERSIZE) return null;
+            final ArrayDeque<Bitmap> bucket = buckets.get(key);
+            final Bitmap bitmap = bucket.pollLast();
+            if (bucket.isEmpty()) buckets.remove(key);
+            size -= key;
+            return bitmap;
+        }
+
+        synchronized void clear() {
+            for (ArrayDeque<Bitmap> bucket : buckets.values()) {
+                for (Bitmap bitmap : bucket) {
+                    bitmap.recycle();
+                }
+            }
+            buckets.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * The value written to the temp file of key, waiting to be published.
+     */
+    private static final class Staged {
+        final String key;
+        final File tempFile;
+        final byte[] data;
+        final long dueMillis;
+
+        Staged(final String key, final File tempFile, final byte[] data, final long dueMillis) {
+            this.key = key;
+            this.tempFile = tempFile;
+            this.data = data;
+            this.dueMillis = dueMillis;
+        }
+    }
+
+    /**
+     * The value read from a cache file, data and buffer are null if it is due or corrupt.
+     */
+    private static final class Record {
+        final long dueMillis;
+        final byte[] data;
+        final ByteBuffer buffer;
+
+        Record(final long dueMillis, final byte[] data, final ByteBuffer buffer) {
+            this.dueMillis = dueMillis;
+            this.data = data;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Header {
+        long dueMillis = -1;
+        long offset;
+        long length;
+        boolean hasChecksum;
+        boolean compressed;
+        int checksum;
+    }
+
+    /**
+     * The deflater, inflater and scratch buffer of compression, pooled since deflater and
+     * inflater hold native memory which is expensive to allocate per call.
+     */
+    private static final class Compressor {
+        private static final int POOL_SIZE = IO_POOL_SIZE * 2;
+        private static final int MIN_BUFFER_SIZE = 8 * 1024;
+        private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+        // deflate can't compress better than 1032:1
+        private static final int MAX_RATIO = 1032;
+        private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+        private static final BlockingQueue<Compressor> POOL =
+                new ArrayBlockingQueue<>(POOL_SIZE);
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+        private byte[] buffer = new byte[MIN_BUFFER_SIZE];
+
+        private static Compressor obtain() {
+            final Compressor compressor = POOL.poll();
+            return compressor == null ? new Compressor() : compressor;
+        }
+
+        private void recycle() {
+            deflater.reset();
+            inflater.reset();
+            if (buffer.length > MAX_RETAINED_SIZE) buffer = new byte[MIN_BUFFER_SIZE];
+            if (!POOL.offer(this)) {
+                deflater.end();
+                inflater.end();
+            }
+        }
+
+        private byte[] buffer(final int size) {
+            if (buffer.length < size) buffer = new byte[Math.max(size, buffer.length * 2)];
+            return buffer;
+        }
+
+        /**
+         * Deflate the value behind its length into the scratch buffer.
+         *
+         * @return the compressed payload, null if it isn't smaller than the value
+         */
+        private ByteBuffer deflate(final byte[] value) {
+            final int limit = value.length;
+            final byte[] out = buffer(limit);
+            out[0] = (byte) (limit >>> 24);
+            out[1] = (byte) (limit >>> 16);
+            out[2] = (byte) (limit >>> 8);
+            out[3] = (byte) limit;
+            deflater.setInput(value, 0, value.length);
+            deflater.finish();
+            int length = 4;
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(out, length, limit - length);
+            }
+            if (!deflater.finished()) return null;
+            return ByteBuffer.wrap(out, 0, length);
+        }
+
+        /**
+         * Inflate the payload which is read in the scratch buffer.
+         *
+         * @return the value, null if the payload is corrupt
+         */
+        private byte[] inflate(final int length) {
+            final byte[] in = buffer;
+            if (length < 4) return null;
+            final int size = ((in[0] & 0xFF) << 24) | ((in[1] & 0xFF) << 16)
+                    | ((in[2] & 0xFF) << 8) | (in[3] & 0xFF);
+            // the length comes from the file, don't trust it to allocate
+            if (size < 0 || size > MAX_ARRAY_SIZE || size > (long) length * MAX_RATIO) {
+                return null;
+            }
+            final byte[] data = new byte[size];
+            inflater.setInput(in, 4, length - 4);
+            try {
+                int offset = 0;
+                while (offset < size) {
+                    final int n = inflater.inflate(data, offset, size - offset);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) break;
+                    offset += n;
+                }
+                if (offset != size || !inflater.finished()) return null;
+            } catch (DataFormatException e) {
+                return null;
+            }
+            return data;
+        }
+    }
+
+    /**
+     * The stream of value which verifies the checksum when reaching the end.
+     */
+    private static final class CheckedCacheInputStream extends FilterInputStream {
+        private final CRC32 crc32 = new CRC32();
+        private final int checksum;
+
+        CheckedCacheInputStream(final InputStream in, final int checksum) {
+            super(in);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                verify();
+            } else {
+                crc32.update(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read == -1) {
+                verify();
+            } else {
+                crc32.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // skipped bytes must be checked too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verify() throws IOException {
+            if ((int) crc32.getValue() != checksum) {
+                throw new IOException("checksum of cache mismatch");
+            }
+        }
+    }
+
+    /**
+     * The stream of deflated value which reads the checked stream to its end once the value
+     * is inflated, since the inflater stops before it and the checksum would never be verified.
+     */
+    private static final class CheckedInflaterInputStream extends InflaterInputStream {
+
+        CheckedInflaterInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read == -1) {
+                final byte[] rest = new byte[512];
+                while (in.read(rest, 0, rest.length) != -1) {
+                    // the checked stream verifies the checksum at its end
+                }
+            }
+            return read;
+        }
+    }
+
+    /**
+     * The stream which writes value to a temp file and publishes it into cache when closed.
+     */
+    public final class CacheOutputStream extends OutputStream {
+        private final String key;
+        private final CacheManager cacheManager;
+        private final long dueMillis;
+        private final File tempFile;
+        private final FileOutputStream fos;
+        private final OutputStream out;
+        private final CRC32 crc32;
+        private long length;
+        private boolean closed;
+
+        private CacheOutputStream(final String key,
+                                  final long dueMillis,
+                                  final boolean checksum) throws IOException {
+            this.key = key;
+            this.cacheManager = getCacheManager(key);
+            this.dueMillis = dueMillis;
+            this.crc32 = checksum ? new CRC32() : null;
+            tempFile = cacheManager.newTempFile(key);
+            fos = new FileOutputStream(tempFile, false);
+            out = new BufferedOutputStream(fos, 8192);
+            // placeholder of header, written when closed
+            out.write(new byte[CacheHelper.HEADER_LEN]);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            checkNotClosed();
+            out.write(b);
+            if (crc32 != null) crc32.update(b);
+            ++length;
+        }
+
+        @Override
+        public void write(@NonNull final byte[] b, final int off, final int len)
+                throws IOException {
+            checkNotClosed();
+            out.write(b, off, len);
+            if (crc32 != null) crc32.update(b, off, len);
+            length += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkNotClosed();
+            out.flush();
+        }
+
+        /**
+         * Publish the value into cache.
+         *
+         * @throws IOException if the value can't be written
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                if (length > Integer.MAX_VALUE) throw new IOException("value is too large");
+                out.flush();
+                final FileChannel fc = fos.getChannel();
+                final ByteBuffer header = CacheHelper.newHeader(
+                        dueMillis,
+                        (int) length,
+                        crc32 != null,
+                        false,
+                        crc32 == null ? 0 : (int) crc32.getValue()
+                );
+                while (header.hasRemaining()) {
+                    fc.write(header, header.position());
+                }
+                fc.force(true);
+                fos.close();
+                if (!cacheManager.publish(key, tempFile, null, dueMillis)) {
+                    throw new IOException("can't publish " + tempFile);
+                }
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        /**
+         * Discard the value, leaving the cache unchanged.
+         */
+        public void abort() {
+            if (closed) return;
+            closed = true;
+            discard();
+        }
+
+        private void discard() {
+            try {
+                fos.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            tempFile.delete();
+        }
+
+        private void checkNotClosed() throws IOException {
+            if (closed) throw new IOException("stream closed");
+        }
+    }
+
+    private static class CacheHelper {
+
+        /**
+         * The entry header, written in big-endian.
+         * <pre>
+         *     0  magic          int
+         *     4  version        byte
+         *     5  flags          byte, {@link #FLAG_CHECKSUM} | {@link #FLAG_DEFLATE}
+         *     6  reserved       short
+         *     8  due time       long, in milliseconds, -1 if never due
+         *     16 payload length int
+         *     20 checksum       int, CRC32 of payload if {@link #FLAG_CHECKSUM} is set
+         * </pre>
+         * <p>If {@link #FLAG_DEFLATE} is set, the payload is the length of value as int
+         * followed by the deflated value.</p>
+         */
+        static final int HEADER_LEN = 24;
+        static final int MAGIC = 0xCAC4E5D1;
+        static final byte VERSION = 1;
+        static final byte FLAG_CHECKSUM = 0x01;
+        static final byte FLAG_DEFLATE = 0x02;
+        static final int MAP_THRESHOLD = 256 * 1024;
+        // legacy header: _$0123456789$_
+        static final int LEGACY_HEADER_LEN = 14;
+
+        private static long createDueMillis(final int seconds) {
+            return seconds < 0 ? -1 : System.currentTimeMillis() + seconds * 1000L;
+        }
+
+        private static ByteBuffer newHeader(final long dueMillis,
+                                            final ByteBuffer payload,
+                                            final boolean checksum,
+                                            final boolean compressed) {
+            return newHeader(
+                    dueMillis,
+                    payload.remaining(),
+                    checksum,
+                    compressed,
+                    checksum ? crc32(payload) : 0
+            );
+        }
+
+        private static ByteBuffer newHeader(final long dueMillis,
+                                            final int length,
+                                            final boolean hasChecksum,
+                                            final boolean compressed,
+                                            final int checksum) {
+            byte flags = hasChecksum ? FLAG_CHECKSUM : 0;
+            if (compressed) flags |= FLAG_DEFLATE;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+            header.putInt(MAGIC)
+                    .put(VERSION)
+                    .put(flags)
+                    .putShort((short) 0)
+                    .putLong(dueMillis)
+                    .putInt(length)
+                    .putInt(checksum);
+            header.flip();
+            return header;
+        }
+
+        private static int crc32(final byte[] data, final int length) {
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, length);
+            return (int) crc32.getValue();
+        }
+
+        private static int crc32(final ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                CRC32 crc32 = new CRC32();
+                crc32.update(
+                        buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()
+                );
+                return (int) crc32.getValue();
+            }
+            CRC32 crc32 = new CRC32();
+            ByteBuffer duplicate = buffer.duplicate();
+            byte[] chunk = new byte[8192];
+            while (duplicate.hasRemaining()) {
+                int len = Math.min(chunk.length, duplicate.remaining());
+                duplicate.get(chunk, 0, len);
+                crc32.update(chunk, 0, len);
+            }
+            return (int) crc32.getValue();
+        }
+
+        private static boolean isDue(final long dueMillis) {
+            return dueMillis != -1 && System.currentTimeMillis() > dueMillis;
+        }
+
+        /**
+         * Read the cache file, checking the due time from the header before the payload.
+         *
+         * @param file         The file of cache.
+         * @param mapThreshold The payload length from which it is mapped instead of read.
+         * @return the record, null if the file can't be read
+         */
+        private static Record readRecord(final File file, final int mapThreshold) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                final FileChannel fc = raf.getChannel();
+                final Header header = readHeader(fc);
+                final long dueMillis = header.dueMillis;
+                if (isDue(dueMillis)) return new Record(dueMillis, null, null);
+                if (header.compressed) {
+                    final Compressor compressor = Compressor.obtain();
+                    try {
+                        final int length = (int) header.length;
+                        final byte[] in = compressor.buffer(length);
+                        readFully(fc, ByteBuffer.wrap(in, 0, length), header.offset);
+                        if (header.hasChecksum && crc32(in, length) != header.checksum) {
+                            return new Record(dueMillis, null, null);
+                        }
+                        return new Record(dueMillis, compressor.inflate(length), null);
+                    } finally {
+                        compressor.recycle();
+                    }
+                }
+                if (header.length >= mapThreshold) {
+                    ByteBuffer buffer = fc.map(
+                            FileChannel.MapMode.READ_ONLY, header.offset, header.length
+                    );
+                    if (header.hasChecksum && crc32(buffer) != header.checksum) {
+                        return new Record(dueMillis, null, null);
+                    }
+                    return new Record(dueMillis, null, buffer.asReadOnlyBuffer());
+                }
+                final byte[] data = new byte[(int) header.length];
+                readFully(fc, ByteBuffer.wrap(data), header.offset);
+                if (header.hasChecksum && crc32(data, data.length) != header.checksum) {
+                    return new Record(dueMillis, null, null);
+                }
+                return new Record(dueMillis, data, null);
+            } catch (FileNotFoundException e) {
+                // removed by another thread after it was checked
+                return null;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                try {
+                    if (raf != null) {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private static long readDueMillis(final File file) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                return readHeader(raf.getChannel()).dueMillis;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return -1;
+            } finally {
+                try {
+                    if (raf != null) {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Read the header of cache file with a positioned read, supporting the legacy format.
+         */
+        private static Header readHeader(final FileChannel fc) throws IOException {
+            final long size = fc.size();
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LEN);
+            readFully(fc, buffer, 0);
+            buffer.flip();
+            final Header header = new Header();
+            if (buffer.remaining() == HEADER_LEN
+                    && buffer.getInt(0) == MAGIC
+                    && buffer.get(4) == VERSION
+                    && buffer.getInt(16) == size - HEADER_LEN) {
+                header.hasChecksum = (buffer.get(5) & FLAG_CHECKSUM) != 0;
+                header.compressed = (buffer.get(5) & FLAG_DEFLATE) != 0;
+                header.dueMillis = buffer.getLong(8);
+                header.checksum = buffer.getInt(20);
+                header.offset = HEADER_LEN;
+            } else if (hasLegacyTimeInfo(buffer)) {
+                header.dueMillis = getLegacyDueTime(buffer);
+                header.offset = LEGACY_HEADER_LEN;
+            }
+            header.length = size - header.offset;
+            return header;
+        }
+
+        private static void readFully(final FileChannel fc, final ByteBuffer dst, long position)
+                throws IOException {
+            while (dst.hasRemaining()) {
+                int read = fc.read(dst, position);
+                if (read < 0) return;
+                position += read;
+            }
+        }
+
+        private static boolean hasLegacyTimeInfo(final ByteBuffer header) {
+            return header.remaining() >= LEGACY_HEADER_LEN
+                    && header.get(0) == '_'
+                    && header.get(1) == '$'
+                    && header.get(12) == '$'
+                    && header.get(13) == '_';
+        }
+
+        private static long getLegacyDueTime(final ByteBuffer header) {
+            long seconds = 0;
+            for (int i = 2; i < 12; i++) {
+                int digit = header.get(i) - '0';
+                if (digit < 0 || digit > 9) return -1;
+                seconds = seconds * 10 + digit;
+            }
+            return seconds * 1000;
+        }
+
+        private static boolean writeFileFromBytes(final File file,
+                                                  final ByteBuffer header,
+                                                  final ByteBuffer payload) {
+            FileChannel fc = null;
+            try {
+                fc = new FileOutputStream(file, false).getChannel();
+                ByteBuffer[] buffers = {header, payload};
+                while (buffers[1].hasRemaining()) {
+                    fc.write(buffers);
+                }
+                fc.force(true);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                try {
+                    if (fc != null) {
+                        fc.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private static byte[] string2Bytes(final String string) {
+            if (string == null) return null;
+            return string.getBytes();
+        }
+
+        private static String bytes2String(final byte[] bytes) {
+            if (bytes == null) return null;
+            return new String(bytes);
+        }
+
+        private static byte[] jsonObject2Bytes(final JSONObject jsonObject) {
+            if (jsonObject == null) return null;
+            return jsonObject.toString().getBytes();
+        }
+
+        private static JSONObject bytes2JSONObject(final byte[] bytes) {
+            if (bytes == null) return null;
+            try {
+                return new JSONObject(new String(bytes));
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private static byte[] jsonArray2Bytes(final JSONArray jsonArray) {
+            if (jsonArray == null) return null;
+            return jsonArray.toString().getBytes();
+        }
+
+        private static JSONArray bytes2JSONArray(final byte[] bytes) {
+            if (bytes == null) return null;
+            try {
+                return new JSONArray(new String(bytes));
+            } catch (Exception e) {
+                e.printStackTrace();
                 return null;
             }
         }
@@ -763,11 +2482,575 @@ public final class CacheUtils {
                 return baos.toByteArray();
             } catch (Exception e) {
                 e.printStackTrace();
-                return null;
+                return null;
+            } finally {
+                try {
+                    if (oos != null) {
+                        oos.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private static Object bytes2Object(final byte[] bytes) {
+            if (bytes == null) return null;
+            ObjectInputStream ois = null;
+            try {
+                ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                return ois.readObject();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                try {
+                    if (ois != null) {
+                        ois.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private static byte[] bitmap2Bytes(final Bitmap bitmap) {
+            if (bitmap == null) return null;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
+            return baos.toByteArray();
+        }
+
+        private static Bitmap bytes2Bitmap(final byte[] bytes) {
+            return (bytes == null || bytes.length <= 0)
+                    ? null
+                    : BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        }
+
+        private static byte[] drawable2Bytes(final Drawable drawable) {
+            return drawable == null ? null : bitmap2Bytes(drawable2Bitmap(drawable));
+        }
+
+        private static Drawable bytes2Drawable(final byte[] bytes) {
+            return bytes == null ? null : bitmap2Drawable(bytes2Bitmap(bytes));
+        }
+
+        private static Bitmap drawable2Bitmap(final Drawable drawable) {
+            if (drawable instanceof BitmapDrawable) {
+                BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
+                if (bitmapDrawable.getBitmap() != null) {
+                    return bitmapDrawable.getBitmap();
+                }
+            }
+            Bitmap bitmap;
+            if (drawable.getIntrinsicWidth() <= 0 || drawable.getIntrinsicHeight() <= 0) {
+                bitmap = Bitmap.createBitmap(
+                        1,
+                        1,
+                        drawable.getOpacity() != PixelFormat.OPAQUE
+                                ? Bitmap.Config.ARGB_8888
+                                : Bitmap.Config.RGB_565
+                );
+            } else {
+                bitmap = Bitmap.createBitmap(
+                        drawable.getIntrinsicWidth(),
+                        drawable.getIntrinsicHeight(),
+                        drawable.getOpacity() != PixelFormat.OPAQUE
+                                ? Bitmap.Config.ARGB_8888
+                                : Bitmap.Config.RGB_565
+                );
+            }
+            Canvas canvas = new Canvas(bitmap);
+            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+            drawable.draw(canvas);
+            return bitmap;
+        }
+
+        private static Drawable bitmap2Drawable(final Bitmap bitmap) {
+            return bitmap == null
+                    ? null
+                    : new BitmapDrawable(Utils.getApp().getResources(), bitmap);
+        }
+    }
+
+    private static class BitmapHelper {
+
+        /**
+         * The raw bitmap, written in big-endian.
+         * <pre>
+         *     0  magic  int
+         *     4  width  int
+         *     8  height int
+         *     12 config byte, 1 ALPHA_8, 2 RGB_565, 3 ARGB_4444, 4 ARGB_8888
+         *     13 reserved
+         *     16 pixels
+         * </pre>
+         */
+        static final int RAW_HEADER_LEN = 16;
+        static final int RAW_MAGIC = 0xCAC4B17A;
+
+        private static boolean isRawBitmap(final byte[] bytes) {
+            return bytes.length >= RAW_HEADER_LEN
+                    && ByteBuffer.wrap(bytes).getInt(0) == RAW_MAGIC;
+        }
+
+        private static byte[] encodeRaw(final Bitmap bitmap) {
+            if (bitmap == null || bitmap.isRecycled()) return null;
+            final byte config = config2Byte(bitmap.getConfig());
+            if (config == 0) return CacheHelper.bitmap2Bytes(bitmap);
+            final ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_LEN + bitmap.getByteCount());
+            buffer.putInt(RAW_MAGIC)
+                    .putInt(bitmap.getWidth())
+                    .putInt(bitmap.getHeight())
+                    .put(config);
+            buffer.position(RAW_HEADER_LEN);
+            bitmap.copyPixelsToBuffer(buffer);
+            return buffer.array();
+        }
+
+        private static Bitmap decodeRaw(final byte[] bytes, final BitmapPool bitmapPool) {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            final int width = buffer.getInt(4);
+            final int height = buffer.getInt(8);
+            final Bitmap.Config config = byte2Config(buffer.get(12));
+            if (width <= 0 || height <= 0 || config == null) return null;
+            buffer.position(RAW_HEADER_LEN);
+            Bitmap bitmap = bitmapPool == null ? null : bitmapPool.get(buffer.remaining());
+            if (bitmap != null) {
+                try {
+                    bitmap.reconfigure(width, height, config);
+                } catch (IllegalArgumentException e) {
+                    bitmap = null;
+                }
+            }
+            if (bitmap == null) bitmap = Bitmap.createBitmap(width, height, config);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        }
+
+        private static Bitmap decodeSampled(final byte[] bytes,
+                                            final int reqWidth,
+                                            final int reqHeight,
+                                            final BitmapPool bitmapPool) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+            int sampleSize = 1;
+            int width = options.outWidth;
+            int height = options.outHeight;
+            while ((width >>= 1) >= reqWidth && (height >>= 1) >= reqHeight) {
+                sampleSize <<= 1;
+            }
+            options.inSampleSize = sampleSize;
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            if (bitmapPool != null) {
+                // round up, the decoders differ in rounding the sampled size
+                final long byteCount = 4L
+                        * ((options.outWidth + sampleSize - 1) / sampleSize)
+                        * ((options.outHeight + sampleSize - 1) / sampleSize);
+                if (byteCount <= Integer.MAX_VALUE) {
+                    options.inBitmap = bitmapPool.get((int) byteCount);
+                }
+            }
+            if (options.inBitmap != null) {
+                try {
+                    return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+                } catch (IllegalArgumentException e) {
+                    // the pooled bitmap can't be reused, decode into a new one
+                    bitmapPool.put(options.inBitmap);
+                    options.inBitmap = null;
+                }
+            }
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+
+        private static byte config2Byte(final Bitmap.Config config) {
+            if (config == null) return 0;
+            switch (config) {
+                case ALPHA_8:
+                    return 1;
+                case RGB_565:
+                    return 2;
+                case ARGB_4444:
+                    return 3;
+                case ARGB_8888:
+                    return 4;
+                default:
+                    return 0;
+            }
+        }
+
+        private static Bitmap.Config byte2Config(final byte config) {
+            switch (config) {
+                case 1:
+                    return Bitmap.Config.ALPHA_8;
+                case 2:
+                    return Bitmap.Config.RGB_565;
+                case 3:
+                    return Bitmap.Config.ARGB_4444;
+                case 4:
+                    return Bitmap.Config.ARGB_8888;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static final class MemoryEntry {
+        final byte[] data;
+        final long dueMillis;
+
+        MemoryEntry(final byte[] data, final long dueMillis) {
+            this.data = data;
+            this.dueMillis = dueMillis;
+        }
+
+        boolean isDue() {
+            return dueMillis != -1 && System.currentTimeMillis() > dueMillis;
+        }
+    }
+
+    private static final class MemoryCache extends LruCache<String, MemoryEntry> {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        MemoryCache(final int maxSize) {
+            super(maxSize);
+        }
+
+        private MemoryEntry getEntry(final String name) {
+            final MemoryEntry entry = get(name);
+            if (entry == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return entry;
+        }
+
+        private void put(final String name, final byte[] data, final long dueMillis) {
+            put(name, new MemoryEntry(data, dueMillis));
+        }
+
+        @Override
+        protected int sizeOf(final String key, final MemoryEntry value) {
+            return value.data.length;
+        }
+    }
+
+    private static final class Usage {
+        final File file;
+        final long size;
+        final long dueMillis;
+        long millis;
+        // set once the usage is replaced or removed from the index
+        volatile boolean removed;
+
+        Usage(final File file, final long size, final long dueMillis, final long millis) {
+            this.file = file;
+            this.size = size;
+            this.dueMillis = dueMillis;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * The expiry index of cache files, ordered by due time.
+     * <p>Usages which are replaced or removed stay until they are polled.</p>
+     */
+    private static final class ExpiryIndex {
+        private final PriorityQueue<Usage> queue = new PriorityQueue<>(16, new Comparator<Usage>() {
+            @Override
+            public int compare(Usage o1, Usage o2) {
+                return o1.dueMillis < o2.dueMillis ? -1 : (o1.dueMillis == o2.dueMillis ? 0 : 1);
+            }
+        });
+
+        synchronized void add(final Usage usage, final int count) {
+            if (usage.dueMillis == -1) return;
+            queue.offer(usage);
+            if (queue.size() > 1024 && queue.size() > 2 * count) {
+                // drop the usages which were replaced or removed
+                final Iterator<Usage> iterator = queue.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().removed) iterator.remove();
+                }
+            }
+        }
+
+        synchronized Usage pollDue(final long now) {
+            final Usage usage = queue.peek();
+            if (usage == null || usage.dueMillis > now) return null;
+            return queue.poll();
+        }
+
+        synchronized void clear() {
+            queue.clear();
+        }
+    }
+
+    /**
+     * The usage index of cache files, split into access-ordered stripes so that
+     * touching and evicting is O(1) and only locks a single stripe.
+     */
+    private static final class UsageIndex {
+        private static final int STRIPES = 16;
+        private final LinkedHashMap<File, Usage>[] stripes;
+
+        @SuppressWarnings("unchecked")
+        UsageIndex() {
+            stripes = new LinkedHashMap[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new LinkedHashMap<>(16, 0.75f, true);
+            }
+        }
+
+        private LinkedHashMap<File, Usage> stripeOf(final File file) {
+            int h = file.hashCode();
+            h ^= h >>> 16;
+            return stripes[h & (STRIPES - 1)];
+        }
+
+        /**
+         * Index the usage, replacing the one of its file.
+         *
+         * @return the replaced usage, null if the file wasn't indexed
+         */
+        Usage put(final Usage usage) {
+            final LinkedHashMap<File, Usage> stripe = stripeOf(usage.file);
+            synchronized (stripe) {
+                final Usage old = stripe.put(usage.file, usage);
+                if (old != null) old.removed = true;
+                return old;
+            }
+        }
+
+        /**
+         * Index the usage only if its file isn't indexed yet.
+         *
+         * @return {@code true}: indexed<br>{@code false}: the file is indexed already
+         */
+        boolean putIfAbsent(final Usage usage) {
+            final LinkedHashMap<File, Usage> stripe = stripeOf(usage.file);
+            synchronized (stripe) {
+                if (stripe.containsKey(usage.file)) return false;
+                stripe.put(usage.file, usage);
+                return true;
+            }
+        }
+
+        boolean contains(final File file) {
+            final LinkedHashMap<File, Usage> stripe = stripeOf(file);
+            synchronized (stripe) {
+                return stripe.containsKey(file);
+            }
+        }
+
+        boolean touch(final File file, final long millis) {
+            final LinkedHashMap<File, Usage> stripe = stripeOf(file);
+            synchronized (stripe) {
+                final Usage usage = stripe.get(file);
+                if (usage == null) return false;
+                usage.millis = millis;
+                return true;
+            }
+        }
+
+        /**
+         * Remove the usage of file.
+         *
+         * @return the removed usage, null if the file wasn't indexed
+         */
+        Usage remove(final File file) {
+            final LinkedHashMap<File, Usage> stripe = stripeOf(file);
+            synchronized (stripe) {
+                final Usage old = stripe.remove(file);
+                if (old != null) old.removed = true;
+                return old;
+            }
+        }
+
+        /**
+         * Remove the usage only if it is still the one indexed for its file.
+         *
+         * @return {@code true}: removed<br>{@code false}: it was replaced or removed already
+         */
+        boolean remove(final Usage usage) {
+            final LinkedHashMap<File, Usage> stripe = stripeOf(usage.file);
+            synchronized (stripe) {
+                if (stripe.get(usage.file) != usage) return false;
+                stripe.remove(usage.file);
+                usage.removed = true;
+                return true;
+            }
+        }
+
+        void clear() {
+            for (LinkedHashMap<File, Usage> stripe : stripes) {
+                synchronized (stripe) {
+                    for (Usage usage : stripe.values()) {
+                        usage.removed = true;
+                    }
+                    stripe.clear();
+                }
+            }
+        }
+
+        /**
+         * Return a copy of all usages, from the least recently used.
+         */
+        List<Usage> snapshot() {
+            final List<Usage> usages = new ArrayList<>();
+            for (LinkedHashMap<File, Usage> stripe : stripes) {
+                synchronized (stripe) {
+                    for (Usage usage : stripe.values()) {
+                        usages.add(new Usage(
+                                usage.file, usage.size, usage.dueMillis, usage.millis
+                        ));
+                    }
+                }
+            }
+            Collections.sort(usages, new Comparator<Usage>() {
+                @Override
+                public int compare(Usage o1, Usage o2) {
+                    return o1.millis < o2.millis ? -1 : (o1.millis == o2.millis ? 0 : 1);
+                }
+            });
+            return usages;
+        }
+
+        /**
+         * Return the least recently used file, comparing only the eldest of each stripe.
+         * <p>It stays in the index, the caller claims it by {@link #remove(Usage)}
+         * under the lock of its key.</p>
+         *
+         * @return the least recently used file, null if the index is empty
+         */
+        Usage peekOldest() {
+            Usage oldest = null;
+            for (LinkedHashMap<File, Usage> stripe : stripes) {
+                synchronized (stripe) {
+                    if (stripe.isEmpty()) continue;
+                    Usage eldest = stripe.values().iterator().next();
+                    if (oldest == null || eldest.millis < oldest.millis) {
+                        oldest = eldest;
+                    }
+                }
+            }
+            return oldest;
+        }
+    }
+
+    /**
+     * The append-only journal of cache files, replayed at startup instead of
+     * scanning the cache directory.
+     * <pre>
+     *     CacheUtils.journal
+     *     1
+     *
+     *     D 1208927745
+     *     P 1208927745 2342 1528170000000 1528173600000
+     *     T 1208927745 1528170001000
+     *     R 1208927745
+     * </pre>
+     * Each line marks a file dirty before it is replaced, puts a file with its size, usage and
+     * optional due time, touches a file with its usage, or removes a file. A dirty file without
+     * a following put or remove is checked on the disk when replayed. The journal is compacted
+     * once it holds mostly redundant lines.
+     */
+    private static final class Journal {
+        private static final String JOURNAL_FILE = "journal";
+        private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+        private static final String MAGIC = "CacheUtils.journal";
+        private static final String VERSION = "1";
+        private static final String PUT = "P";
+        private static final String TOUCH = "T";
+        private static final String REMOVE = "R";
+        private static final String DIRTY = "D";
+        private static final int COMPACT_THRESHOLD = 2000;
+        private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+        private final File journalFile;
+        private final File journalFileTemp;
+        private Writer writer;
+        private List<String> pending = new ArrayList<>();
+        private int opCount;
+        private boolean truncated;
+
+        Journal(final File cacheDir) {
+            journalFile = new File(cacheDir, JOURNAL_FILE);
+            journalFileTemp = new File(cacheDir, JOURNAL_FILE_TEMP);
+        }
+
+        static boolean isJournalFile(final File file) {
+            return file.getName().startsWith(JOURNAL_FILE);
+        }
+
+        /**
+         * Replay the journal in a single sequential read.
+         * <p>A partial last line, left by a crash while appending, is dropped and
+         * the journal is marked {@link #isTruncated() truncated}.</p>
+         *
+         * @param usages The usages of cache files, from the least recently used.
+         * @return {@code true}: success<br>{@code false}: the journal is missing or corrupt
+         */
+        boolean read(final Map<String, Usage> usages) {
+            if (!journalFile.exists()) return false;
+            final File cacheDir = journalFile.getParentFile();
+            BufferedReader reader = null;
+            try {
+                final boolean terminated = endsWithNewline();
+                reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(journalFile), US_ASCII), 8192);
+                if (!MAGIC.equals(reader.readLine())
+                        || !VERSION.equals(reader.readLine())
+                        || !"".equals(reader.readLine())) {
+                    return false;
+                }
+                final Set<String> dirty = new HashSet<>();
+                int lineCount = 0;
+                String line = reader.readLine();
+                while (line != null) {
+                    final String next = reader.readLine();
+                    if (next == null && !terminated) {
+                        truncated = true;
+                        break;
+                    }
+                    if (!replay(line, usages, dirty, cacheDir)) {
+                        if (next != null) return false;
+                        truncated = true;
+                        break;
+                    }
+                    lineCount++;
+                    line = next;
+                }
+                // the put record of a dirty file may be lost, so its usage is stale
+                final List<String> fixed = new ArrayList<>();
+                for (String name : dirty) {
+                    final File file = new File(cacheDir, name);
+                    if (file.exists()) {
+                        final Usage usage = new Usage(file, file.length(),
+                                CacheHelper.readDueMillis(file), file.lastModified());
+                        usages.put(name, usage);
+                        fixed.add(putLine(usage));
+                    } else if (usages.remove(name) != null) {
+                        fixed.add(REMOVE + " " + name);
+                    }
+                }
+                synchronized (this) {
+                    opCount = lineCount;
+                    if (pending != null) pending.addAll(0, fixed);
+                }
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
             } finally {
                 try {
-                    if (oos != null) {
-                        oos.close();
+                    if (reader != null) {
+                        reader.close();
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -775,94 +3058,233 @@ public final class CacheUtils {
             }
         }
 
-        private static Object bytes2Object(final byte[] bytes) {
-            if (bytes == null) return null;
-            ObjectInputStream ois = null;
+        private static boolean replay(final String line,
+                                      final Map<String, Usage> usages,
+                                      final Set<String> dirty,
+                                      final File cacheDir) {
+            final String[] parts = line.split(" ");
             try {
-                ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
-                return ois.readObject();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
+                if (DIRTY.equals(parts[0]) && parts.length == 2) {
+                    dirty.add(parts[1]);
+                } else if (PUT.equals(parts[0]) && (parts.length == 4 || parts.length == 5)) {
+                    dirty.remove(parts[1]);
+                    usages.put(parts[1], new Usage(
+                            new File(cacheDir, parts[1]),
+                            Long.parseLong(parts[2]),
+                            parts.length == 5 ? Long.parseLong(parts[4]) : -1,
+                            Long.parseLong(parts[3])
+                    ));
+                } else if (TOUCH.equals(parts[0]) && parts.length == 3) {
+                    final Usage usage = usages.get(parts[1]);
+                    if (usage != null) usage.millis = Long.parseLong(parts[2]);
+                } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+                    dirty.remove(parts[1]);
+                    usages.remove(parts[1]);
+                } else {
+                    return false;
+                }
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private boolean endsWithNewline() throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+            try {
+                final long length = raf.length();
+                if (length == 0) return false;
+                raf.seek(length - 1);
+                return raf.read() == '\n';
             } finally {
-                try {
-                    if (ois != null) {
-                        ois.close();
+                raf.close();
+            }
+        }
+
+        /**
+         * Return whether a partial last line was dropped by {@link #read(Map)}, the journal
+         * must be rebuilt then, as the next record would be appended to that line.
+         */
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Open the journal for appending, and write the records made while it was replayed.
+         */
+        synchronized void open() {
+            if (pending == null) return;// already rebuilt or disabled
+            try {
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journalFile, true), US_ASCII));
+                for (String line : pending) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                writer.flush();
+                pending = null;
+            } catch (IOException e) {
+                e.printStackTrace();
+                disable();
+            }
+        }
+
+        /**
+         * Rewrite the journal with only the given usages, the caller must hold the lock
+         * of journal while taking the usages so that no record is lost.
+         *
+         * @param usages The usages of cache files, from the least recently used.
+         */
+        synchronized void rebuild(final List<Usage> usages) {
+            closeWriter();
+            Writer tempWriter = null;
+            try {
+                tempWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journalFileTemp, false), US_ASCII));
+                tempWriter.write(MAGIC + "\n" + VERSION + "\n\n");
+                for (Usage usage : usages) {
+                    tempWriter.write(putLine(usage));
+                    tempWriter.write('\n');
+                }
+                tempWriter.close();
+                tempWriter = null;
+                if (!journalFileTemp.renameTo(journalFile)) {
+                    throw new IOException("can't rename " + journalFileTemp);
+                }
+                opCount = usages.size();
+                // the records made while replaying are part of the usages already
+                pending = null;
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journalFile, true), US_ASCII));
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (tempWriter != null) {
+                    try {
+                        tempWriter.close();
+                    } catch (IOException ignore) {
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
+                disable();
             }
         }
 
-        private static byte[] bitmap2Bytes(final Bitmap bitmap) {
-            if (bitmap == null) return null;
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-            return baos.toByteArray();
+        /**
+         * Append the record.
+         *
+         * @return {@code true}: the journal should be compacted<br>{@code false}: otherwise
+         */
+        synchronized boolean append(final String line, final boolean flush, final int count) {
+            if (writer == null) {
+                if (pending != null) pending.add(line);
+                return false;
+            }
+            try {
+                writer.write(line);
+                writer.write('\n');
+                if (flush) writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                disable();
+                return false;
+            }
+            ++opCount;
+            return opCount >= COMPACT_THRESHOLD && opCount >= 2 * count;
         }
 
-        private static Bitmap bytes2Bitmap(final byte[] bytes) {
-            return (bytes == null || bytes.length <= 0)
-                    ? null
-                    : BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        boolean put(final Usage usage, final int count) {
+            return put(usage, count, true);
         }
 
-        private static byte[] drawable2Bytes(final Drawable drawable) {
-            return drawable == null ? null : bitmap2Bytes(drawable2Bitmap(drawable));
+        boolean put(final Usage usage, final int count, final boolean flush) {
+            return append(putLine(usage), flush, count);
         }
 
-        private static Drawable bytes2Drawable(final byte[] bytes) {
-            return bytes == null ? null : bitmap2Drawable(bytes2Bitmap(bytes));
+        private static String putLine(final Usage usage) {
+            final String line = PUT + " " + usage.file.getName()
+                    + " " + usage.size + " " + usage.millis;
+            return usage.dueMillis == -1 ? line : line + " " + usage.dueMillis;
         }
 
-        private static Bitmap drawable2Bitmap(final Drawable drawable) {
-            if (drawable instanceof BitmapDrawable) {
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
-                if (bitmapDrawable.getBitmap() != null) {
-                    return bitmapDrawable.getBitmap();
-                }
-            }
-            Bitmap bitmap;
-            if (drawable.getIntrinsicWidth() <= 0 || drawable.getIntrinsicHeight() <= 0) {
-                bitmap = Bitmap.createBitmap(
-                        1,
-                        1,
-                        drawable.getOpacity() != PixelFormat.OPAQUE
-                                ? Bitmap.Config.ARGB_8888
-                                : Bitmap.Config.RGB_565
-                );
-            } else {
-                bitmap = Bitmap.createBitmap(
-                        drawable.getIntrinsicWidth(),
-                        drawable.getIntrinsicHeight(),
-                        drawable.getOpacity() != PixelFormat.OPAQUE
-                                ? Bitmap.Config.ARGB_8888
-                                : Bitmap.Config.RGB_565
-                );
+        /**
+         * Append the touch record to the buffer, it is written along with the next put
+         * or remove, and it never compacts the journal, so reads don't stall on it.
+         */
+        void touch(final File file, final long millis) {
+            append(TOUCH + " " + file.getName() + " " + millis, false, 0);
+        }
+
+        boolean remove(final File file, final int count) {
+            return remove(file, count, true);
+        }
+
+        boolean remove(final File file, final int count, final boolean flush) {
+            return append(REMOVE + " " + file.getName(), flush, count);
+        }
+
+        void dirty(final File file) {
+            dirty(file, true);
+        }
+
+        void dirty(final File file, final boolean flush) {
+            append(DIRTY + " " + file.getName(), flush, 0);
+        }
+
+        /**
+         * Write the buffered records, a batch appends its records without flushing
+         * and flushes once at the end.
+         */
+        synchronized void flush() {
+            if (writer == null) return;
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                disable();
             }
-            Canvas canvas = new Canvas(bitmap);
-            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-            drawable.draw(canvas);
-            return bitmap;
         }
 
-        private static Drawable bitmap2Drawable(final Bitmap bitmap) {
-            return bitmap == null
-                    ? null
-                    : new BitmapDrawable(Utils.getApp().getResources(), bitmap);
+        /**
+         * Stop journaling, the next start will fall back to scanning the cache directory.
+         */
+        private void disable() {
+            closeWriter();
+            pending = null;
+            journalFile.delete();
+        }
+
+        private void closeWriter() {
+            if (writer == null) return;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writer = null;
         }
     }
 
     private class CacheManager {
+        private static final String TEMP_DIR = "tmp";
+        private static final int KEY_LOCKS = 32;
         private final AtomicLong cacheSize;
         private final AtomicInteger cacheCount;
         private final long sizeLimit;
         private final int countLimit;
-        private final Map<File, Long> lastUsageDates
-                = Collections.synchronizedMap(new HashMap<File, Long>());
+        private final UsageIndex lastUsageDates = new UsageIndex();
+        private final ExpiryIndex expiryIndex = new ExpiryIndex();
+        private final AtomicLong sweptSize = new AtomicLong();
         private final File cacheDir;
+        private final Journal journal;
+        private final File tempDir;
+        private final AtomicLong tempCount = new AtomicLong();
+        private final Object[] keyLocks = new Object[KEY_LOCKS];
+        private final Object mLoadLock = new Object();
+        private final AtomicBoolean mCompacting = new AtomicBoolean();
         private final Thread mThread;
+        private volatile boolean mLoaded;
+        // the files mutated before the journal is loaded, whose replayed usages are stale
+        private Set<String> mEarlyNames = new HashSet<>();
+        private boolean mClearedEarly;
 
         private CacheManager(final File cacheDir, final long sizeLimit, final int countLimit) {
             this.cacheDir = cacheDir;
@@ -870,131 +3292,451 @@ public final class CacheUtils {
             this.countLimit = countLimit;
             cacheSize = new AtomicLong();
             cacheCount = new AtomicInteger();
+            journal = new Journal(cacheDir);
+            for (int i = 0; i < KEY_LOCKS; i++) {
+                keyLocks[i] = new Object();
+            }
+            tempDir = new File(cacheDir, TEMP_DIR);
+            deleteTempFiles();
             mThread = new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    int size = 0;
-                    int count = 0;
-                    final File[] cachedFiles = cacheDir.listFiles();
-                    if (cachedFiles != null) {
-                        for (File cachedFile : cachedFiles) {
-                            size += cachedFile.length();
-                            count += 1;
-                            lastUsageDates.put(cachedFile, cachedFile.lastModified());
+                    final Map<String, Usage> usages = new LinkedHashMap<>(16, 0.75f, true);
+                    if (journal.read(usages)) {
+                        load(usages.values());
+                        if (journal.isTruncated()) {
+                            compactJournal();
+                        } else {
+                            journal.open();
                         }
-                        cacheSize.getAndAdd(size);
-                        cacheCount.getAndAdd(count);
+                    } else {
+                        load(scan());
+                        compactJournal();
                     }
                 }
             });
             mThread.start();
         }
 
-        private long getCacheSize() {
+        /**
+         * Wait for the usages to be loaded, only the counters need it, mutations
+         * made before are journaled and win over the replayed usages.
+         */
+        private void awaitLoaded() {
+            if (mLoaded) return;
             try {
                 mThread.join();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+        }
+
+        /**
+         * Index the loaded usages, except the ones of files mutated meanwhile.
+         * <p>The journal is trusted, the files deleted behind it are forgotten once they are
+         * looked up or evicted, and the files it missed are indexed once they are read,
+         * replaced or removed.</p>
+         */
+        private void load(final Collection<Usage> usages) {
+            synchronized (mLoadLock) {
+                long size = 0;
+                int count = 0;
+                if (!mClearedEarly) {
+                    for (Usage usage : usages) {
+                        if (mEarlyNames.contains(usage.file.getName())) continue;
+                        lastUsageDates.put(usage);
+                        size += usage.size;
+                        count += 1;
+                        expiryIndex.add(usage, count);
+                    }
+                }
+                cacheSize.getAndAdd(size);
+                cacheCount.getAndAdd(count);
+                mEarlyNames = null;
+                mLoaded = true;
+            }
+        }
+
+        /**
+         * Mark the file as mutated, so that its replayed usage isn't loaded.
+         */
+        private void markEarly(final String name) {
+            if (mLoaded) return;
+            synchronized (mLoadLock) {
+                if (!mLoaded) mEarlyNames.add(name);
+            }
+        }
+
+        /**
+         * Scan the cache directory, only used when the journal is missing or corrupt.
+         *
+         * @return the usages of cache files, from the least recently used
+         */
+        private List<Usage> scan() {
+            final List<Usage> usages = new ArrayList<>();
+            final File[] cachedFiles = cacheDir.listFiles();
+            if (cachedFiles == null) return usages;
+            for (File cachedFile : cachedFiles) {
+                if (!isCacheFile(cachedFile)) continue;
+                usages.add(new Usage(
+                        cachedFile,
+                        cachedFile.length(),
+                        CacheHelper.readDueMillis(cachedFile),
+                        cachedFile.lastModified()
+                ));
+            }
+            Collections.sort(usages, new Comparator<Usage>() {
+                @Override
+                public int compare(Usage o1, Usage o2) {
+                    return o1.millis < o2.millis ? -1 : (o1.millis == o2.millis ? 0 : 1);
+                }
+            });
+            return usages;
+        }
+
+        private long getCacheSize() {
+            awaitLoaded();
             return cacheSize.get();
         }
 
         private int getCacheCount() {
-            try {
-                mThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            awaitLoaded();
             return cacheCount.get();
         }
 
-        private File getFileBeforePut(final String key) {
-            File file = new File(cacheDir, String.valueOf(key.hashCode()));
-            if (file.exists()) {
-                cacheCount.addAndGet(-1);
-                cacheSize.addAndGet(-file.length());
+        private String getFileName(final String key) {
+            return String.valueOf(key.hashCode());
+        }
+
+        private boolean isCacheFile(final File file) {
+            return !Journal.isJournalFile(file) && !TEMP_DIR.equals(file.getName());
+        }
+
+        private File newTempFile(final String key) throws IOException {
+            if (!tempDir.exists() && !tempDir.mkdirs()) {
+                throw new IOException("can't make dirs in " + tempDir.getAbsolutePath());
+            }
+            return new File(tempDir, getFileName(key) + "-" + tempCount.incrementAndGet());
+        }
+
+        /**
+         * Delete the temp files left by the streams which were never closed.
+         */
+        private void deleteTempFiles() {
+            final File[] tempFiles = tempDir.listFiles();
+            if (tempFiles == null) return;
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
             }
-            return file;
         }
 
         private File getFileIfExists(final String key) {
-            File file = new File(cacheDir, String.valueOf(key.hashCode()));
-            if (!file.exists()) return null;
+            File file = new File(cacheDir, getFileName(key));
+            if (!file.exists()) {
+                forget(file);
+                return null;
+            }
             return file;
         }
 
-        private void put(final File file) {
+        /**
+         * Forget the file if it was deleted behind the cache.
+         */
+        private void forget(final File file) {
+            if (!lastUsageDates.contains(file)) return;
+            synchronized (lockOf(file.getName())) {
+                if (file.exists()) return;
+                final Usage old = lastUsageDates.remove(file);
+                if (old == null) return;
+                cacheSize.addAndGet(-old.size);
+                cacheCount.addAndGet(-1);
+                removeFromMemory(file);
+                if (journal.remove(file, cacheCount.get())) requestCompact();
+            }
+        }
+
+        /**
+         * Index the file which was missed by the journal, once it is read.
+         */
+        private void adopt(final File file, final long millis) {
+            synchronized (lockOf(file.getName())) {
+                if (!file.exists()) return;
+                final Usage usage = new Usage(
+                        file, file.length(), CacheHelper.readDueMillis(file), millis
+                );
+                if (!lastUsageDates.putIfAbsent(usage)) return;
+                cacheCount.addAndGet(1);
+                cacheSize.addAndGet(usage.size);
+                expiryIndex.add(usage, cacheCount.get());
+                if (journal.put(usage, cacheCount.get())) requestCompact();
+            }
+        }
+
+        private Object lockOf(final String name) {
+            return keyLocks[name.hashCode() & (KEY_LOCKS - 1)];
+        }
+
+        /**
+         * Replace the cache file of key by the temp file atomically, so that
+         * readers see either the old value or the new one.
+         *
+         * @param key       The key of cache.
+         * @param tempFile  The temp file of value.
+         * @param data      The value to put in memory cache, null to remove it from memory cache.
+         * @param dueMillis The due time of value, in milliseconds.
+         * @return {@code true}: success<br>{@code false}: fail
+         */
+        private boolean publish(final String key,
+                                final File tempFile,
+                                final byte[] data,
+                                final long dueMillis) {
+            final String name = getFileName(key);
+            final File file = new File(cacheDir, name);
+            markEarly(name);
+            final boolean published;
+            synchronized (lockOf(name)) {
+                journal.dirty(file);
+                published = install(file, tempFile, data, dueMillis, true);
+            }
+            // evict out of the key lock, the oldest file is locked by its own key
+            trimToLimits();
+            return published;
+        }
+
+        /**
+         * Publish the staged values of a batch, the journal is flushed once for
+         * the dirty records before the renames and once for the put records after.
+         */
+        private void publishAll(final List<Staged> batch) {
+            final List<File> files = new ArrayList<>(batch.size());
+            for (Staged staged : batch) {
+                final String name = getFileName(staged.key);
+                markEarly(name);
+                final File file = new File(cacheDir, name);
+                journal.dirty(file, false);
+                files.add(file);
+            }
+            journal.flush();
+            for (int i = 0; i < files.size(); i++) {
+                final Staged staged = batch.get(i);
+                final File file = files.get(i);
+                synchronized (lockOf(file.getName())) {
+                    install(file, staged.tempFile, staged.data, staged.dueMillis, false);
+                }
+            }
+            journal.flush();
+            trimToLimits();
+        }
+
+        /**
+         * Rename the temp file to the cache file and index it, the caller holds the lock of key
+         * and has journaled the file as dirty.
+         */
+        private boolean install(final File file,
+                                final File tempFile,
+                                final byte[] data,
+                                final long dueMillis,
+                                final boolean flush) {
+            final String name = file.getName();
+            final long fileSize = tempFile.length();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return false;
+            }
+            final Usage usage = new Usage(file, fileSize, dueMillis, System.currentTimeMillis());
+            // the replaced file is only counted if it was indexed
+            final Usage old = lastUsageDates.put(usage);
+            if (old != null) {
+                cacheCount.addAndGet(-1);
+                cacheSize.addAndGet(-old.size);
+            }
             cacheCount.addAndGet(1);
-            cacheSize.addAndGet(file.length());
+            cacheSize.addAndGet(fileSize);
+            expiryIndex.add(usage, cacheCount.get());
+            final MemoryCache memoryCache = mMemoryCache;
+            if (memoryCache != null) {
+                if (data == null) {
+                    memoryCache.remove(name);
+                } else {
+                    memoryCache.put(name, data, dueMillis);
+                }
+            }
+            if (journal.put(usage, cacheCount.get(), flush)) requestCompact();
+            return true;
+        }
+
+        private void trimToLimits() {
             while (cacheCount.get() > countLimit || cacheSize.get() > sizeLimit) {
-                cacheSize.addAndGet(-removeOldest());
-                cacheCount.addAndGet(-1);
+                if (!removeOldest()) break;
             }
         }
 
         private void updateModify(final File file) {
-            Long millis = System.currentTimeMillis();
+            long millis = System.currentTimeMillis();
             file.setLastModified(millis);
-            lastUsageDates.put(file, millis);
+            touch(file, millis);
+        }
+
+        /**
+         * Refresh the usage of file served by the memory cache, without touching the disk.
+         * <p>Only the usage index is updated, the journal catches up when it is compacted.</p>
+         */
+        private void touch(final String name) {
+            lastUsageDates.touch(new File(cacheDir, name), System.currentTimeMillis());
+        }
+
+        private void touch(final File file, final long millis) {
+            if (lastUsageDates.touch(file, millis)) {
+                journal.touch(file, millis);
+            } else if (mLoaded) {
+                adopt(file, millis);
+            }
+        }
+
+        private void compactJournal() {
+            synchronized (journal) {
+                journal.rebuild(lastUsageDates.snapshot());
+            }
+        }
+
+        /**
+         * Compact the journal on the io pool, so that the put or remove which filled it
+         * doesn't rewrite it under the lock of its key.
+         */
+        private void requestCompact() {
+            if (!mCompacting.compareAndSet(false, true)) return;
+            getIoPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCompacting.set(false);
+                    compactJournal();
+                }
+            });
+        }
+
+        private void removeFromMemory(final File file) {
+            final MemoryCache memoryCache = mMemoryCache;
+            if (memoryCache != null) memoryCache.remove(file.getName());
         }
 
         private boolean removeByKey(final String key) {
-            File file = getFileIfExists(key);
-            if (file == null) return true;
-            if (!file.delete()) return false;
-            cacheSize.addAndGet(-file.length());
-            cacheCount.addAndGet(-1);
-            lastUsageDates.remove(file);
-            return true;
+            return removeByKey(key, true);
+        }
+
+        /**
+         * Remove the cache file of key.
+         *
+         * @param flush False to leave the remove record in the buffer of journal,
+         *              a batch flushes the journal once at the end.
+         */
+        private boolean removeByKey(final String key, final boolean flush) {
+            final String name = getFileName(key);
+            markEarly(name);
+            synchronized (lockOf(name)) {
+                final MemoryCache memoryCache = mMemoryCache;
+                if (memoryCache != null) memoryCache.remove(name);
+                final File file = new File(cacheDir, name);
+                final boolean exists = file.exists();
+                if (exists && !file.delete()) return false;
+                final Usage old = lastUsageDates.remove(file);
+                if (old != null) {
+                    cacheSize.addAndGet(-old.size);
+                    cacheCount.addAndGet(-1);
+                }
+                if ((exists || old != null) && journal.remove(file, cacheCount.get(), flush)) {
+                    requestCompact();
+                }
+                return true;
+            }
         }
 
         private boolean clear() {
+            synchronized (mLoadLock) {
+                // the replayed usages are all gone
+                if (!mLoaded) mClearedEarly = true;
+            }
+            final MemoryCache memoryCache = mMemoryCache;
+            if (memoryCache != null) memoryCache.evictAll();
             File[] files = cacheDir.listFiles();
             if (files == null || files.length <= 0) return true;
             boolean flag = true;
             for (File file : files) {
+                if (!isCacheFile(file)) continue;
                 if (!file.delete()) {
                     flag = false;
                     continue;
                 }
-                cacheSize.addAndGet(-file.length());
-                cacheCount.addAndGet(-1);
-                lastUsageDates.remove(file);
+                final Usage old = lastUsageDates.remove(file);
+                if (old != null) {
+                    cacheSize.addAndGet(-old.size);
+                    cacheCount.addAndGet(-1);
+                }
             }
             if (flag) {
                 lastUsageDates.clear();
+                expiryIndex.clear();
                 cacheSize.set(0);
                 cacheCount.set(0);
             }
+            compactJournal();
             return flag;
         }
 
         /**
-         * Remove the oldest files.
+         * Remove the expired files in order of due time.
          *
-         * @return the size of oldest files, in bytes
-         */
-        private long removeOldest() {
-            if (lastUsageDates.isEmpty()) return 0;
-            Long oldestUsage = Long.MAX_VALUE;
-            File oldestFile = null;
-            Set<Map.Entry<File, Long>> entries = lastUsageDates.entrySet();
-            synchronized (lastUsageDates) {
-                for (Map.Entry<File, Long> entry : entries) {
-                    Long lastValueUsage = entry.getValue();
-                    if (lastValueUsage < oldestUsage) {
-                        oldestUsage = lastValueUsage;
-                        oldestFile = entry.getKey();
-                    }
+         * @param limit The max count of files to remove.
+         * @return the size of removed files, in bytes
+         */
+        private long sweep(final int limit) {
+            final long now = System.currentTimeMillis();
+            long reclaimed = 0;
+            int count = 0;
+            Usage usage;
+            while (count < limit && (usage = expiryIndex.pollDue(now)) != null) {
+                final File file = usage.file;
+                synchronized (lockOf(file.getName())) {
+                    // replaced or removed after it was indexed
+                    if (usage.removed) continue;
+                    long fileSize = file.length();
+                    if (!file.delete()) continue;
+                    lastUsageDates.remove(file);
+                    cacheSize.addAndGet(-fileSize);
+                    cacheCount.addAndGet(-1);
+                    removeFromMemory(file);
+                    if (journal.remove(file, cacheCount.get())) requestCompact();
+                    reclaimed += fileSize;
+                    count++;
                 }
             }
-            if (oldestFile == null) return 0;
-            long fileSize = oldestFile.length();
-            if (oldestFile.delete()) {
-                lastUsageDates.remove(oldestFile);
-                return fileSize;
+            sweptSize.addAndGet(reclaimed);
+            return reclaimed;
+        }
+
+        /**
+         * Remove the oldest file.
+         *
+         * @return {@code true}: the oldest file is removed<br>{@code false}: nothing to remove
+         */
+        private boolean removeOldest() {
+            final Usage oldest = lastUsageDates.peekOldest();
+            if (oldest == null) return false;
+            final File oldestFile = oldest.file;
+            synchronized (lockOf(oldestFile.getName())) {
+                // published again or removed after it was peeked, the caller retries
+                if (!lastUsageDates.remove(oldest)) return true;
+                // forget the file even if it is gone or can't be deleted,
+                // otherwise it would be counted forever and evict the live files
+                if (oldestFile.exists() && !oldestFile.delete()) {
+                    new IOException("can't delete " + oldestFile.getAbsolutePath())
+                            .printStackTrace();
+                }
+                cacheSize.addAndGet(-oldest.size);
+                cacheCount.addAndGet(-1);
+                removeFromMemory(oldestFile);
+                if (journal.remove(oldestFile, cacheCount.get())) requestCompact();
             }
-            return 0;
+            return true;
         }
     }
 }
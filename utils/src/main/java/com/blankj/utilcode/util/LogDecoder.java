@@ -0,0 +1,248 @@
+package com.blankj.utilcode.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * <pre>
+ *     author: Blankj
+ *     blog  : http://blankj.com
+ *     time  : 2026/10/17
+ *     desc  : decoder of binary log segments written by LogUtils
+ * </pre>
+ * <p>It is plain Java, so segments pulled from a device can be decoded on any machine:</p>
+ * <pre>
+ *     java -cp utils.jar com.blankj.utilcode.util.LogDecoder util-10-17-0.bin ... &gt; log.txt
+ * </pre>
+ * <p>A segment is {@link #MAGIC} followed by records of one type byte, a varint length
+ * and the payload. Zero as type byte marks the end.</p>
+ * <ul>
+ * <li>{@link #RECORD_HEAD}: varint time in millis, zigzag varint offset of time zone
+ * in millis, string of device info</li>
+ * <li>{@link #RECORD_DEF}: string which takes the next id of the segment's
+ * dictionary, ids start at 1</li>
+ * <li>{@link #RECORD_LOG}: zigzag varint millis since the last log or head, type
+ * byte, then tag, head and template as references, then varint count of
+ * arguments and the varint arguments, which replace each {@link #ARG} of the
+ * template in order</li>
+ * </ul>
+ * <p>A string is a varint count of bytes and its UTF-8 bytes, a reference is a
+ * varint id of the dictionary or 0 followed by the string itself.</p>
+ */
+public final class LogDecoder {
+
+    static final byte[] MAGIC       = {'L', 'O', 'G', 'B'};
+    static final int    RECORD_HEAD = 1;
+    static final int    RECORD_DEF  = 2;
+    static final int    RECORD_LOG  = 3;
+    static final char   ARG         = '\u0001';
+
+    private static final char[] T        = new char[]{'V', 'D', 'I', 'W', 'E', 'A'};
+    private static final String LINE_SEP = System.getProperty("line.separator");
+
+    private LogDecoder() {
+        throw new UnsupportedOperationException("u can't instantiate me...");
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: LogDecoder <segment.bin>...");
+            System.exit(1);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        try {
+            for (String arg : args) {
+                decode(new File(arg), out);
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Decode the binary segment to text.
+     *
+     * @param file The segment.
+     * @param out  The writer of text, same as the text log file.
+     * @throws IOException if the file can't be read or it isn't a segment
+     */
+    public static void decode(final File file, final Writer out) throws IOException {
+        RandomAccessFile raf = null;
+        final byte[] bytes;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (!readMagic(buffer)) throw new IOException(file + " is not a binary log segment");
+        final Parser parser = new Parser(buffer);
+        final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        final StringBuilder sb = new StringBuilder();
+        for (int type; (type = parser.next()) != 0; ) {
+            if (type == RECORD_HEAD) {
+                out.write(parser.info);
+            } else if (type == RECORD_LOG) {
+                sb.setLength(0);
+                calendar.setTimeInMillis(parser.time + parser.offset);
+                append2(sb, calendar.get(Calendar.HOUR_OF_DAY)).append(':');
+                append2(sb, calendar.get(Calendar.MINUTE)).append(':');
+                append2(sb, calendar.get(Calendar.SECOND)).append('.');
+                final int ms = calendar.get(Calendar.MILLISECOND);
+                if (ms < 100) sb.append('0');
+                append2(sb, ms).append(' ');
+                final int index = parser.type - 2;
+                sb.append(index >= 0 && index < T.length ? T[index] : '?')
+                        .append('/')
+                        .append(parser.tag)
+                        .append(parser.head)
+                        .append(parser.msg)
+                        .append(LINE_SEP);
+                out.write(sb.toString());
+            }
+        }
+    }
+
+    private static StringBuilder append2(final StringBuilder sb, final int value) {
+        if (value < 10) sb.append('0');
+        return sb.append(value);
+    }
+
+    static boolean readMagic(final ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length) return false;
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the records of a segment one by one, keeping the dictionary and
+     * the time. It stops at the end marker or at a record cut by a crash.
+     */
+    static final class Parser {
+
+        final ArrayList<String> dict = new ArrayList<>();
+        final ByteBuffer        buffer;
+        long                    time;
+        int                     offset;
+        String                  info;
+        int                     type;
+        String                  tag;
+        String                  head;
+        String                  msg;
+        private byte[]          mBytes = new byte[256];
+
+        Parser(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read the next record.
+         *
+         * @return the type of record, 0 at the end, then the buffer is positioned
+         * right after the last whole record
+         */
+        int next() {
+            final int start = buffer.position();
+            if (!buffer.hasRemaining()) return 0;
+            final int record = buffer.get() & 0xFF;
+            if (record == 0) {
+                buffer.position(start);
+                return 0;
+            }
+            try {
+                final long len = readVarint();
+                if (len > buffer.remaining()) {
+                    buffer.position(start);
+                    return 0;
+                }
+                final int end = buffer.position() + (int) len;
+                if (record == RECORD_HEAD) {
+                    time = readVarint();
+                    offset = (int) readZigzag();
+                    info = readString();
+                } else if (record == RECORD_DEF) {
+                    dict.add(readString());
+                } else if (record == RECORD_LOG) {
+                    time += readZigzag();
+                    type = buffer.get();
+                    tag = readRef();
+                    head = readRef();
+                    msg = format(readRef());
+                }
+                buffer.position(end);
+                return record;
+            } catch (BufferUnderflowException e) {
+                buffer.position(start);
+                return 0;
+            } catch (IndexOutOfBoundsException e) {
+                buffer.position(start);
+                return 0;
+            }
+        }
+
+        private String format(final String template) {
+            final int count = (int) readVarint();
+            if (count == 0) return template;
+            final StringBuilder sb = new StringBuilder(template.length() + count * 4);
+            for (int i = 0, n = 0, len = template.length(); i < len; ++i) {
+                final char c = template.charAt(i);
+                if (c == ARG && n < count) {
+                    sb.append(readVarint());
+                    ++n;
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        private String readRef() {
+            final long id = readVarint();
+            if (id == 0) return readString();
+            return dict.get((int) id - 1);
+        }
+
+        private String readString() {
+            final int len = (int) readVarint();
+            if (len > buffer.remaining()) throw new BufferUnderflowException();
+            if (len > mBytes.length) mBytes = new byte[Math.max(len, mBytes.length << 1)];
+            buffer.get(mBytes, 0, len);
+            try {
+                return new String(mBytes, 0, len, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private long readZigzag() {
+            final long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw new BufferUnderflowException();
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.blankj.utilcode.util;
 
-import android.annotation.SuppressLint;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Environment;
+import android.support.annotation.FloatRange;
 import android.support.annotation.IntDef;
 import android.support.annotation.IntRange;
 import android.util.Log;
@@ -21,11 +21,25 @@ import javax.xml.transform.stream.StreamSource;
 import java.io.*;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.text.Format;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Formatter;
-import java.util.concurrent.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * <pre>
@@ -43,6 +57,9 @@ public final class LogUtils {
     public static final int W = Log.WARN;
     public static final int E = Log.ERROR;
     public static final int A = Log.ASSERT;
+    public static final int OVERFLOW_DROP = 0;
+    public static final int OVERFLOW_BLOCK = 1;
+    public static final int OVERFLOW_SAMPLE = 2;
     private static final char[] T = new char[]{'V', 'D', 'I', 'W', 'E', 'A'};
     private static final int FILE = 0x10;
     private static final int JSON = 0x20;
@@ -61,14 +78,21 @@ public final class LogUtils {
     private static final String MIDDLE_BORDER = MIDDLE_CORNER + MIDDLE_DIVIDER + MIDDLE_DIVIDER;
     private static final String BOTTOM_BORDER = BOTTOM_CORNER + SIDE_DIVIDER + SIDE_DIVIDER;
     private static final int MAX_LEN = 3000;
-    @SuppressLint("SimpleDateFormat")
-    private static final Format FORMAT = new SimpleDateFormat("MM-dd HH:mm:ss.SSS ");
     private static final String NOTHING = "log nothing";
     private static final String NULL = "null";
     private static final String ARGS = "args";
     private static final String PLACEHOLDER = " ";
+    private static final int MAX_SB_CAPACITY = 8192;
+    private static final int MAX_LIMITERS = 256;
     private static final Config CONFIG = new Config();
-    private static ExecutorService sExecutor;
+    private static final ThreadLocal<StringBuilder> SB = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+    private static final MappedSink MAPPED_SINK = new MappedSink();
+    private static volatile FileSink sFileSink;
 
     private LogUtils() {
         throw new UnsupportedOperationException("u can't instantiate me...");
@@ -138,6 +162,17 @@ public final class LogUtils {
         log(FILE | D, tag, content);
     }
 
+    /**
+     * Log to file, whether the file switch is on or not.
+     * <p>The log is written by a background thread. Logs below {@link #E} reach the disk
+     * within {@link Config#setFileFlushInterval(long, TimeUnit) the flush interval}, call
+     * {@link #flush()} to wait for them. Logs of {@link #E} and {@link #A} are flushed
+     * before the call returns.</p>
+     *
+     * @param type    The type of log.
+     * @param tag     The tag of log.
+     * @param content The content of log.
+     */
     public static void file(@TYPE final int type, final String tag, final Object content) {
         log(FILE | type, tag, content);
     }
@@ -174,24 +209,90 @@ public final class LogUtils {
         log(XML | type, tag, content);
     }
 
+    /**
+     * Wait until every log queued for file is written and flushed.
+     */
+    public static void flush() {
+        flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wait until every log queued for file is written and flushed.
+     * <p>For memory-mapped segments it waits until the full ones are truncated
+     * and the next one is prepared.</p>
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit    The time unit of the timeout argument.
+     * @return {@code true}: flushed<br>{@code false}: timed out
+     */
+    public static boolean flush(final long timeout, final TimeUnit unit) {
+        final long start = System.nanoTime();
+        final long timeoutNanos = unit.toNanos(timeout);
+        final FileSink sink = sFileSink;
+        if (sink != null && !sink.flush(timeoutNanos)) return false;
+        return MAPPED_SINK.flush(timeoutNanos - (System.nanoTime() - start));
+    }
+
     public static void log(final int type, final String tag, final Object... contents) {
         if (!CONFIG.mLogSwitch || (!CONFIG.mLog2ConsoleSwitch && !CONFIG.mLog2FileSwitch)) return;
         int type_low = type & 0x0f, type_high = type & 0xf0;
-        if (type_low < CONFIG.mConsoleFilter && type_low < CONFIG.mFileFilter) return;
+        final boolean isConsole = CONFIG.mLog2ConsoleSwitch
+                && type_low >= CONFIG.mConsoleFilter && type_high != FILE;
+        final boolean isFile = (CONFIG.mLog2FileSwitch || type_high == FILE)
+                && type_low >= CONFIG.mFileFilter;
+        if (!isConsole && !isFile) return;
+        Limiter limiter = null;
+        int pass = Limiter.PASSED;
+        if (CONFIG.mLimitSwitch && (limiter = CONFIG.getLimiter(tag, type_low)) != null) {
+            // Filter before anything is formatted, a suppressed log ends here.
+            pass = limiter.acquire();
+            if (pass == Limiter.DENIED) return;
+        }
         final TagHead tagHead = processTagAndHead(tag);
+        if (pass == Limiter.PASSED_REPORT || pass == Limiter.DENIED_REPORT) {
+            final long suppressed = limiter.takeSuppressed();
+            if (suppressed > 0) {
+                final String summary = "suppressed " + suppressed + " logs by rate limit or sampling";
+                if (isConsole) {
+                    print2Console(type_low, tagHead.tag, tagHead.consoleHead, summary);
+                }
+                if (isFile) {
+                    print2File(type_low, tagHead.tag, tagHead.fileHead, summary);
+                }
+            }
+            if (pass == Limiter.DENIED_REPORT) return;
+        }
         String body = processBody(type_high, contents);
-        if (CONFIG.mLog2ConsoleSwitch && type_low >= CONFIG.mConsoleFilter && type_high != FILE) {
+        if (isConsole) {
             print2Console(type_low, tagHead.tag, tagHead.consoleHead, body);
         }
-        if ((CONFIG.mLog2FileSwitch || type_high == FILE) && type_low >= CONFIG.mFileFilter) {
-            print2File(type_low, tagHead.tag, tagHead.fileHead + body);
+        if (isFile) {
+            print2File(type_low, tagHead.tag, tagHead.fileHead, body);
         }
     }
 
+    /**
+     * Return the calling thread's builder, emptied.
+     * <p>Only one caller may hold it at a time, so take the string out of it
+     * before calling anything else that uses it.</p>
+     */
+    private static StringBuilder getStringBuilder() {
+        StringBuilder sb = SB.get();
+        if (sb.capacity() > MAX_SB_CAPACITY) {
+            // Don't pin the buffer of one huge log for the thread's lifetime.
+            sb = new StringBuilder(256);
+            SB.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
     private static TagHead processTagAndHead(String tag) {
         if (!CONFIG.mTagIsSpace && !CONFIG.mLogHeadSwitch) {
             tag = CONFIG.mGlobalTag;
-        } else {
+        } else if (CONFIG.mLogHeadSwitch || isSpace(tag)) {
+            // Walking the stack is the costliest part of a log, so only do it
+            // when the head is shown or the tag has to come from the caller.
             final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
             final int stackIndex = 3 + CONFIG.mStackOffset;
             if (stackIndex >= stackTrace.length) {
@@ -211,15 +312,11 @@ public final class LogUtils {
             }
             if (CONFIG.mLogHeadSwitch) {
                 String tName = Thread.currentThread().getName();
-                final String head = new Formatter()
-                        .format("%s, %s.%s(%s:%d)",
-                                tName,
-                                targetElement.getClassName(),
-                                targetElement.getMethodName(),
-                                fileName,
-                                targetElement.getLineNumber())
-                        .toString();
-                final String fileHead = " [" + head + "]: ";
+                final StringBuilder sb = getStringBuilder();
+                sb.append(tName).append(", ");
+                final String head = appendElement(sb, targetElement, fileName).toString();
+                sb.setLength(0);
+                final String fileHead = sb.append(" [").append(head).append("]: ").toString();
                 if (CONFIG.mStackDeep <= 1) {
                     return new TagHead(tag, new String[]{head}, fileHead);
                 } else {
@@ -230,16 +327,13 @@ public final class LogUtils {
                             )];
                     consoleHead[0] = head;
                     int spaceLen = tName.length() + 2;
-                    String space = new Formatter().format("%" + spaceLen + "s", "").toString();
                     for (int i = 1, len = consoleHead.length; i < len; ++i) {
                         targetElement = stackTrace[i + stackIndex];
-                        consoleHead[i] = new Formatter()
-                                .format("%s%s.%s(%s:%d)",
-                                        space,
-                                        targetElement.getClassName(),
-                                        targetElement.getMethodName(),
-                                        getFileName(targetElement),
-                                        targetElement.getLineNumber())
+                        sb.setLength(0);
+                        for (int j = 0; j < spaceLen; ++j) {
+                            sb.append(' ');
+                        }
+                        consoleHead[i] = appendElement(sb, targetElement, getFileName(targetElement))
                                 .toString();
                     }
                     return new TagHead(tag, consoleHead, fileHead);
@@ -249,15 +343,28 @@ public final class LogUtils {
         return new TagHead(tag, null, ": ");
     }
 
+    private static StringBuilder appendElement(final StringBuilder sb,
+                                               final StackTraceElement element,
+                                               final String fileName) {
+        return sb.append(element.getClassName())
+                .append('.')
+                .append(element.getMethodName())
+                .append('(')
+                .append(fileName)
+                .append(':')
+                .append(element.getLineNumber())
+                .append(')');
+    }
+
     private static String getFileName(final StackTraceElement targetElement) {
         String fileName = targetElement.getFileName();
         if (fileName != null) return fileName;
         // If name of file is null, should add
         // "-keepattributes SourceFile,LineNumberTable" in proguard file.
         String className = targetElement.getClassName();
-        String[] classNameInfo = className.split("\\.");
-        if (classNameInfo.length > 0) {
-            className = classNameInfo[classNameInfo.length - 1];
+        int dot = className.lastIndexOf('.');
+        if (dot != -1) {
+            className = className.substring(dot + 1);
         }
         int index = className.indexOf('$');
         if (index != -1) {
@@ -278,15 +385,20 @@ public final class LogUtils {
                     body = formatXml(body);
                 }
             } else {
-                StringBuilder sb = new StringBuilder();
+                // toString may log itself, which would take the builder, so call it first.
+                final String[] strings = new String[contents.length];
                 for (int i = 0, len = contents.length; i < len; ++i) {
                     Object content = contents[i];
+                    strings[i] = content == null ? NULL : content.toString();
+                }
+                StringBuilder sb = getStringBuilder();
+                for (int i = 0, len = strings.length; i < len; ++i) {
                     sb.append(ARGS)
-                            .append("[")
+                            .append('[')
                             .append(i)
-                            .append("]")
+                            .append(']')
                             .append(" = ")
-                            .append(content == null ? NULL : content.toString())
+                            .append(strings[i])
                             .append(LINE_SEP);
                 }
                 body = sb.toString();
@@ -328,7 +440,7 @@ public final class LogUtils {
                                       final String[] head,
                                       final String msg) {
         if (CONFIG.mSingleTagSwitch) {
-            StringBuilder sb = new StringBuilder();
+            StringBuilder sb = getStringBuilder();
             sb.append(PLACEHOLDER).append(LINE_SEP);
             if (CONFIG.mLogBorderSwitch) {
                 sb.append(TOP_BORDER).append(LINE_SEP);
@@ -338,9 +450,7 @@ public final class LogUtils {
                     }
                     sb.append(MIDDLE_BORDER).append(LINE_SEP);
                 }
-                for (String line : msg.split(LINE_SEP)) {
-                    sb.append(LEFT_BORDER).append(line).append(LINE_SEP);
-                }
+                appendBorderLines(sb, msg);
                 sb.append(BOTTOM_BORDER);
             } else {
                 if (head != null) {
@@ -428,46 +538,72 @@ public final class LogUtils {
             Log.println(type, tag, msg);
             return;
         }
-        StringBuilder sb = new StringBuilder();
-        String[] lines = msg.split(LINE_SEP);
-        for (String line : lines) {
-            Log.println(type, tag, LEFT_BORDER + line);
-        }
+        final StringBuilder sb = getStringBuilder();
+        final int sepLen = LINE_SEP.length();
+        final int end = trimLineSeps(msg);
+        int start = 0;
+        do {
+            int index = msg.indexOf(LINE_SEP, start);
+            if (index == -1 || index > end) index = end;
+            sb.setLength(0);
+            Log.println(type, tag, sb.append(LEFT_BORDER).append(msg, start, index).toString());
+            start = index + sepLen;
+        } while (start <= end);
     }
 
-    private static void printSubMsg1(final int type, final String tag, final String msg) {
-        if (!CONFIG.mLogBorderSwitch) {
+    /**
+     * Append each line of the message with the left border, which is what
+     * {@code msg.split(LINE_SEP)} gave but without the regex and the array.
+     */
+    private static void appendBorderLines(final StringBuilder sb, final String msg) {
+        final int sepLen = LINE_SEP.length();
+        final int end = trimLineSeps(msg);
+        int start = 0;
+        do {
+            int index = msg.indexOf(LINE_SEP, start);
+            if (index == -1 || index > end) index = end;
+            sb.append(LEFT_BORDER).append(msg, start, index).append(LINE_SEP);
+            start = index + sepLen;
+        } while (start <= end);
+    }
 
-            return;
-        }
-        StringBuilder sb = new StringBuilder();
-        String[] lines = msg.split(LINE_SEP);
-        for (String line : lines) {
-            Log.println(type, tag, LEFT_BORDER + line);
+    private static int trimLineSeps(final String msg) {
+        final int sepLen = LINE_SEP.length();
+        int end = msg.length();
+        while (end >= sepLen && msg.startsWith(LINE_SEP, end - sepLen)) {
+            end -= sepLen;
         }
+        return end;
     }
 
-    private static void print2File(final int type, final String tag, final String msg) {
-        Date now = new Date(System.currentTimeMillis());
-        String format = FORMAT.format(now);
-        String date = format.substring(0, 5);
-        String time = format.substring(6);
-        final String fullPath =
-                (CONFIG.mDir == null ? CONFIG.mDefaultDir : CONFIG.mDir)
-                        + CONFIG.mFilePrefix + "-" + date + ".txt";
-        if (!createOrExistsFile(fullPath)) {
-            Log.e("LogUtils", "create " + fullPath + " failed!");
+    private static void print2File(final int type,
+                                   String tag,
+                                   final String head,
+                                   final String msg) {
+        // A tag may be null with global tag and head on, which is written as "null".
+        if (tag == null) tag = "null";
+        if (CONFIG.mFileMappedSwitch || CONFIG.mFileBinarySwitch) {
+            MAPPED_SINK.write(System.currentTimeMillis(), type, tag, head, msg);
             return;
         }
-        StringBuilder sb = new StringBuilder();
-        sb.append(time)
-                .append(T[type - V])
-                .append("/")
-                .append(tag)
-                .append(msg)
-                .append(LINE_SEP);
-        final String content = sb.toString();
-        input2File(content, fullPath);
+        FileSink sink = sFileSink;
+        if (sink == null) {
+            synchronized (LogUtils.class) {
+                sink = sFileSink;
+                if (sink == null) {
+                    sink = new FileSink(CONFIG.mFileBufferSize);
+                    sFileSink = sink;
+                }
+            }
+        }
+        sink.offer(System.currentTimeMillis(), type, tag, head, msg);
+        // An error may be the last log before the process dies, so it waits to be on disk,
+        // but not for a writer stuck on the disk.
+        final long timeout = CONFIG.mFileErrorFlushTimeout;
+        if (type >= E && timeout > 0) {
+            ThreadUtils.checkBlockingWait("LogUtils flush of error");
+            sink.flush(TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
     }
 
     private static boolean createOrExistsFile(final String filePath) {
@@ -475,22 +611,20 @@ public final class LogUtils {
         if (file.exists()) return file.isFile();
         if (!createOrExistsDir(file.getParentFile())) return false;
         try {
-            boolean isCreate = file.createNewFile();
-            if (isCreate) printDeviceInfo(filePath);
-            return isCreate;
+            return file.createNewFile();
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
     }
 
-    private static void printDeviceInfo(final String filePath) {
+    private static String getDeviceInfo(final String date) {
         String versionName = "";
         int versionCode = 0;
         try {
-            PackageInfo pi = Utils.getApp()
-                    .getPackageManager()
-                    .getPackageInfo(Utils.getApp().getPackageName(), 0);
+            // There is no package manager in local unit tests.
+            final PackageManager pm = Utils.getApp().getPackageManager();
+            PackageInfo pi = pm == null ? null : pm.getPackageInfo(Utils.getApp().getPackageName(), 0);
             if (pi != null) {
                 versionName = pi.versionName;
                 versionCode = pi.versionCode;
@@ -498,9 +632,8 @@ public final class LogUtils {
         } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
         }
-        String time = filePath.substring(filePath.length() - 9, filePath.length() - 4);
-        final String head = "************* Log Head ****************" +
-                "\nDate of Log        : " + time +
+        return "************* Log Head ****************" +
+                "\nDate of Log        : " + date +
                 "\nDevice Manufacturer: " + Build.MANUFACTURER +
                 "\nDevice Model       : " + Build.MODEL +
                 "\nAndroid Version    : " + Build.VERSION.RELEASE +
@@ -508,7 +641,6 @@ public final class LogUtils {
                 "\nApp VersionName    : " + versionName +
                 "\nApp VersionCode    : " + versionCode +
                 "\n************* Log Head ****************\n\n";
-        input2File(head, filePath);
     }
 
     private static boolean createOrExistsDir(final File file) {
@@ -525,47 +657,16 @@ public final class LogUtils {
         return true;
     }
 
-    private static void input2File(final String input, final String filePath) {
-        if (sExecutor == null) {
-            sExecutor = Executors.newSingleThreadExecutor();
-        }
-        Future<Boolean> submit = sExecutor.submit(new Callable<Boolean>() {
-            @Override
-            public Boolean call() throws Exception {
-                BufferedWriter bw = null;
-                try {
-                    bw = new BufferedWriter(new FileWriter(filePath, true));
-                    bw.write(input);
-                    return true;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                } finally {
-                    try {
-                        if (bw != null) {
-                            bw.close();
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        });
-        try {
-            if (submit.get()) return;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
-        Log.e("LogUtils", "log to " + filePath + " failed!");
-    }
-
     @IntDef({V, D, I, W, E, A})
     @Retention(RetentionPolicy.SOURCE)
     public @interface TYPE {
     }
 
+    @IntDef({OVERFLOW_DROP, OVERFLOW_BLOCK, OVERFLOW_SAMPLE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OverflowPolicy {
+    }
+
     public static class Config {
         private String mDefaultDir;// The default storage directory of log.
         private String mDir;       // The storage directory of log.
@@ -582,6 +683,23 @@ public final class LogUtils {
         private int mFileFilter = V;     // The file's filter of log.
         private int mStackDeep = 1;     // The stack's deep of log.
         private int mStackOffset = 0;     // The stack's offset of log.
+        private int mFileBufferSize = 1024;  // The capacity of file's buffer.
+        private int mFileFlushSize = 8192;  // The chars of file's batch.
+        private long mFileFlushInterval = 1000;  // The flush interval of file in millis.
+        private long mFileErrorFlushTimeout = 100;  // The max wait of error for file's flush in millis.
+        private int mFileOverflowPolicy = OVERFLOW_BLOCK;  // The overflow policy of file's buffer.
+        private int mFileSampleRate = 8;     // The sample rate of file's buffer.
+        private boolean mFileMappedSwitch = false; // The memory-mapped switch of file.
+        private int mFileSegmentSize = 1024 * 1024; // The size of file's segment.
+        private int mFileMaxSegments = 8;     // The retained count of file's segment.
+        private boolean mFileBinarySwitch = false; // The binary switch of file.
+        private boolean mLimitSwitch = false;   // Whether any rate limit or sampling is set.
+        private int mRateLimit = 0;       // The logs per second of every tag, 0 is unlimited.
+        private int mRateBurst = 1;       // The burst of rate limit.
+        private float mSampleRate = 1;    // The sample rate of every tag.
+        private long mSummaryInterval = TimeUnit.SECONDS.toNanos(10); // The interval of suppressed summary in nanos.
+        private final ConcurrentHashMap<String, Limiter> mLimiters = new ConcurrentHashMap<>();
+        private volatile Limiter mOverflowLimiter;  // The shared bucket of tags past MAX_LIMITERS.
 
         private Config() {
             if (mDefaultDir != null) return;
@@ -619,6 +737,18 @@ public final class LogUtils {
             return this;
         }
 
+        /**
+         * Set whether to log to file.
+         * <p>Logs are written by a background thread. The ones below {@link LogUtils#E}
+         * reach the disk within {@link #setFileFlushInterval(long, TimeUnit) the flush
+         * interval} and are lost if the process dies before, call {@link LogUtils#flush()}
+         * to wait for them. Logs of {@link LogUtils#E} and {@link LogUtils#A} are flushed
+         * before the call returns. Logs to {@link #setFileMappedSwitch(boolean) mapped
+         * segments} survive the process dying as soon as the call returns.</p>
+         *
+         * @param log2FileSwitch True to log to file, false otherwise.
+         * @return the config
+         */
         public Config setLog2FileSwitch(final boolean log2FileSwitch) {
             mLog2FileSwitch = log2FileSwitch;
             return this;
@@ -677,6 +807,263 @@ public final class LogUtils {
             return this;
         }
 
+        /**
+         * Set the capacity of the buffer between log calls and the file writer.
+         * <p>It takes effect before the first log to file.</p>
+         *
+         * @param fileBufferSize The capacity, rounded up to a power of two.
+         * @return the config
+         */
+        public Config setFileBufferSize(@IntRange(from = 1) final int fileBufferSize) {
+            mFileBufferSize = fileBufferSize;
+            return this;
+        }
+
+        /**
+         * Set the chars buffered by the file writer before it writes them out.
+         * <p>It takes effect when the next log file is opened.</p>
+         *
+         * @param fileFlushSize The size of batch in chars.
+         * @return the config
+         */
+        public Config setFileFlushSize(@IntRange(from = 1) final int fileFlushSize) {
+            mFileFlushSize = fileFlushSize;
+            return this;
+        }
+
+        /**
+         * Set the longest time a log stays buffered before it is flushed to file.
+         *
+         * @param fileFlushInterval The flush interval.
+         * @param unit              The time unit of the flush interval.
+         * @return the config
+         */
+        public Config setFileFlushInterval(@IntRange(from = 0) final long fileFlushInterval,
+                                           final TimeUnit unit) {
+            mFileFlushInterval = unit.toMillis(fileFlushInterval);
+            return this;
+        }
+
+        /**
+         * Set the longest time a log of {@link #E} or {@link #A} to file waits
+         * until it is flushed, so that it's on disk if the process dies right after.
+         *
+         * @param timeout The max time to wait, 0 to return without waiting.
+         * @param unit    The time unit of the timeout.
+         * @return the config
+         */
+        public Config setFileErrorFlushTimeout(@IntRange(from = 0) final long timeout,
+                                               final TimeUnit unit) {
+            mFileErrorFlushTimeout = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Set what happens to a log when the file's buffer is full.
+         * <ul>
+         * <li>{@link #OVERFLOW_DROP}: the log is dropped</li>
+         * <li>{@link #OVERFLOW_BLOCK}: the caller waits for room</li>
+         * <li>{@link #OVERFLOW_SAMPLE}: once the buffer is 3/4 full, only one of
+         * {@link #setFileSampleRate(int) rate} logs below {@link #E} is kept,
+         * and logs are dropped when it is full</li>
+         * </ul>
+         * <p>The count of dropped logs is written to file once the writer catches up.</p>
+         *
+         * @param policy The overflow policy.
+         * @return the config
+         */
+        public Config setFileOverflowPolicy(@OverflowPolicy final int policy) {
+            mFileOverflowPolicy = policy;
+            return this;
+        }
+
+        public Config setFileSampleRate(@IntRange(from = 1) final int fileSampleRate) {
+            mFileSampleRate = fileSampleRate;
+            return this;
+        }
+
+        /**
+         * Set whether logs are written to memory-mapped segments of the file.
+         * <p>The log is copied into the mapped file on the calling thread, so it
+         * outlives a crash of the process once the call returns. Segments are
+         * named {@code prefix-MM-dd-n.txt}, the unused tail of the current one is
+         * zero-filled.</p>
+         *
+         * @param fileMappedSwitch The memory-mapped switch of file.
+         * @return the config
+         */
+        public Config setFileMappedSwitch(final boolean fileMappedSwitch) {
+            mFileMappedSwitch = fileMappedSwitch;
+            return this;
+        }
+
+        /**
+         * Set the size of a memory-mapped segment, a new one is started when it is full.
+         *
+         * @param fileSegmentSize The size of segment in bytes.
+         * @return the config
+         */
+        public Config setFileSegmentSize(@IntRange(from = 4096) final int fileSegmentSize) {
+            mFileSegmentSize = fileSegmentSize;
+            return this;
+        }
+
+        /**
+         * Set how many memory-mapped segments are kept, the oldest are deleted.
+         *
+         * @param fileMaxSegments The retained count of segment.
+         * @return the config
+         */
+        public Config setFileMaxSegments(@IntRange(from = 1) final int fileMaxSegments) {
+            mFileMaxSegments = fileMaxSegments;
+            return this;
+        }
+
+        /**
+         * Set whether logs are written to file in the binary format of {@link LogDecoder}.
+         * <p>Tags, heads and messages are interned per segment and numbers in
+         * messages are stored as varints, so repeated logs take a few bytes.
+         * Binary logs always go to memory-mapped segments named
+         * {@code prefix-MM-dd-n.bin}, decode them with {@link LogDecoder}.</p>
+         *
+         * @param fileBinarySwitch The binary switch of file.
+         * @return the config
+         */
+        public Config setFileBinarySwitch(final boolean fileBinarySwitch) {
+            mFileBinarySwitch = fileBinarySwitch;
+            return this;
+        }
+
+        /**
+         * Set the rate limit of each tag that has none of its own.
+         * <p>Every tag gets a token bucket which refills {@code permitsPerSecond}
+         * and holds at most {@code burst}. The tag is the one given to the log,
+         * logs without one share a bucket, which warnings and errors skip unless
+         * it is set by {@link #setRateLimit(String, int, int)} with a null tag.
+         * Past 256 tags, new tags share one more bucket.
+         * Logs over the limit are dropped before they are formatted and counted,
+         * see {@link #setSuppressedSummaryInterval(long, TimeUnit)}.</p>
+         *
+         * @param permitsPerSecond The logs per second, 0 is unlimited.
+         * @param burst            The logs allowed at once.
+         * @return the config
+         */
+        public Config setRateLimit(@IntRange(from = 0) final int permitsPerSecond,
+                                   @IntRange(from = 1) final int burst) {
+            mRateLimit = permitsPerSecond;
+            mRateBurst = burst;
+            onLimitChanged();
+            return this;
+        }
+
+        /**
+         * Set the rate limit of the tag, its sample rate starts from the one of every tag.
+         *
+         * @param tag              The tag.
+         * @param permitsPerSecond The logs per second, 0 is unlimited.
+         * @param burst            The logs allowed at once.
+         * @return the config
+         */
+        public Config setRateLimit(final String tag,
+                                   @IntRange(from = 0) final int permitsPerSecond,
+                                   @IntRange(from = 1) final int burst) {
+            final Limiter old = mLimiters.get(getLimiterKey(tag));
+            final float sampleRate = old != null && old.mIsOwn ? old.mSampleRate : mSampleRate;
+            mLimiters.put(getLimiterKey(tag),
+                    new Limiter(permitsPerSecond, burst, sampleRate, true));
+            onLimitChanged();
+            return this;
+        }
+
+        /**
+         * Set the sample rate of each tag that has none of its own.
+         * <p>A log is kept with the probability of sample rate, before the rate
+         * limit is applied.</p>
+         *
+         * @param sampleRate The sample rate, 1 keeps all.
+         * @return the config
+         */
+        public Config setSampleRate(@FloatRange(from = 0, to = 1) final float sampleRate) {
+            mSampleRate = sampleRate;
+            onLimitChanged();
+            return this;
+        }
+
+        /**
+         * Set the sample rate of the tag, its rate limit starts from the one of every tag.
+         *
+         * @param tag        The tag.
+         * @param sampleRate The sample rate, 1 keeps all.
+         * @return the config
+         */
+        public Config setSampleRate(final String tag,
+                                    @FloatRange(from = 0, to = 1) final float sampleRate) {
+            final Limiter old = mLimiters.get(getLimiterKey(tag));
+            final boolean hasOwn = old != null && old.mIsOwn;
+            mLimiters.put(getLimiterKey(tag), new Limiter(
+                    hasOwn ? old.mRate : mRateLimit,
+                    hasOwn ? old.mBurst : mRateBurst,
+                    sampleRate,
+                    true
+            ));
+            onLimitChanged();
+            return this;
+        }
+
+        /**
+         * Set how often a tag reports the count of its suppressed logs.
+         * <p>The summary is logged with the tag by the next log of it, or by
+         * a suppressed one if none passes.</p>
+         *
+         * @param interval The interval.
+         * @param unit     The time unit of the interval.
+         * @return the config
+         */
+        public Config setSuppressedSummaryInterval(@IntRange(from = 0) final long interval,
+                                                   final TimeUnit unit) {
+            mSummaryInterval = unit.toNanos(interval);
+            return this;
+        }
+
+        private void onLimitChanged() {
+            // Drop the buckets made from the old settings of every tag.
+            for (Map.Entry<String, Limiter> entry : mLimiters.entrySet()) {
+                if (!entry.getValue().mIsOwn) mLimiters.remove(entry.getKey(), entry.getValue());
+            }
+            boolean hasOwn = false;
+            for (Limiter limiter : mLimiters.values()) {
+                if (limiter.isLimited()) {
+                    hasOwn = true;
+                    break;
+                }
+            }
+            mOverflowLimiter = null;
+            mLimitSwitch = hasOwn || mRateLimit > 0 || mSampleRate < 1;
+        }
+
+        private Limiter getLimiter(final String tag, final int type) {
+            final String key = getLimiterKey(tag);
+            final Limiter limiter = mLimiters.get(key);
+            if (limiter != null && limiter.mIsOwn) return limiter.isLimited() ? limiter : null;
+            // Untagged logs of every class share a bucket, don't let chatty ones drop warnings.
+            if (type >= W && key.length() == 0) return null;
+            if (limiter != null) return limiter;
+            if (mRateLimit <= 0 && mSampleRate >= 1) return null;
+            if (mLimiters.size() >= MAX_LIMITERS) {
+                // Tags made at runtime mustn't grow the map without end.
+                final Limiter overflow = mOverflowLimiter;
+                if (overflow != null) return overflow;
+                return mOverflowLimiter = new Limiter(mRateLimit, mRateBurst, mSampleRate, false);
+            }
+            final Limiter newLimiter = new Limiter(mRateLimit, mRateBurst, mSampleRate, false);
+            final Limiter oldLimiter = mLimiters.putIfAbsent(key, newLimiter);
+            return oldLimiter == null ? newLimiter : oldLimiter;
+        }
+
+        private String getLimiterKey(final String tag) {
+            return isSpace(tag) ? "" : tag;
+        }
+
         @Override
         public String toString() {
             return "switch: " + mLogSwitch
@@ -691,7 +1078,1170 @@ public final class LogUtils {
                     + LINE_SEP + "consoleFilter: " + T[mConsoleFilter - V]
                     + LINE_SEP + "fileFilter: " + T[mFileFilter - V]
                     + LINE_SEP + "stackDeep: " + mStackDeep
-                    + LINE_SEP + "mStackOffset: " + mStackOffset;
+                    + LINE_SEP + "mStackOffset: " + mStackOffset
+                    + LINE_SEP + "fileBufferSize: " + mFileBufferSize
+                    + LINE_SEP + "fileFlushSize: " + mFileFlushSize
+                    + LINE_SEP + "fileFlushInterval: " + mFileFlushInterval
+                    + LINE_SEP + "fileErrorFlushTimeout: " + mFileErrorFlushTimeout
+                    + LINE_SEP + "fileOverflowPolicy: " + mFileOverflowPolicy
+                    + LINE_SEP + "fileSampleRate: " + mFileSampleRate
+                    + LINE_SEP + "fileMapped: " + mFileMappedSwitch
+                    + LINE_SEP + "fileSegmentSize: " + mFileSegmentSize
+                    + LINE_SEP + "fileMaxSegments: " + mFileMaxSegments
+                    + LINE_SEP + "fileBinary: " + mFileBinarySwitch
+                    + LINE_SEP + "rateLimit: " + mRateLimit + "/s, burst " + mRateBurst
+                    + LINE_SEP + "sampleRate: " + mSampleRate
+                    + LINE_SEP + "summaryInterval: " + TimeUnit.NANOSECONDS.toMillis(mSummaryInterval);
+        }
+    }
+
+    private static final class LogEvent {
+        long   time;
+        int    type;
+        String tag;
+        String head;
+        String msg;
+    }
+
+    /**
+     * Bounded lock-free ring of log events drained by one writer thread.
+     * <p>Producers claim a slot with a CAS on the tail and publish it through
+     * the slot's sequence, the writer keeps the file open and flushes by size
+     * or by time.</p>
+     */
+    private static final class FileSink implements Runnable {
+
+        private static final long BLOCK_PARK_NANOS = 50000;
+
+        private final LogEvent[]      mSlots;
+        private final AtomicLongArray mSequences;
+        private final int             mMask;
+        private final int             mWatermark;
+        private final AtomicLong      mTail    = new AtomicLong();
+        private final AtomicLong      mDropped = new AtomicLong();
+        private final AtomicLong      mSampled = new AtomicLong();
+        private final Thread          mThread;
+        private volatile long         mHead;
+        private volatile long         mFlushed;
+        private volatile boolean      mFlushRequested;
+        private volatile boolean      mParked;
+
+        // Only touched by the writer thread.
+        private final LogEvent   mEvent      = new LogEvent();
+        private final TimeFormat mTimeFormat = new TimeFormat();
+        private Writer         mWriter;
+        private File           mFile;
+        private String         mDir;
+        private String         mPrefix;
+        private String         mDate;
+        private boolean        mDirty;
+        private long           mLastFlush;
+        private long           mReportedDropped;
+
+        FileSink(final int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            mSlots = new LogEvent[size];
+            mSequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; ++i) {
+                mSlots[i] = new LogEvent();
+                mSequences.set(i, i);
+            }
+            mMask = size - 1;
+            mWatermark = size - (size >> 2);
+            mThread = new Thread(this, "LogUtils-file");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        void offer(final long time, final int type,
+                   final String tag, final String head, final String msg) {
+            final int policy = CONFIG.mFileOverflowPolicy;
+            if (policy == OVERFLOW_SAMPLE && type < E
+                    && mTail.get() - mHead >= mWatermark
+                    && mSampled.getAndIncrement() % CONFIG.mFileSampleRate != 0) {
+                mDropped.incrementAndGet();
+                return;
+            }
+            while (!tryPublish(time, type, tag, head, msg)) {
+                if (policy != OVERFLOW_BLOCK) {
+                    mDropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(mThread);
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+            if (mParked) LockSupport.unpark(mThread);
+        }
+
+        private boolean tryPublish(final long time, final int type,
+                                   final String tag, final String head, final String msg) {
+            for (; ; ) {
+                final long pos = mTail.get();
+                final int index = (int) pos & mMask;
+                final long dif = mSequences.get(index) - pos;
+                if (dif == 0) {
+                    if (mTail.compareAndSet(pos, pos + 1)) {
+                        final LogEvent event = mSlots[index];
+                        event.time = time;
+                        event.type = type;
+                        event.tag = tag;
+                        event.head = head;
+                        event.msg = msg;
+                        mSequences.set(index, pos + 1);
+                        return true;
+                    }
+                } else if (dif < 0) {
+                    return false;
+                }
+            }
+        }
+
+        private boolean poll(final LogEvent out) {
+            final long pos = mHead;
+            final int index = (int) pos & mMask;
+            if (mSequences.get(index) != pos + 1) return false;
+            final LogEvent event = mSlots[index];
+            out.time = event.time;
+            out.type = event.type;
+            out.tag = event.tag;
+            out.head = event.head;
+            out.msg = event.msg;
+            event.tag = null;
+            event.head = null;
+            event.msg = null;
+            mSequences.set(index, pos + mSlots.length);
+            mHead = pos + 1;
+            return true;
+        }
+
+        private boolean isEmpty() {
+            return mSequences.get((int) mHead & mMask) != mHead + 1;
+        }
+
+        boolean flush(final long timeoutNanos) {
+            final long target = mTail.get();
+            final long start = System.nanoTime();
+            while (mFlushed < target) {
+                if (Thread.currentThread() == mThread) return false;
+                if (System.nanoTime() - start >= timeoutNanos) return false;
+                mFlushRequested = true;
+                LockSupport.unpark(mThread);
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            for (; ; ) {
+                while (poll(mEvent)) {
+                    write(mEvent.time, mEvent.type, mEvent.tag, mEvent.head, mEvent.msg);
+                }
+                final long dropped = mDropped.get();
+                if (dropped != mReportedDropped) {
+                    write(System.currentTimeMillis(), W, "LogUtils", ": ",
+                            (dropped - mReportedDropped) + " logs dropped by overflow policy.");
+                    mReportedDropped = dropped;
+                }
+                long wait = 0;
+                if (mDirty) {
+                    final long elapsed = System.currentTimeMillis() - mLastFlush;
+                    if (mFlushRequested || elapsed >= CONFIG.mFileFlushInterval) {
+                        flushWriter();
+                    } else {
+                        wait = CONFIG.mFileFlushInterval - elapsed;
+                    }
+                }
+                if (!mDirty) {
+                    mFlushRequested = false;
+                    mFlushed = mHead;
+                }
+                mParked = true;
+                if (isEmpty() && !mFlushRequested) {
+                    if (wait > 0) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+                    } else if (!mDirty) {
+                        LockSupport.park(this);
+                    }
+                }
+                mParked = false;
+            }
+        }
+
+        private void write(final long time, final int type,
+                           final String tag, final String head, final String msg) {
+            try {
+                final Writer writer = getWriter(time);
+                if (writer == null) return;
+                writer.write(mTimeFormat.format(time), TimeFormat.TIME_START, TimeFormat.TIME_LENGTH);
+                writer.write(T[type - V]);
+                writer.write('/');
+                writer.write(tag);
+                writer.write(head);
+                writer.write(msg);
+                writer.write(LINE_SEP);
+                mDirty = true;
+            } catch (Throwable e) {
+                e.printStackTrace();
+                Log.e("LogUtils", "log to " + mFile + " failed!");
+                closeWriter();
+            }
+        }
+
+        private Writer getWriter(final long time) throws IOException {
+            final String dir = CONFIG.mDir == null ? CONFIG.mDefaultDir : CONFIG.mDir;
+            final String prefix = CONFIG.mFilePrefix;
+            if (mTimeFormat.isNewDay(time)) {
+                mDate = mTimeFormat.getDate(time);
+                closeWriter();
+            } else if (mWriter != null && (!dir.equals(mDir) || !prefix.equals(mPrefix))) {
+                closeWriter();
+            }
+            if (mWriter != null) return mWriter;
+            final String fullPath = dir + prefix + "-" + mDate + ".txt";
+            final File file = new File(fullPath);
+            final boolean isNew = !file.exists();
+            if (!createOrExistsFile(fullPath)) {
+                Log.e("LogUtils", "create " + fullPath + " failed!");
+                return null;
+            }
+            mWriter = new BufferedWriter(new FileWriter(file, true), CONFIG.mFileFlushSize);
+            mFile = file;
+            mDir = dir;
+            mPrefix = prefix;
+            mLastFlush = System.currentTimeMillis();
+            if (isNew) mWriter.write(getDeviceInfo(mDate));
+            return mWriter;
+        }
+
+        private void flushWriter() {
+            mDirty = false;
+            mLastFlush = System.currentTimeMillis();
+            if (mWriter == null) return;
+            try {
+                mWriter.flush();
+                // Reopen it next time if the file was deleted while open.
+                if (!mFile.exists()) closeWriter();
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.e("LogUtils", "log to " + mFile + " failed!");
+                closeWriter();
+            }
+        }
+
+        private void closeWriter() {
+            mDirty = false;
+            if (mWriter == null) return;
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Appends logs into a pre-sized {@link MappedByteBuffer}, so a write is a copy
+     * into the page cache that the kernel persists even if the process dies.
+     * <p>Text segments hold the logs as UTF-8. The segment is zero-filled and logs
+     * never contain a zero byte, so the first zero after the last log marks the
+     * end when a segment is reopened after a crash, and a line cut there is ended.</p>
+     * <p>Binary segments follow {@link LogDecoder}. Tags, heads and messages with
+     * their numbers taken out are interned into the segment's dictionary, so a
+     * repeated log costs a few varints. The first byte of a write is stored last,
+     * so a write cut by a crash is not seen when the segment is reopened.</p>
+     * <p>A full segment is truncated to its content and the next one is started.</p>
+     */
+    private static final class MappedSink {
+
+        private static final int MAX_DICT_SIZE     = 4096;
+        private static final int TABLE_SIZE        = MAX_DICT_SIZE * 2;
+        private static final int MAX_INTERN_LENGTH = 1024;
+        private static final int MAX_ARGS          = 32;
+
+        private final TimeFormat               mTimeFormat = new TimeFormat();
+        private final ByteSink                 mBytes      = new ByteSink();
+        private final ByteSink                 mPayload    = new ByteSink();
+        // The dictionary of segment, open addressing keyed by content so that
+        // a template is looked up without making a string of it.
+        private final String[]      mKeys       = new String[TABLE_SIZE];
+        private final int[]         mIds        = new int[TABLE_SIZE];
+        private final StringBuilder mTemplate   = new StringBuilder();
+        private final long[]        mArgs       = new long[MAX_ARGS];
+        private int                 mDictSize;
+        private int                 mSlot;
+        private int                 mTemplateHash;
+        private MappedByteBuffer    mBuffer;
+        private RandomAccessFile    mRaf;
+        private File                mFile;
+        private String              mDir;
+        private String              mPrefix;
+        private String              mDate;
+        private int                 mIndex;
+        private int                 mSegmentSize;
+        private boolean             mBinary;
+        private int                 mLogStart;
+        private long                mLastTime;
+        private ExecutorService     mExecutor;
+        private Future<Segment>     mNext;
+
+        synchronized void write(final long time, final int type,
+                                final String tag, final String head, final String msg) {
+            try {
+                MappedByteBuffer buffer = getBuffer(time);
+                if (buffer == null) return;
+                encode(time, type, tag, head, msg);
+                if (mBytes.length > buffer.remaining() && buffer.position() > mLogStart) {
+                    ++mIndex;
+                    closeSegment();
+                    buffer = getBuffer(time);
+                    if (buffer == null) return;
+                    // Encode it again against the empty dictionary of new segment.
+                    encode(time, type, tag, head, msg);
+                }
+                if (!mBinary) {
+                    // A log longer than a whole segment is cut.
+                    buffer.put(mBytes.bytes, 0, Math.min(mBytes.length, buffer.remaining()));
+                } else if (mBytes.length <= buffer.remaining()) {
+                    commit(buffer, mBytes);
+                    mLastTime = time;
+                } else {
+                    Log.e("LogUtils", "log of " + mBytes.length + " bytes exceeds the segment!");
+                    // Its new entries are in the dictionary but not in the file,
+                    // start over in the next segment.
+                    ++mIndex;
+                    closeSegment();
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                Log.e("LogUtils", "log to " + mFile + " failed!");
+                closeSegment();
+            }
+        }
+
+        private void encode(final long time, final int type,
+                            final String tag, final String head, final String msg) {
+            final ByteSink out = mBytes;
+            out.length = 0;
+            if (!mBinary) {
+                out.putChars(mTimeFormat.format(time), TimeFormat.TIME_START, TimeFormat.TIME_LENGTH);
+                out.putUtf8(T[type - V]);
+                out.putUtf8('/');
+                out.putUtf8(tag);
+                out.putUtf8(head);
+                out.putUtf8(msg);
+                out.putUtf8(LINE_SEP);
+                return;
+            }
+            final ByteSink payload = mPayload;
+            payload.length = 0;
+            payload.putZigzag(time - mLastTime);
+            payload.put(type);
+            putRef(payload, tag, tag.hashCode());
+            putRef(payload, head, head.hashCode());
+            final int count = templatize(msg);
+            if (count < 0) {
+                payload.put(0);
+                payload.putString(msg);
+                payload.put(0);
+            } else {
+                putRef(payload, count == 0 ? msg : mTemplate, mTemplateHash);
+                payload.putVarint(count);
+                for (int i = 0; i < count; ++i) {
+                    payload.putVarint(mArgs[i]);
+                }
+            }
+            out.put(LogDecoder.RECORD_LOG);
+            out.putVarint(payload.length);
+            out.put(payload);
+        }
+
+        /**
+         * Write the id of the string in dictionary to payload, defining it in
+         * front of the log if it is new.
+         */
+        private void putRef(final ByteSink payload, final CharSequence s, final int hash) {
+            int id = lookup(s, hash);
+            if (id == 0) {
+                if (mDictSize >= MAX_DICT_SIZE || s.length() > MAX_INTERN_LENGTH) {
+                    payload.put(0);
+                    payload.putString(s.toString());
+                    return;
+                }
+                final String key = s.toString();
+                id = insert(key);
+                final int len = ByteSink.utf8Length(key);
+                mBytes.put(LogDecoder.RECORD_DEF);
+                mBytes.putVarint(ByteSink.varintSize(len) + len);
+                mBytes.putVarint(len);
+                mBytes.putUtf8(key);
+            }
+            payload.putVarint(id);
+        }
+
+        /**
+         * Return the id of the string, 0 if it is absent, then {@link #mSlot} is
+         * where it goes.
+         */
+        private int lookup(final CharSequence s, final int hash) {
+            int i = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+            for (String key; (key = mKeys[i]) != null; i = (i + 1) & (TABLE_SIZE - 1)) {
+                if (key.hashCode() == hash && key.contentEquals(s)) return mIds[i];
+            }
+            mSlot = i;
+            return 0;
+        }
+
+        private int insert(final String key) {
+            mKeys[mSlot] = key;
+            mIds[mSlot] = ++mDictSize;
+            return mDictSize;
+        }
+
+        private void clearDict() {
+            Arrays.fill(mKeys, null);
+            mDictSize = 0;
+        }
+
+        /**
+         * Take the numbers out of the message into {@link #mArgs}, leaving
+         * {@link LogDecoder#ARG} in {@link #mTemplate} and its hash in
+         * {@link #mTemplateHash}.
+         *
+         * @return the count of numbers, -1 if the message should be written as is
+         */
+        private int templatize(final String msg) {
+            final int len = msg.length();
+            if (len > MAX_INTERN_LENGTH) return -1;
+            final StringBuilder sb = mTemplate;
+            sb.setLength(0);
+            int count = 0, hash = 0, start = 0;
+            for (int i = 0; i < len; ) {
+                final char c = msg.charAt(i);
+                if (c < '0' || c > '9') {
+                    if (c == LogDecoder.ARG) return -1;
+                    hash = 31 * hash + c;
+                    ++i;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < len && msg.charAt(j) >= '0' && msg.charAt(j) <= '9') {
+                    ++j;
+                }
+                // Keep what doesn't print back the same, like leading zeros.
+                if (j - i > 18 || (c == '0' && j - i > 1) || count == MAX_ARGS) {
+                    for (int k = i; k < j; ++k) {
+                        hash = 31 * hash + msg.charAt(k);
+                    }
+                } else {
+                    long value = 0;
+                    for (int k = i; k < j; ++k) {
+                        value = value * 10 + (msg.charAt(k) - '0');
+                    }
+                    mArgs[count++] = value;
+                    sb.append(msg, start, i).append(LogDecoder.ARG);
+                    hash = 31 * hash + LogDecoder.ARG;
+                    start = j;
+                }
+                i = j;
+            }
+            if (count > 0) sb.append(msg, start, len);
+            mTemplateHash = hash;
+            return count;
+        }
+
+        /**
+         * Write the record with its first byte last, so a reader never sees a
+         * type byte before the whole record is there.
+         */
+        private static void commit(final MappedByteBuffer buffer, final ByteSink record) {
+            final int pos = buffer.position();
+            buffer.position(pos + 1);
+            buffer.put(record.bytes, 1, record.length - 1);
+            buffer.put(pos, record.bytes[0]);
+        }
+
+        private MappedByteBuffer getBuffer(final long time) throws IOException {
+            final String dir = CONFIG.mDir == null ? CONFIG.mDefaultDir : CONFIG.mDir;
+            final String prefix = CONFIG.mFilePrefix;
+            if (mTimeFormat.isNewDay(time)) {
+                mDate = mTimeFormat.getDate(time);
+                mIndex = 0;
+                closeSegment();
+            } else if (mBuffer != null && (!dir.equals(mDir) || !prefix.equals(mPrefix)
+                    || mSegmentSize != CONFIG.mFileSegmentSize
+                    || mBinary != CONFIG.mFileBinarySwitch)) {
+                mIndex = 0;
+                closeSegment();
+            }
+            if (mBuffer == null) {
+                mDir = dir;
+                mPrefix = prefix;
+                mSegmentSize = CONFIG.mFileSegmentSize;
+                mBinary = CONFIG.mFileBinarySwitch;
+                openSegment(time);
+            }
+            return mBuffer;
+        }
+
+        private String getPath(final int index) {
+            return mDir + mPrefix + "-" + mDate + "-" + index + (mBinary ? ".bin" : ".txt");
+        }
+
+        private void openSegment(final long time) throws IOException {
+            // The next segment is usually prepared in background, then it is only swapped in.
+            final Segment next = takeNext(getPath(mIndex));
+            if (next != null) {
+                use(next);
+                prepareNext();
+                return;
+            }
+            // The file may still be closed or prepared in background.
+            awaitBackground();
+            // Carry on after the last segment of the day, the ones before may be deleted.
+            mIndex = Math.max(mIndex, getLastIndex());
+            for (; ; ++mIndex) {
+                final String fullPath = getPath(mIndex);
+                final File file = new File(fullPath);
+                if (!file.exists()) {
+                    if (!createOrExistsDir(file.getParentFile())) {
+                        Log.e("LogUtils", "create " + fullPath + " failed!");
+                        return;
+                    }
+                    use(createSegment(file, mSegmentSize, mBinary, mDate, time));
+                    prepareNext();
+                    return;
+                }
+                // A segment of other size was closed before, carry on after it.
+                if (file.length() != mSegmentSize) continue;
+                mFile = file;
+                mRaf = new RandomAccessFile(file, "rw");
+                mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+                clearDict();
+                mLogStart = 0;
+                if (!mBinary) {
+                    recoverText();
+                } else if (!recover()) {
+                    Log.e("LogUtils", fullPath + " is not a binary log segment!");
+                    mBuffer = null;
+                    mRaf.close();
+                    mRaf = null;
+                    continue;
+                }
+                prepareNext();
+                return;
+            }
+        }
+
+        private int getLastIndex() {
+            final String start = mPrefix + "-" + mDate + "-";
+            final String end = mBinary ? ".bin" : ".txt";
+            final String[] names = new File(mDir).list();
+            int last = 0;
+            if (names == null) return last;
+            for (String name : names) {
+                if (!name.startsWith(start) || !name.endsWith(end)) continue;
+                try {
+                    last = Math.max(last, Integer.parseInt(
+                            name.substring(start.length(), name.length() - end.length())));
+                } catch (NumberFormatException ignore) {
+                }
+            }
+            return last;
+        }
+
+        private void use(final Segment segment) {
+            mFile = segment.file;
+            mRaf = segment.raf;
+            mBuffer = segment.buffer;
+            mLogStart = segment.buffer.position();
+            mLastTime = segment.time;
+            clearDict();
+        }
+
+        /**
+         * Create and map the new segment with its head. It may run in background,
+         * so it only uses its own buffers.
+         */
+        private static Segment createSegment(final File file, final int size, final boolean binary,
+                                             final String date, final long time)
+                throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final MappedByteBuffer buffer =
+                        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (!binary) {
+                    buffer.put(getDeviceInfo(date).getBytes("UTF-8"));
+                } else {
+                    final ByteSink payload = new ByteSink();
+                    payload.putVarint(time);
+                    payload.putZigzag(TimeZone.getDefault().getOffset(time));
+                    payload.putString(getDeviceInfo(date));
+                    final ByteSink record = new ByteSink();
+                    record.put(LogDecoder.RECORD_HEAD);
+                    record.putVarint(payload.length);
+                    record.put(payload);
+                    buffer.put(LogDecoder.MAGIC);
+                    commit(buffer, record);
+                }
+                return new Segment(file, raf, buffer, time);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Create the segment after the current one and delete the old segments in background.
+         */
+        private void prepareNext() {
+            final File file = new File(getPath(mIndex + 1));
+            final File current = mFile;
+            final String dir = mDir;
+            final String prefix = mPrefix;
+            final String date = mDate;
+            final int size = mSegmentSize;
+            final boolean binary = mBinary;
+            final int maxSegments = CONFIG.mFileMaxSegments;
+            mNext = getExecutor().submit(new Callable<Segment>() {
+                @Override
+                public Segment call() throws Exception {
+                    // One left by the last process is resumed when it is due instead.
+                    final Segment next = file.exists()
+                            ? null
+                            : createSegment(file, size, binary, date, System.currentTimeMillis());
+                    deleteOldSegments(dir, prefix, maxSegments, current, file);
+                    return next;
+                }
+            });
+        }
+
+        /**
+         * Return the prepared segment if it is the one of the path, waiting for it if it
+         * is not ready yet.
+         */
+        private Segment takeNext(final String path) {
+            final Future<Segment> future = mNext;
+            if (future == null) return null;
+            mNext = null;
+            try {
+                final Segment next = future.get();
+                if (next == null || next.file.getPath().equals(path)) return next;
+                // The config changed since it was prepared.
+                getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.close(0);
+                        if (!next.file.delete()) {
+                            Log.e("LogUtils", "delete " + next.file + " failed!");
+                        }
+                    }
+                });
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+        private ExecutorService getExecutor() {
+            if (mExecutor == null) {
+                mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "LogUtils-segment");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return mExecutor;
+        }
+
+        /**
+         * Wait until the work handed to the background thread so far is done.
+         */
+        boolean flush(final long timeoutNanos) {
+            final ExecutorService executor;
+            synchronized (this) {
+                executor = mExecutor;
+            }
+            if (executor == null) return true;
+            try {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }).get(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+                return true;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void awaitBackground() {
+            if (mExecutor == null) return;
+            try {
+                mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }).get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Rebuild the dictionary and the time of a binary segment which was open
+         * when the process died, and clear what a cut write left behind.
+         */
+        private boolean recover() {
+            final MappedByteBuffer buffer = mBuffer;
+            buffer.position(0);
+            if (!LogDecoder.readMagic(buffer)) return false;
+            final LogDecoder.Parser parser = new LogDecoder.Parser(buffer);
+            while (parser.next() != 0) {
+                // Just replay.
+            }
+            for (String key : parser.dict) {
+                if (lookup(key, key.hashCode()) == 0 && mDictSize < MAX_DICT_SIZE) {
+                    insert(key);
+                } else {
+                    // Keep ids in step with the file even for an unexpected entry.
+                    return false;
+                }
+            }
+            mLastTime = parser.time;
+            final int pos = buffer.position();
+            for (int i = pos, end = findEnd(buffer); i < end; ++i) {
+                buffer.put(i, (byte) 0);
+            }
+            return true;
+        }
+
+        /**
+         * Carry on after the logs of a text segment which was open when the process
+         * died, ending the line a cut write left behind.
+         */
+        private void recoverText() throws IOException {
+            final MappedByteBuffer buffer = mBuffer;
+            final int end = findEnd(buffer);
+            buffer.position(end);
+            if (end == 0 || buffer.get(end - 1) == '\n') return;
+            final byte[] lineSep = LINE_SEP.getBytes("UTF-8");
+            if (buffer.remaining() >= lineSep.length) buffer.put(lineSep);
+        }
+
+        private static int findEnd(final MappedByteBuffer buffer) {
+            int end = buffer.limit();
+            while (end > 0 && buffer.get(end - 1) == 0) {
+                --end;
+            }
+            return end;
+        }
+
+        /**
+         * Close the segment, it is truncated to its content in background.
+         */
+        private void closeSegment() {
+            final MappedByteBuffer buffer = mBuffer;
+            final RandomAccessFile raf = mRaf;
+            mBuffer = null;
+            mRaf = null;
+            if (raf == null) return;
+            // The mapping lives on until it is collected, it is never touched again.
+            final Segment segment = new Segment(mFile, raf, buffer, 0);
+            final int end = buffer == null ? -1 : buffer.position();
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    segment.close(end);
+                }
+            });
+        }
+
+        /**
+         * Delete the oldest segments of the prefix beyond the max count, in order of
+         * the date and index in their names.
+         *
+         * @param current The segment in use, which is kept.
+         * @param next    The segment prepared after it, which isn't counted.
+         */
+        private static void deleteOldSegments(final String dir,
+                                              final String prefix,
+                                              final int maxSegments,
+                                              final File current,
+                                              final File next) {
+            final String start = prefix + "-";
+            final String nextName = next.getName();
+            final File[] files = new File(dir).listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(start) && !name.equals(nextName)
+                            && name.substring(start.length()).matches("\\d{2}-\\d{2}-\\d+\\.(txt|bin)");
+                }
+            });
+            if (files == null || files.length <= maxSegments) return;
+            final Calendar calendar = Calendar.getInstance();
+            final int today = (calendar.get(Calendar.MONTH) + 1) * 32
+                    + calendar.get(Calendar.DAY_OF_MONTH);
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    long l1 = getOrder(o1.getName(), start.length(), today);
+                    long l2 = getOrder(o2.getName(), start.length(), today);
+                    return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+                }
+            });
+            for (int i = 0, len = files.length - maxSegments; i < len; ++i) {
+                if (files[i].equals(current)) continue;
+                if (!files[i].delete()) {
+                    Log.e("LogUtils", "delete " + files[i] + " failed!");
+                }
+            }
+        }
+
+        /**
+         * Return the order of segment named prefix-MM-dd-index, a date after today
+         * is of last year since names have no year.
+         */
+        private static long getOrder(final String name, final int start, final int today) {
+            final int month = Integer.parseInt(name.substring(start, start + 2));
+            final int day = Integer.parseInt(name.substring(start + 3, start + 5));
+            final long index = Long.parseLong(name.substring(start + 6, name.lastIndexOf('.')));
+            int date = month * 32 + day;
+            if (date > today) date -= 13 * 32;
+            return ((long) date << 32) + index;
+        }
+    }
+
+    private static final class Segment {
+
+        final File             file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        final long             time;
+
+        Segment(final File file, final RandomAccessFile raf,
+                final MappedByteBuffer buffer, final long time) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+            this.time = time;
+        }
+
+        /**
+         * Truncate the file to the end and close it.
+         *
+         * @param end The end of content, -1 to keep the length.
+         */
+        void close(final int end) {
+            try {
+                if (end >= 0) raf.getChannel().truncate(end);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Growable byte array with the encodings of segments. NUL is written as a
+     * space, so text never contains a zero byte.
+     */
+    private static final class ByteSink {
+
+        byte[] bytes = new byte[1024];
+        int    length;
+
+        void put(final int b) {
+            ensureCapacity(length + 1);
+            bytes[length++] = (byte) b;
+        }
+
+        void put(final ByteSink sink) {
+            ensureCapacity(length + sink.length);
+            System.arraycopy(sink.bytes, 0, bytes, length, sink.length);
+            length += sink.length;
+        }
+
+        void putVarint(long value) {
+            ensureCapacity(length + 10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void putZigzag(final long value) {
+            putVarint((value << 1) ^ (value >> 63));
+        }
+
+        void putString(final String s) {
+            putVarint(utf8Length(s));
+            putUtf8(s);
+        }
+
+        void putChars(final char[] chars, final int offset, final int count) {
+            ensureCapacity(length + count * 3);
+            for (int i = offset, end = offset + count; i < end; ++i) {
+                encode(chars[i]);
+            }
+        }
+
+        void putUtf8(final char c) {
+            ensureCapacity(length + 3);
+            encode(c);
+        }
+
+        void putUtf8(final String s) {
+            final int len = s.length();
+            ensureCapacity(length + len * 3);
+            for (int i = 0; i < len; ++i) {
+                final char c = s.charAt(i);
+                if (c < 0x80 && c != 0) {
+                    bytes[length++] = (byte) c;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    bytes[length++] = (byte) (0xF0 | (cp >> 18));
+                    bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    encode(c);
+                }
+            }
+        }
+
+        private void encode(final char c) {
+            if (c == 0) {
+                bytes[length++] = ' ';
+            } else if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xC0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[length++] = '?';
+            } else {
+                bytes[length++] = (byte) (0xE0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        /**
+         * Return the count of bytes {@link #putUtf8(String)} writes.
+         */
+        static int utf8Length(final String s) {
+            int n = 0;
+            for (int i = 0, len = s.length(); i < len; ++i) {
+                final char c = s.charAt(i);
+                if (c < 0x80) {
+                    n += 1;
+                } else if (c < 0x800) {
+                    n += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    n += 4;
+                    ++i;
+                } else if (Character.isSurrogate(c)) {
+                    n += 1;
+                } else {
+                    n += 3;
+                }
+            }
+            return n;
+        }
+
+        static int varintSize(long value) {
+            int n = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                ++n;
+            }
+            return n;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity <= bytes.length) return;
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+        }
+    }
+
+    /**
+     * Renders "MM-dd HH:mm:ss.SSS " into a reused array, recomputing the
+     * calendar fields only when the second changes. Not thread safe.
+     */
+    private static final class TimeFormat {
+
+        static final int DATE_LENGTH = 5;
+        static final int TIME_START  = 6;
+        static final int TIME_LENGTH = 13;
+
+        private final Calendar mCalendar = Calendar.getInstance();
+        private final char[]   mChars    = "MM-dd HH:mm:ss.SSS ".toCharArray();
+        private long           mSecond   = Long.MIN_VALUE;
+        private long           mDayStart;
+        private long           mDayEnd;
+
+        /**
+         * Return whether the time falls out of the day of the last call, which
+         * means the log goes to another file.
+         */
+        boolean isNewDay(final long millis) {
+            if (millis >= mDayStart && millis < mDayEnd) return false;
+            mCalendar.setTimeInMillis(millis);
+            mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+            mCalendar.set(Calendar.MINUTE, 0);
+            mCalendar.set(Calendar.SECOND, 0);
+            mCalendar.set(Calendar.MILLISECOND, 0);
+            mDayStart = mCalendar.getTimeInMillis();
+            mCalendar.add(Calendar.DAY_OF_MONTH, 1);
+            mDayEnd = mCalendar.getTimeInMillis();
+            mSecond = Long.MIN_VALUE;
+            return true;
+        }
+
+        String getDate(final long millis) {
+            return new String(format(millis), 0, DATE_LENGTH);
+        }
+
+        char[] format(final long millis) {
+            long second = millis / 1000;
+            int ms = (int) (millis - second * 1000);
+            if (ms < 0) {
+                --second;
+                ms += 1000;
+            }
+            if (second != mSecond) {
+                mSecond = second;
+                mCalendar.setTimeInMillis(millis);
+                put2(0, mCalendar.get(Calendar.MONTH) + 1);
+                put2(3, mCalendar.get(Calendar.DAY_OF_MONTH));
+                put2(6, mCalendar.get(Calendar.HOUR_OF_DAY));
+                put2(9, mCalendar.get(Calendar.MINUTE));
+                put2(12, mCalendar.get(Calendar.SECOND));
+            }
+            mChars[15] = (char) ('0' + ms / 100);
+            mChars[16] = (char) ('0' + ms / 10 % 10);
+            mChars[17] = (char) ('0' + ms % 10);
+            return mChars;
+        }
+
+        private void put2(final int index, final int value) {
+            mChars[index] = (char) ('0' + value / 10);
+            mChars[index + 1] = (char) ('0' + value % 10);
+        }
+    }
+
+    /**
+     * Token bucket and sampler of a tag, kept as the theoretical arrival time of
+     * the next log (GCRA), so passing or dropping is one read and one CAS.
+     */
+    private static final class Limiter {
+
+        static final int PASSED        = 0;
+        static final int PASSED_REPORT = 1;
+        static final int DENIED        = 2;
+        static final int DENIED_REPORT = 3;
+
+        private static final int SAMPLE_BITS = 24;
+
+        final int     mRate;
+        final int     mBurst;
+        final float   mSampleRate;
+        final boolean mIsOwn;
+
+        private final long       mInterval;
+        private final long       mTolerance;
+        private final int        mSampleThreshold;
+        private final AtomicLong mArrival;
+        private final AtomicLong mSuppressed   = new AtomicLong();
+        private final AtomicLong mLastSummary;
+        private int              mSeed;
+
+        Limiter(final int rate, final int burst, final float sampleRate, final boolean isOwn) {
+            mRate = Math.max(0, rate);
+            mBurst = Math.max(1, burst);
+            mSampleRate = Math.max(0, Math.min(1, sampleRate));
+            mIsOwn = isOwn;
+            mInterval = mRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / mRate;
+            mTolerance = mInterval * (mBurst - 1);
+            mSampleThreshold = (int) (mSampleRate * (1 << SAMPLE_BITS));
+            final long now = System.nanoTime();
+            mArrival = new AtomicLong(now);
+            mLastSummary = new AtomicLong(now);
+            mSeed = (int) now | 1;
+        }
+
+        boolean isLimited() {
+            return mInterval > 0 || mSampleThreshold < (1 << SAMPLE_BITS);
+        }
+
+        int acquire() {
+            if (mSampleThreshold < (1 << SAMPLE_BITS) && nextRandom() >= mSampleThreshold) {
+                return deny();
+            }
+            if (mInterval > 0) {
+                final long now = System.nanoTime();
+                for (; ; ) {
+                    final long arrival = mArrival.get();
+                    final long start = arrival - now > 0 ? arrival : now;
+                    if (start - now > mTolerance) return deny();
+                    if (mArrival.compareAndSet(arrival, start + mInterval)) break;
+                }
+            }
+            return isSummaryDue() ? PASSED_REPORT : PASSED;
+        }
+
+        private int deny() {
+            // Only look at the clock for one of 64 suppressed logs.
+            final long count = mSuppressed.incrementAndGet();
+            return (count & 63) == 1 && isSummaryDue() ? DENIED_REPORT : DENIED;
+        }
+
+        private boolean isSummaryDue() {
+            return mSuppressed.get() != 0
+                    && System.nanoTime() - mLastSummary.get() >= CONFIG.mSummaryInterval;
+        }
+
+        /**
+         * Return the count of suppressed logs since the last summary, 0 if
+         * another thread just took it.
+         */
+        long takeSuppressed() {
+            final long last = mLastSummary.get();
+            if (!mLastSummary.compareAndSet(last, System.nanoTime())) return 0;
+            return mSuppressed.getAndSet(0);
+        }
+
+        private int nextRandom() {
+            // A lost update between threads only repeats a number, which is fine for sampling.
+            int x = mSeed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            mSeed = x;
+            return x >>> (32 - SAMPLE_BITS);
         }
     }
 
@@ -1,15 +1,33 @@
 package com.blankj.utilcode.util;
 
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.IntDef;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
 import android.util.Log;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <pre>
@@ -21,18 +39,35 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public final class ThreadUtils {
 
-    private static final Map<Integer, Map<Integer, ExecutorService>> TYPE_PRIORITY_POOLS =
-            new ConcurrentHashMap<>();
-    private static final Map<Task, ScheduledExecutorService> TASK_SCHEDULED =
-            new ConcurrentHashMap<>();
+    public static final int POLICY_ABORT = 0;
+    public static final int POLICY_CALLER_RUNS = 1;
+    public static final int POLICY_BLOCK = 2;
+    public static final int POLICY_DISCARD_OLDEST = 3;
+
+    private static final Map<Integer, ExecutorService> TYPE_POOLS = new ConcurrentHashMap<>();
+    private static final Map<Integer, ConcurrentHashMap<Integer, ExecutorService>>
+            TYPE_PRIORITY_POOLS = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService sScheduler;
+    private static volatile Thread sSchedulerThread;
 
     private static final byte TYPE_SINGLE = -1;
     private static final byte TYPE_CACHED = -2;
     private static final byte TYPE_IO = -4;
     private static final byte TYPE_CPU = -8;
+    private static final byte TYPE_CPU_STEALING = -16;
 
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
 
+    private static volatile boolean sCpuWorkStealing;
+    private static volatile int sRejectPolicy = POLICY_ABORT;
+    private static volatile long sBlockTimeoutMillis = 1000;
+    private static final ThreadLocal<Boolean> TRY_EXECUTING = new ThreadLocal<>();
+    private static volatile TaskHook sTaskHook;
+    private static volatile StallDetector sStallDetector;
+    private static final ConcurrentHashMap<WorkKey, Promise<?>> KEY_PROMISES =
+            new ConcurrentHashMap<>();
+    private static final Map<WorkKey, Debounce> KEY_DEBOUNCES = new HashMap<>();
+
     /**
      * Return whether the thread is the main thread.
      *
@@ -60,9 +95,12 @@ public final class ThreadUtils {
      * ThreadFactory to create new threads when needed.
      *
      * @param size     The size of thread in the pool.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @return a fixed thread pool
+     * @deprecated use the pool without priority instead,
+     * and {@link Task#setThreadPriority(int)} for the priority of thread
      */
+    @Deprecated
     public static ExecutorService getFixedPool(@IntRange(from = 1) final int size,
                                                @IntRange(from = 1, to = 10) final int priority) {
         return getPoolByTypeAndPriority(size, priority);
@@ -84,9 +122,12 @@ public final class ThreadUtils {
      * off an unbounded queue, and uses the provided ThreadFactory to
      * create a new thread when needed.
      *
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @return a single thread pool
+     * @deprecated use the pool without priority instead,
+     * and {@link Task#setThreadPriority(int)} for the priority of thread
      */
+    @Deprecated
     public static ExecutorService getSinglePool(@IntRange(from = 1, to = 10) final int priority) {
         return getPoolByTypeAndPriority(TYPE_SINGLE, priority);
     }
@@ -107,9 +148,12 @@ public final class ThreadUtils {
      * will reuse previously constructed threads when they are
      * available.
      *
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @return a cached thread pool
+     * @deprecated use the pool without priority instead,
+     * and {@link Task#setThreadPriority(int)} for the priority of thread
      */
+    @Deprecated
     public static ExecutorService getCachedPool(@IntRange(from = 1, to = 10) final int priority) {
         return getPoolByTypeAndPriority(TYPE_CACHED, priority);
     }
@@ -121,18 +165,21 @@ public final class ThreadUtils {
      * @return a IO thread pool
      */
     public static ExecutorService getIoPool() {
-        return getPoolByTypeAndPriority(TYPE_CACHED);
+        return getPoolByTypeAndPriority(TYPE_IO);
     }
 
     /**
      * Return a thread pool that creates (2 * CPU_COUNT + 1) threads
      * operating off a queue which size is 128.
      *
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @return a IO thread pool
+     * @deprecated use the pool without priority instead,
+     * and {@link Task#setThreadPriority(int)} for the priority of thread
      */
+    @Deprecated
     public static ExecutorService getIoPool(@IntRange(from = 1, to = 10) final int priority) {
-        return getPoolByTypeAndPriority(TYPE_CACHED, priority);
+        return getPoolByTypeAndPriority(TYPE_IO, priority);
     }
 
     /**
@@ -151,13 +198,404 @@ public final class ThreadUtils {
      * operating off a queue which size is 128 and the maximum
      * number of threads equals (2 * CPU_COUNT + 1).
      *
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @return a cpu thread pool for
+     * @deprecated use the pool without priority instead,
+     * and {@link Task#setThreadPriority(int)} for the priority of thread
      */
+    @Deprecated
     public static ExecutorService getCpuPool(@IntRange(from = 1, to = 10) final int priority) {
         return getPoolByTypeAndPriority(TYPE_CPU, priority);
     }
 
+    /**
+     * Set whether the cpu thread pool is a work-stealing pool of CPU_COUNT threads.
+     * <p>It takes effect since Android 5.0, and on the pools returned afterwards.
+     * Tasks are executed the same way in either pool, including their callbacks.</p>
+     *
+     * @param workStealing True to use the work-stealing pool, false otherwise.
+     */
+    public static void setCpuPoolWorkStealing(final boolean workStealing) {
+        sCpuWorkStealing = workStealing
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Run the action over the range in the cpu thread pool, and wait for it.
+     * <p>The range is split into chunks which are run in parallel. The calling thread
+     * runs chunks as well in the cpu thread pool, in the work-stealing pool it forks
+     * the chunks into the pool and may only help while waiting for them.
+     * The first failure of action is rethrown.</p>
+     *
+     * @param from   The start of the range, inclusive.
+     * @param to     The end of the range, exclusive.
+     * @param action The action to run over each chunk.
+     */
+    public static void parallelFor(final int from, final int to, final RangeAction action) {
+        parallelFor(from, to, Math.max(1, (to - from) / (CPU_COUNT * 4)), action);
+    }
+
+    /**
+     * Run the action over the range in the cpu thread pool, and wait for it.
+     * <p>The range is split into chunks which are run in parallel. The calling thread
+     * runs chunks as well in the cpu thread pool, in the work-stealing pool it forks
+     * the chunks into the pool and may only help while waiting for them.
+     * The first failure of action is rethrown.</p>
+     *
+     * @param from   The start of the range, inclusive.
+     * @param to     The end of the range, exclusive.
+     * @param grain  The max size of chunk.
+     * @param action The action to run over each chunk.
+     */
+    public static void parallelFor(final int from,
+                                   final int to,
+                                   @IntRange(from = 1) final int grain,
+                                   final RangeAction action) {
+        if (from >= to) return;
+        if (to - from <= grain) {
+            action.run(from, to);
+            return;
+        }
+        final ExecutorService pool = unwrap(getPoolByTypeAndPriority(TYPE_CPU));
+        if (pool instanceof ThreadPoolExecutor) {
+            parallelForByChunks(pool, from, to, grain, action);
+        } else {
+            parallelForByForkJoin((ForkJoinPool) pool, from, to, grain, action);
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void parallelForByForkJoin(final ForkJoinPool pool,
+                                              final int from,
+                                              final int to,
+                                              final int grain,
+                                              final RangeAction action) {
+        try {
+            pool.invoke(new RangeForkJoinTask(from, to, grain, action));
+        } catch (RuntimeException e) {
+            // the failure in another thread is rethrown as a copy caused by it
+            final Throwable cause = e.getCause();
+            if (cause != null && cause.getClass() == e.getClass()) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Set the policy of io and cpu thread pools when their queues are full.
+     * <ul>
+     * <li>{@link #POLICY_ABORT}: the task fails with {@link RejectedExecutionException}</li>
+     * <li>{@link #POLICY_CALLER_RUNS}: the task runs in the submitting thread</li>
+     * <li>{@link #POLICY_BLOCK}: the submitting thread waits for the queue up to 1 second,
+     * then the task fails</li>
+     * <li>{@link #POLICY_DISCARD_OLDEST}: the oldest queued task fails instead,
+     * the task fails as well if other threads keep the queue full</li>
+     * </ul>
+     * <p>Failed tasks are delivered to {@link Task#onFail(Throwable)} and failed promises
+     * complete with the failure, rather than lost.</p>
+     * <p>Delayed and fixed rate tasks are submitted by the shared timer, which never runs
+     * or waits for them, so they fail with {@link #POLICY_CALLER_RUNS} and {@link #POLICY_BLOCK}.</p>
+     *
+     * @param policy The policy.
+     */
+    public static void setRejectPolicy(@RejectPolicy final int policy) {
+        sRejectPolicy = policy;
+    }
+
+    /**
+     * Set the policy of io and cpu thread pools when their queues are full.
+     *
+     * @param policy       The policy.
+     * @param blockTimeout The max time to wait for the queue with {@link #POLICY_BLOCK}.
+     * @param unit         The time unit of the blockTimeout parameter.
+     * @see #setRejectPolicy(int)
+     */
+    public static void setRejectPolicy(@RejectPolicy final int policy,
+                                       final long blockTimeout,
+                                       final TimeUnit unit) {
+        sBlockTimeoutMillis = unit.toMillis(blockTimeout);
+        sRejectPolicy = policy;
+    }
+
+    /**
+     * Try to execute the given task in an io thread pool, waiting for the queue up to timeout.
+     * <p>It ignores the reject policy, the task isn't delivered to any callback if it fails.</p>
+     *
+     * @param task    The task to execute.
+     * @param timeout The max time to wait for the queue.
+     * @param unit    The time unit of the timeout parameter.
+     * @param <T>     The type of the task's result.
+     * @return {@code true}: the task is accepted<br>{@code false}: otherwise
+     */
+    public static <T> boolean tryExecuteByIo(final Task<T> task,
+                                             final long timeout,
+                                             final TimeUnit unit) {
+        return tryExecute(getPoolByTypeAndPriority(TYPE_IO), task, timeout, unit);
+    }
+
+    /**
+     * Try to execute the given task in a cpu thread pool, waiting for the queue up to timeout.
+     * <p>It ignores the reject policy, the task isn't delivered to any callback if it fails.</p>
+     *
+     * @param task    The task to execute.
+     * @param timeout The max time to wait for the queue.
+     * @param unit    The time unit of the timeout parameter.
+     * @param <T>     The type of the task's result.
+     * @return {@code true}: the task is accepted<br>{@code false}: otherwise
+     */
+    public static <T> boolean tryExecuteByCpu(final Task<T> task,
+                                              final long timeout,
+                                              final TimeUnit unit) {
+        return tryExecute(getPoolByTypeAndPriority(TYPE_CPU), task, timeout, unit);
+    }
+
+    /**
+     * Try to execute the given task in a custom thread pool, waiting for the queue up to timeout.
+     * <p>It ignores the reject policy, the task isn't delivered to any callback if it fails.</p>
+     *
+     * @param pool    The custom thread pool.
+     * @param task    The task to execute.
+     * @param timeout The max time to wait for the queue.
+     * @param unit    The time unit of the timeout parameter.
+     * @param <T>     The type of the task's result.
+     * @return {@code true}: the task is accepted<br>{@code false}: otherwise
+     */
+    public static <T> boolean tryExecuteByCustom(final ExecutorService pool,
+                                                 final Task<T> task,
+                                                 final long timeout,
+                                                 final TimeUnit unit) {
+        return tryExecute(pool, task, timeout, unit);
+    }
+
+    /**
+     * Return the count of tasks waiting in the queue of pool.
+     *
+     * @param pool The thread pool.
+     * @return the count of tasks waiting in the queue of pool, -1 if unknown
+     */
+    public static int getQueueSize(ExecutorService pool) {
+        pool = unwrap(pool);
+        if (pool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) pool).getQueue().size();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return getForkJoinQueueSize(pool);
+        }
+        return -1;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int getForkJoinQueueSize(final ExecutorService pool) {
+        if (!(pool instanceof ForkJoinPool)) return -1;
+        final long size = ((ForkJoinPool) pool).getQueuedSubmissionCount()
+                + ((ForkJoinPool) pool).getQueuedTaskCount();
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the count of tasks rejected by the io or cpu thread pool.
+     * <p>Tasks refused by tryExecuteByXxx are not counted, the caller is told instead.</p>
+     *
+     * @param pool The thread pool.
+     * @return the count of tasks rejected by the pool, 0 if it's not an io or cpu thread pool
+     */
+    public static long getRejectedCount(ExecutorService pool) {
+        pool = unwrap(pool);
+        if (pool instanceof ThreadPoolExecutor) {
+            final RejectedExecutionHandler handler =
+                    ((ThreadPoolExecutor) pool).getRejectedExecutionHandler();
+            if (handler instanceof UtilsRejectedHandler) {
+                return ((UtilsRejectedHandler) handler).rejectedCount.get();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the snapshot of metrics of the pool.
+     * <p>The work-stealing pool only reports its threads and queue: its completed count
+     * is -1, its rejected count is 0 and its histograms are empty.</p>
+     *
+     * @param pool The thread pool.
+     * @return the snapshot of metrics, null if the pool isn't created by {@link ThreadUtils}
+     */
+    public static PoolStats getPoolStats(ExecutorService pool) {
+        pool = unwrap(pool);
+        if (pool instanceof UtilsThreadPoolExecutor) {
+            return ((UtilsThreadPoolExecutor) pool).snapshot();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return getForkJoinPoolStats(pool);
+        }
+        return null;
+    }
+
+    /**
+     * Return the snapshots of metrics of all pools created by {@link ThreadUtils}.
+     *
+     * @return the snapshots of metrics
+     */
+    public static List<PoolStats> getAllPoolStats() {
+        final List<PoolStats> stats = new ArrayList<>();
+        for (ExecutorService pool : TYPE_POOLS.values()) {
+            final PoolStats stat = getPoolStats(pool);
+            if (stat != null) stats.add(stat);
+        }
+        return stats;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static PoolStats getForkJoinPoolStats(final ExecutorService pool) {
+        if (!(pool instanceof ForkJoinPool)) return null;
+        final ForkJoinPool forkJoinPool = (ForkJoinPool) pool;
+        return new PoolStats("cpu-stealing",
+                forkJoinPool.getPoolSize(),
+                forkJoinPool.getActiveThreadCount(),
+                getForkJoinQueueSize(pool),
+                -1,
+                0,
+                new long[Histogram.BUCKETS],
+                new long[Histogram.BUCKETS]
+        );
+    }
+
+    /**
+     * Set the hook which is invoked around every run of {@link Task}.
+     *
+     * @param hook The hook, null to remove it.
+     */
+    public static void setTaskHook(final TaskHook hook) {
+        sTaskHook = hook;
+    }
+
+    /**
+     * Start detecting stalls of the main thread, only in debuggable apps.
+     * <p>The main thread is pinged periodically, and its stack is logged if it doesn't
+     * respond within the threshold. Blocking waits of {@link ThreadUtils} called in the
+     * main thread are logged as well.</p>
+     *
+     * @param threshold The max time the main thread may be blocked.
+     * @param unit      The time unit of the threshold parameter.
+     * @return {@code true}: it is started<br>{@code false}: otherwise
+     */
+    public static synchronized boolean startMainThreadStallDetector(final long threshold,
+                                                                    final TimeUnit unit) {
+        if (Deliver.MAIN_HANDLER == null || !AppUtils.isAppDebug()) return false;
+        stopMainThreadStallDetector();
+        sStallDetector = new StallDetector(unit.toNanos(threshold));
+        sStallDetector.start();
+        return true;
+    }
+
+    /**
+     * Stop detecting stalls of the main thread.
+     */
+    public static synchronized void stopMainThreadStallDetector() {
+        final StallDetector detector = sStallDetector;
+        if (detector != null) {
+            sStallDetector = null;
+            detector.stop();
+        }
+    }
+
+    /**
+     * Log the blocking wait if it is in the main thread while detecting stalls.
+     *
+     * @return {@code true}: it is logged<br>{@code false}: otherwise
+     */
+    static boolean checkBlockingWait(final String what) {
+        if (sStallDetector == null || !isMainThread()) return false;
+        Log.w("ThreadUtils", what + " blocks the main thread", new Throwable());
+        return true;
+    }
+
+    private static <T> boolean tryExecute(ExecutorService pool,
+                                          final Task<T> task,
+                                          final long timeout,
+                                          final TimeUnit unit) {
+        if (pool instanceof PriorityPool) {
+            ((PriorityPool) pool).inherit(task);
+            pool = ((PriorityPool) pool).pool;
+        }
+        TRY_EXECUTING.set(Boolean.TRUE);
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (!(pool instanceof ThreadPoolExecutor) || pool.isShutdown()) return false;
+        } finally {
+            TRY_EXECUTING.remove();
+        }
+        final ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+        checkBlockingWait("tryExecute");
+        try {
+            if (!executor.getQueue().offer(task, timeout, unit)) return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        // shut down while waiting
+        if (executor.isShutdown() && executor.remove(task)) return false;
+        executor.prestartCoreThread();
+        return true;
+    }
+
+    /**
+     * Let the caller and the helpers of pool claim chunks one by one,
+     * so it completes even if no helper gets a thread.
+     */
+    private static void parallelForByChunks(final ExecutorService pool,
+                                            final int from,
+                                            final int to,
+                                            final int grain,
+                                            final RangeAction action) {
+        final int chunks = (int) (((long) to - from + grain - 1) / grain);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger pending = new AtomicInteger(chunks);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = next.getAndIncrement()) < chunks) {
+                    final int start = from + chunk * grain;
+                    try {
+                        if (error.get() == null) action.run(start, Math.min(to, start + grain));
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) done.countDown();
+                    }
+                }
+            }
+        };
+        final int helpers = Math.min(chunks, CPU_COUNT) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                pool.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+        if (pending.get() > 0) checkBlockingWait("parallelFor");
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        final Throwable t = error.get();
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+    }
+
     /**
      * Executes the given task in a fixed thread pool.
      *
@@ -174,9 +612,12 @@ public final class ThreadUtils {
      *
      * @param size     The size of thread in the fixed thread pool.
      * @param task     The task to execute.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByFixed(@IntRange(from = 1) final int size,
                                           final Task<T> task,
                                           @IntRange(from = 1, to = 10) final int priority) {
@@ -206,9 +647,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param delay    The time from now to delay execution.
      * @param unit     The time unit of the delay parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByFixedWithDelay(@IntRange(from = 1) final int size,
                                                    final Task<T> task,
                                                    final long delay,
@@ -240,9 +684,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param period   The period between successive executions.
      * @param unit     The time unit of the period parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByFixedAtFixRate(@IntRange(from = 1) final int size,
                                                    final Task<T> task,
                                                    final long period,
@@ -277,9 +724,12 @@ public final class ThreadUtils {
      * @param initialDelay The time to delay first execution.
      * @param period       The period between successive executions.
      * @param unit         The time unit of the initialDelay and period parameters.
-     * @param priority     The priority of thread in the poll.
+     * @param priority     The priority of thread in the pool.
      * @param <T>          The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByFixedAtFixRate(@IntRange(from = 1) final int size,
                                                    final Task<T> task,
                                                    long initialDelay,
@@ -303,9 +753,12 @@ public final class ThreadUtils {
      * Executes the given task in a single thread pool.
      *
      * @param task     The task to execute.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeBySingle(final Task<T> task,
                                            @IntRange(from = 1, to = 10) final int priority) {
         execute(getPoolByTypeAndPriority(TYPE_SINGLE, priority), task);
@@ -331,9 +784,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param delay    The time from now to delay execution.
      * @param unit     The time unit of the delay parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeBySingleWithDelay(final Task<T> task,
                                                     final long delay,
                                                     final TimeUnit unit,
@@ -361,9 +817,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param period   The period between successive executions.
      * @param unit     The time unit of the period parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeBySingleAtFixRate(final Task<T> task,
                                                     final long period,
                                                     final TimeUnit unit,
@@ -394,9 +853,12 @@ public final class ThreadUtils {
      * @param initialDelay The time to delay first execution.
      * @param period       The period between successive executions.
      * @param unit         The time unit of the initialDelay and period parameters.
-     * @param priority     The priority of thread in the poll.
+     * @param priority     The priority of thread in the pool.
      * @param <T>          The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeBySingleAtFixRate(final Task<T> task,
                                                     long initialDelay,
                                                     final long period,
@@ -421,9 +883,12 @@ public final class ThreadUtils {
      * Executes the given task in a cached thread pool.
      *
      * @param task     The task to execute.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCached(final Task<T> task,
                                            @IntRange(from = 1, to = 10) final int priority) {
         execute(getPoolByTypeAndPriority(TYPE_CACHED, priority), task);
@@ -449,9 +914,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param delay    The time from now to delay execution.
      * @param unit     The time unit of the delay parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCachedWithDelay(final Task<T> task,
                                                     final long delay,
                                                     final TimeUnit unit,
@@ -479,9 +947,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param period   The period between successive executions.
      * @param unit     The time unit of the period parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCachedAtFixRate(final Task<T> task,
                                                     final long period,
                                                     final TimeUnit unit,
@@ -512,9 +983,12 @@ public final class ThreadUtils {
      * @param initialDelay The time to delay first execution.
      * @param period       The period between successive executions.
      * @param unit         The time unit of the initialDelay and period parameters.
-     * @param priority     The priority of thread in the poll.
+     * @param priority     The priority of thread in the pool.
      * @param <T>          The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCachedAtFixRate(final Task<T> task,
                                                     long initialDelay,
                                                     final long period,
@@ -539,9 +1013,12 @@ public final class ThreadUtils {
      * Executes the given task in an IO thread pool.
      *
      * @param task     The task to execute.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByIo(final Task<T> task,
                                        @IntRange(from = 1, to = 10) final int priority) {
         execute(getPoolByTypeAndPriority(TYPE_IO, priority), task);
@@ -567,9 +1044,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param delay    The time from now to delay execution.
      * @param unit     The time unit of the delay parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByIoWithDelay(final Task<T> task,
                                                 final long delay,
                                                 final TimeUnit unit,
@@ -597,9 +1077,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param period   The period between successive executions.
      * @param unit     The time unit of the period parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByIoAtFixRate(final Task<T> task,
                                                 final long period,
                                                 final TimeUnit unit,
@@ -630,9 +1113,12 @@ public final class ThreadUtils {
      * @param initialDelay The time to delay first execution.
      * @param period       The period between successive executions.
      * @param unit         The time unit of the initialDelay and period parameters.
-     * @param priority     The priority of thread in the poll.
+     * @param priority     The priority of thread in the pool.
      * @param <T>          The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByIoAtFixRate(final Task<T> task,
                                                 long initialDelay,
                                                 final long period,
@@ -657,9 +1143,12 @@ public final class ThreadUtils {
      * Executes the given task in a cpu thread pool.
      *
      * @param task     The task to execute.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCpu(final Task<T> task,
                                         @IntRange(from = 1, to = 10) final int priority) {
         execute(getPoolByTypeAndPriority(TYPE_CPU, priority), task);
@@ -685,9 +1174,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param delay    The time from now to delay execution.
      * @param unit     The time unit of the delay parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCpuWithDelay(final Task<T> task,
                                                  final long delay,
                                                  final TimeUnit unit,
@@ -715,9 +1207,12 @@ public final class ThreadUtils {
      * @param task     The task to execute.
      * @param period   The period between successive executions.
      * @param unit     The time unit of the period parameter.
-     * @param priority The priority of thread in the poll.
+     * @param priority The priority of thread in the pool.
      * @param <T>      The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCpuAtFixRate(final Task<T> task,
                                                  final long period,
                                                  final TimeUnit unit,
@@ -748,9 +1243,12 @@ public final class ThreadUtils {
      * @param initialDelay The time to delay first execution.
      * @param period       The period between successive executions.
      * @param unit         The time unit of the initialDelay and period parameters.
-     * @param priority     The priority of thread in the poll.
+     * @param priority     The priority of thread in the pool.
      * @param <T>          The type of the task's result.
+     * @deprecated use {@link Task#setThreadPriority(int)} instead,
+     * and {@link Task#setQueuePriority(int)} to order the task in the queue of pool
      */
+    @Deprecated
     public static <T> void executeByCpuAtFixRate(final Task<T> task,
                                                  long initialDelay,
                                                  final long period,
@@ -822,6 +1320,168 @@ public final class ThreadUtils {
         executeAtFixedRate(pool, task, initialDelay, period, unit);
     }
 
+    /**
+     * Return a promise completed by the callable in an io thread pool.
+     *
+     * @param callable The callable to call.
+     * @param <T>      The type of the result.
+     * @return the promise
+     */
+    public static <T> Promise<T> supplyByIo(final Callable<T> callable) {
+        return Promise.supplyAsync(callable, getPoolByTypeAndPriority(TYPE_IO));
+    }
+
+    /**
+     * Return a promise completed by the callable in a cpu thread pool.
+     *
+     * @param callable The callable to call.
+     * @param <T>      The type of the result.
+     * @return the promise
+     */
+    public static <T> Promise<T> supplyByCpu(final Callable<T> callable) {
+        return Promise.supplyAsync(callable, getPoolByTypeAndPriority(TYPE_CPU));
+    }
+
+    /**
+     * Return a promise completed by the callable in a custom thread pool.
+     *
+     * @param pool     The custom thread pool.
+     * @param callable The callable to call.
+     * @param <T>      The type of the result.
+     * @return the promise
+     */
+    public static <T> Promise<T> supplyByCustom(final Executor pool, final Callable<T> callable) {
+        return Promise.supplyAsync(callable, pool);
+    }
+
+    /**
+     * Return the promise of the callable with the key, joining the one in flight if any.
+     * <p>Callers with the same key share one execution and its result, each with its own
+     * promise, so cancelling one doesn't affect the others.
+     * A key must always be used with the same type of result in the same pool.</p>
+     *
+     * @param key      The key of work.
+     * @param pool     The thread pool.
+     * @param callable The callable to call.
+     * @param <T>      The type of the result.
+     * @return the promise
+     */
+    public static <T> Promise<T> supplyCoalesced(@NonNull final String key,
+                                                 final Executor pool,
+                                                 final Callable<T> callable) {
+        return supplyCoalesced(key, pool, callable, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the promise of the callable with the key, joining the one in flight
+     * or completed within the window if any.
+     * <p>The key executes at most once per window after completion, which throttles it.
+     * A key must always be used with the same type of result in the same pool.</p>
+     *
+     * @param key      The key of work.
+     * @param pool     The thread pool.
+     * @param callable The callable to call.
+     * @param window   The time to reuse the result after completion.
+     * @param unit     The time unit of the window parameter.
+     * @param <T>      The type of the result.
+     * @return the promise
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<T> supplyCoalesced(@NonNull final String key,
+                                                 final Executor pool,
+                                                 final Callable<T> callable,
+                                                 final long window,
+                                                 final TimeUnit unit) {
+        final WorkKey workKey = new WorkKey(pool, key);
+        final Promise<T> promise = new Promise<>();
+        final Promise<?> joined = KEY_PROMISES.putIfAbsent(workKey, promise);
+        if (joined != null) return ((Promise<T>) joined).fork();
+        promise.listen(new Runnable() {
+            @Override
+            public void run() {
+                final Runnable release = new Runnable() {
+                    @Override
+                    public void run() {
+                        KEY_PROMISES.remove(workKey, promise);
+                    }
+                };
+                if (window <= 0 || promise.error != null) {
+                    release.run();
+                } else {
+                    getScheduler().schedule(release, window, unit);
+                }
+            }
+        });
+        Promise.execute(pool, promise, new Promise.Stage(promise) {
+            @Override
+            public void run() {
+                try {
+                    promise.complete(callable.call());
+                } catch (Throwable t) {
+                    promise.completeExceptionally(t);
+                }
+            }
+        });
+        return promise.fork();
+    }
+
+    /**
+     * Return the promise of the callable with the key, which executes once the key is
+     * quiet for the delay.
+     * <p>Each call within the delay restarts it and replaces the callable,
+     * all callers share the result of the last callable, each with its own promise.
+     * A key must always be used with the same type of result in the same pool.</p>
+     *
+     * @param key      The key of work.
+     * @param pool     The thread pool.
+     * @param callable The callable to call.
+     * @param delay    The quiet time before execution.
+     * @param unit     The time unit of the delay parameter.
+     * @param <T>      The type of the result.
+     * @return the promise
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Promise<T> supplyDebounced(@NonNull final String key,
+                                                 final Executor pool,
+                                                 final Callable<T> callable,
+                                                 final long delay,
+                                                 final TimeUnit unit) {
+        final WorkKey workKey = new WorkKey(pool, key);
+        synchronized (KEY_DEBOUNCES) {
+            Debounce debounce = KEY_DEBOUNCES.get(workKey);
+            if (debounce == null) {
+                debounce = new Debounce();
+                KEY_DEBOUNCES.put(workKey, debounce);
+            } else if (debounce.schedule != null) {
+                debounce.schedule.cancel(false);
+            }
+            final Debounce current = debounce;
+            final int generation = ++current.generation;
+            current.schedule = getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (KEY_DEBOUNCES) {
+                        // restarted by a later call
+                        if (current.generation != generation) return;
+                        KEY_DEBOUNCES.remove(workKey);
+                    }
+                    final Promise<T> promise = (Promise<T>) current.promise;
+                    Promise.execute(pool, promise, new Promise.Stage(promise) {
+                        @Override
+                        public void run() {
+                            try {
+                                promise.complete(callable.call());
+                            } catch (Throwable t) {
+                                promise.completeExceptionally(t);
+                            }
+                        }
+                    });
+                }
+            }, delay, unit);
+            return ((Promise<T>) current.promise).fork();
+        }
+    }
+
     /**
      * Cancel the given task.
      *
@@ -840,19 +1500,14 @@ public final class ThreadUtils {
                                              final long delay,
                                              final TimeUnit unit) {
         if (delay <= 0) {
-            getScheduledByTask(task).execute(new Runnable() {
-                @Override
-                public void run() {
-                    pool.execute(task);
-                }
-            });
+            dispatch(pool, task);
         } else {
-            getScheduledByTask(task).schedule(new Runnable() {
+            setSchedule(task, getScheduler().schedule(new Runnable() {
                 @Override
                 public void run() {
-                    pool.execute(task);
+                    if (task.state == Task.NEW) dispatch(pool, task);
                 }
-            }, delay, unit);
+            }, delay, unit));
         }
     }
 
@@ -862,29 +1517,56 @@ public final class ThreadUtils {
                                                final long period,
                                                final TimeUnit unit) {
         task.isSchedule = true;
-        getScheduledByTask(task).scheduleAtFixedRate(new Runnable() {
+        setSchedule(task, getScheduler().scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                pool.execute(task);
+                dispatch(pool, task);
             }
-        }, initialDelay, period, unit);
+        }, initialDelay, period, unit));
+    }
+
+    private static void dispatch(final ExecutorService pool, final Task task) {
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject(e);
+        }
     }
 
-    private static ScheduledExecutorService getScheduledByTask(final Task task) {
-        ScheduledExecutorService scheduled = TASK_SCHEDULED.get(task);
-        if (scheduled == null) {
-            UtilsThreadFactory factory = new UtilsThreadFactory("scheduled", Thread.MAX_PRIORITY);
-            scheduled = Executors.newScheduledThreadPool(1, factory);
-            TASK_SCHEDULED.put(task, scheduled);
+    /**
+     * Return the timer shared by all tasks, which only hands tasks over to their pools.
+     */
+    private static ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            synchronized (ThreadUtils.class) {
+                if (sScheduler == null) {
+                    final ThreadFactory factory =
+                            new UtilsThreadFactory("scheduled", Thread.MAX_PRIORITY);
+                    sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable r) {
+                            final Thread thread = factory.newThread(r);
+                            sSchedulerThread = thread;
+                            return thread;
+                        }
+                    });
+                }
+            }
         }
-        return scheduled;
+        return sScheduler;
+    }
+
+    private static void setSchedule(final Task task, final ScheduledFuture<?> schedule) {
+        task.schedule = schedule;
+        // cancelled before the schedule is set
+        if (task.state != Task.NEW) removeScheduleByTask(task);
     }
 
     private static void removeScheduleByTask(final Task task) {
-        ScheduledExecutorService scheduled = TASK_SCHEDULED.get(task);
-        if (scheduled != null) {
-            TASK_SCHEDULED.remove(task);
-            shutdownAndAwaitTermination(scheduled);
+        final ScheduledFuture<?> schedule = task.schedule;
+        if (schedule != null) {
+            task.schedule = null;
+            schedule.cancel(false);
         }
     }
 
@@ -892,94 +1574,553 @@ public final class ThreadUtils {
         return getPoolByTypeAndPriority(type, Thread.NORM_PRIORITY);
     }
 
-    private static ExecutorService getPoolByTypeAndPriority(final int type, final int priority) {
-        ExecutorService pool;
-        Map<Integer, ExecutorService> priorityPools = TYPE_PRIORITY_POOLS.get(type);
+    /**
+     * Return the pool of type, or the view of it which runs tasks with the priority of thread.
+     * <p>All priorities of a type share one pool, whose tasks are queued by
+     * {@link Task#setQueuePriority(int)}.</p>
+     */
+    private static ExecutorService getPoolByTypeAndPriority(int type, final int priority) {
+        // the work-stealing pool is only set since Android 5.0
+        if (type == TYPE_CPU && sCpuWorkStealing) type = TYPE_CPU_STEALING;
+        final ExecutorService pool = getPoolByType(type);
+        if (priority == Thread.NORM_PRIORITY) return pool;
+        ConcurrentHashMap<Integer, ExecutorService> priorityPools = TYPE_PRIORITY_POOLS.get(type);
         if (priorityPools == null) {
-            priorityPools = new ConcurrentHashMap<>();
-            pool = createPoolByTypeAndPriority(type, priority);
-            priorityPools.put(priority, pool);
-            TYPE_PRIORITY_POOLS.put(type, priorityPools);
-        } else {
-            pool = priorityPools.get(priority);
-            if (pool == null) {
-                pool = createPoolByTypeAndPriority(type, priority);
-                priorityPools.put(priority, pool);
+            synchronized (TYPE_PRIORITY_POOLS) {
+                priorityPools = TYPE_PRIORITY_POOLS.get(type);
+                if (priorityPools == null) {
+                    priorityPools = new ConcurrentHashMap<>();
+                    TYPE_PRIORITY_POOLS.put(type, priorityPools);
+                }
+            }
+        }
+        ExecutorService priorityPool = priorityPools.get(priority);
+        if (priorityPool == null) {
+            priorityPool = new PriorityPool(pool, priority);
+            final ExecutorService old = priorityPools.putIfAbsent(priority, priorityPool);
+            if (old != null) priorityPool = old;
+        }
+        return priorityPool;
+    }
+
+    private static ExecutorService getPoolByType(final int type) {
+        ExecutorService pool = TYPE_POOLS.get(type);
+        if (pool == null) {
+            synchronized (TYPE_POOLS) {
+                pool = TYPE_POOLS.get(type);
+                if (pool == null) {
+                    pool = createPoolByType(type);
+                    TYPE_POOLS.put(type, pool);
+                }
             }
         }
         return pool;
     }
 
-    private static ExecutorService createPoolByTypeAndPriority(final int type, final int priority) {
+    private static ExecutorService createPoolByType(final int type) {
         switch (type) {
             case TYPE_SINGLE:
-                return Executors.newSingleThreadExecutor(
-                        new UtilsThreadFactory("single", priority)
+                return new UtilsThreadPoolExecutor("single", 1, 1,
+                        0L, TimeUnit.MILLISECONDS,
+                        new PriorityTaskQueue(Integer.MAX_VALUE),
+                        new UtilsThreadFactory("single", Thread.NORM_PRIORITY),
+                        new UtilsRejectedHandler()
                 );
             case TYPE_CACHED:
-                return Executors.newCachedThreadPool(
-                        new UtilsThreadFactory("cached", priority)
+                return new UtilsThreadPoolExecutor("cached", 0, Integer.MAX_VALUE,
+                        60L, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(),
+                        new UtilsThreadFactory("cached", Thread.NORM_PRIORITY),
+                        new UtilsRejectedHandler()
                 );
             case TYPE_IO:
-                return new ThreadPoolExecutor(2 * CPU_COUNT + 1,
+                return new UtilsThreadPoolExecutor("io", 2 * CPU_COUNT + 1,
                         2 * CPU_COUNT + 1,
                         30, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(128),
-                        new UtilsThreadFactory("io", priority)
+                        new PriorityTaskQueue(128),
+                        new UtilsThreadFactory("io", Thread.NORM_PRIORITY),
+                        new UtilsRejectedHandler()
                 );
             case TYPE_CPU:
-                return new ThreadPoolExecutor(CPU_COUNT + 1,
+                return new UtilsThreadPoolExecutor("cpu", CPU_COUNT + 1,
                         2 * CPU_COUNT + 1,
                         30, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(128),
-                        new UtilsThreadFactory("cpu", priority)
+                        new PriorityTaskQueue(128),
+                        new UtilsThreadFactory("cpu", Thread.NORM_PRIORITY),
+                        new UtilsRejectedHandler()
                 );
+            case TYPE_CPU_STEALING:
+                return createWorkStealingPool(Thread.NORM_PRIORITY);
             default:
-                return Executors.newFixedThreadPool(
-                        type,
-                        new UtilsThreadFactory("fixed(" + type + ")", priority)
+                return new UtilsThreadPoolExecutor("fixed(" + type + ")", type, type,
+                        0L, TimeUnit.MILLISECONDS,
+                        new PriorityTaskQueue(Integer.MAX_VALUE),
+                        new UtilsThreadFactory("fixed(" + type + ")", Thread.NORM_PRIORITY),
+                        new UtilsRejectedHandler()
                 );
         }
     }
 
-    private static void shutdownAndAwaitTermination(final ExecutorService pool) {
-        pool.shutdown();
-        try {
-            if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                pool.shutdownNow();
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    System.err.println("Pool did not terminate");
-                }
+    /**
+     * Return the pool under the view of priority.
+     */
+    private static ExecutorService unwrap(final ExecutorService pool) {
+        return pool instanceof PriorityPool ? ((PriorityPool) pool).pool : pool;
+    }
+
+    private static int priorityOf(final Runnable r) {
+        if (r instanceof Task) return ((Task) r).priority;
+        return Thread.NORM_PRIORITY;
+    }
+
+    /**
+     * The view of pool which runs tasks with the priority of thread,
+     * unless the task sets its own.
+     */
+    private static final class PriorityPool extends AbstractExecutorService {
+        private final ExecutorService pool;
+        private final int priority;
+
+        PriorityPool(final ExecutorService pool, final int priority) {
+            this.pool = pool;
+            this.priority = priority;
+        }
+
+        void inherit(final Task<?> task) {
+            if (task.threadPriority == 0) task.threadPriority = priority;
+        }
+
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            if (command instanceof Task) {
+                inherit((Task<?>) command);
+                pool.execute(command);
+            } else {
+                pool.execute(new PriorityRunnable(command, priority));
             }
-        } catch (InterruptedException e) {
-            pool.shutdownNow();
-            Thread.currentThread().interrupt();
-            e.printStackTrace();
         }
-    }
 
-    public abstract static class SimpleTask<T> extends Task<T> {
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
 
+        @NonNull
         @Override
-        public void onCancel() {
-            Log.e("ThreadUtils", "onCancel: " + Thread.currentThread());
+        public List<Runnable> shutdownNow() {
+            return pool.shutdownNow();
         }
 
         @Override
-        public void onFail(Throwable t) {
-            Log.e("ThreadUtils", "onFail: ", t);
+        public boolean isShutdown() {
+            return pool.isShutdown();
         }
 
+        @Override
+        public boolean isTerminated() {
+            return pool.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, @NonNull final TimeUnit unit)
+                throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
     }
 
-    public abstract static class Task<T> implements Runnable {
+    private static final class PriorityRunnable implements Runnable {
+        private final Runnable runnable;
+        private final int priority;
 
-        private static final int NEW = 0;
+        PriorityRunnable(final Runnable runnable, final int priority) {
+            this.runnable = runnable;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            final Thread thread = Thread.currentThread();
+            final int oldPriority = thread.getPriority();
+            thread.setPriority(priority);
+            try {
+                runnable.run();
+            } finally {
+                thread.setPriority(oldPriority);
+            }
+        }
+    }
+
+    /**
+     * The blocking queue ordered by priority, FIFO within a priority.
+     * <p>Waiting ages a task: it is ranked by the time it is queued minus 100 ms per priority,
+     * so a task is overtaken only by tasks of higher priority queued shortly after it,
+     * and never starves.</p>
+     */
+    private static final class PriorityTaskQueue extends AbstractQueue<Runnable>
+            implements BlockingQueue<Runnable> {
+        private static final long AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+        private static final Comparator<Node> COMPARATOR = new Comparator<Node>() {
+            @Override
+            public int compare(Node o1, Node o2) {
+                if (o1.rank != o2.rank) return o1.rank < o2.rank ? -1 : 1;
+                return o1.seq < o2.seq ? -1 : (o1.seq == o2.seq ? 0 : 1);
+            }
+        };
+        private final PriorityQueue<Node> heap = new PriorityQueue<>(16, COMPARATOR);
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final int capacity;
+        private long seq;
+        private Histogram waitHistogram;
+
+        PriorityTaskQueue(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        private static final class Node {
+            final Runnable runnable;
+            final long rank;
+            final long seq;
+            final long enqueueNanos;
+
+            Node(final Runnable runnable, final long rank, final long seq, final long enqueueNanos) {
+                this.runnable = runnable;
+                this.rank = rank;
+                this.seq = seq;
+                this.enqueueNanos = enqueueNanos;
+            }
+        }
+
+        private void enqueue(final Runnable r) {
+            final long now = System.nanoTime();
+            heap.offer(new Node(r, now - priorityOf(r) * AGING_NANOS, seq++, now));
+            notEmpty.signal();
+        }
+
+        private Runnable dequeue() {
+            final Node node = heap.poll();
+            notFull.signal();
+            if (waitHistogram != null) waitHistogram.record(System.nanoTime() - node.enqueueNanos);
+            return node.runnable;
+        }
+
+        @Override
+        public boolean offer(@NonNull final Runnable r) {
+            lock.lock();
+            try {
+                if (heap.size() >= capacity) return false;
+                enqueue(r);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean offer(final Runnable r, final long timeout, @NonNull final TimeUnit unit)
+                throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (heap.size() >= capacity) {
+                    if (nanos <= 0) return false;
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                enqueue(r);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(@NonNull final Runnable r) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (heap.size() >= capacity) {
+                    notFull.await();
+                }
+                enqueue(r);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll() {
+            lock.lock();
+            try {
+                return heap.isEmpty() ? null : dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(final long timeout, @NonNull final TimeUnit unit)
+                throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (heap.isEmpty()) {
+                    if (nanos <= 0) return null;
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @NonNull
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (heap.isEmpty()) {
+                    notEmpty.await();
+                }
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove the task which is queued first, regardless of priority.
+         */
+        Runnable pollOldest() {
+            lock.lock();
+            try {
+                Node oldest = null;
+                for (Node node : heap) {
+                    if (oldest == null || node.seq < oldest.seq) oldest = node;
+                }
+                if (oldest == null) return null;
+                heap.remove(oldest);
+                notFull.signal();
+                return oldest.runnable;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable peek() {
+            lock.lock();
+            try {
+                final Node node = heap.peek();
+                return node == null ? null : node.runnable;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return heap.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            lock.lock();
+            try {
+                return capacity - heap.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+            lock.lock();
+            try {
+                final Iterator<Node> it = heap.iterator();
+                while (it.hasNext()) {
+                    if (it.next().runnable == o) {
+                        it.remove();
+                        notFull.signal();
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void clear() {
+            lock.lock();
+            try {
+                heap.clear();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int drainTo(@NonNull final Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(@NonNull final Collection<? super Runnable> c, final int maxElements) {
+            lock.lock();
+            try {
+                int n = 0;
+                while (n < maxElements && !heap.isEmpty()) {
+                    c.add(heap.poll().runnable);
+                    n++;
+                }
+                if (n > 0) notFull.signalAll();
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Return the iterator over a snapshot of the queue in no particular order.
+         */
+        @NonNull
+        @Override
+        public Iterator<Runnable> iterator() {
+            final List<Runnable> snapshot;
+            lock.lock();
+            try {
+                snapshot = new ArrayList<>(heap.size());
+                for (Node node : heap) {
+                    snapshot.add(node.runnable);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new Iterator<Runnable>() {
+                private int cursor;
+                private Runnable last;
+
+                @Override
+                public boolean hasNext() {
+                    return cursor < snapshot.size();
+                }
+
+                @Override
+                public Runnable next() {
+                    return last = snapshot.get(cursor++);
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) throw new IllegalStateException();
+                    PriorityTaskQueue.this.remove(last);
+                    last = null;
+                }
+            };
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static ExecutorService createWorkStealingPool(final int priority) {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        final String namePrefix = "cpu-stealing-pool-" + priority + "-thread-";
+        return new ForkJoinPool(
+                CPU_COUNT,
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                        ForkJoinWorkerThread t =
+                                ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        t.setName(namePrefix + threadNumber.getAndIncrement());
+                        t.setPriority(priority);
+                        return t;
+                    }
+                },
+                new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(final Thread t, final Throwable e) {
+                        Log.e("ThreadUtils", "Request threw uncaught throwable", e);
+                    }
+                },
+                // FIFO for submitted tasks, forked subtasks are still stolen
+                true
+        );
+    }
+
+    /**
+     * The action over a chunk of range.
+     */
+    public interface RangeAction {
+
+        /**
+         * Run over the chunk.
+         *
+         * @param from The start of chunk, inclusive.
+         * @param to   The end of chunk, exclusive.
+         */
+        void run(int from, int to);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static final class RangeForkJoinTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final RangeAction action;
+
+        RangeForkJoinTask(final int from, final int to, final int grain, final RangeAction action) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                action.run(from, to);
+                return;
+            }
+            final int mid = from + ((to - from) >>> 1);
+            invokeAll(
+                    new RangeForkJoinTask(from, mid, grain, action),
+                    new RangeForkJoinTask(mid, to, grain, action)
+            );
+        }
+    }
+
+    public abstract static class SimpleTask<T> extends Task<T> {
+
+        @Override
+        public void onCancel() {
+            Log.e("ThreadUtils", "onCancel: " + Thread.currentThread());
+        }
+
+        @Override
+        public void onFail(Throwable t) {
+            Log.e("ThreadUtils", "onFail: ", t);
+        }
+
+    }
+
+    public abstract static class Task<T> implements Runnable {
+
+        private static final int NEW = 0;
         private static final int COMPLETING = 1;
         private static final int CANCELLED = 2;
         private static final int EXCEPTIONAL = 3;
         private boolean isSchedule;
         private volatile int state;
+        private volatile ScheduledFuture<?> schedule;
+        private volatile int priority = Thread.NORM_PRIORITY;
+        private volatile int threadPriority;
 
         public Task() {
             state = NEW;
@@ -993,9 +2134,66 @@ public final class ThreadUtils {
 
         public abstract void onFail(Throwable t);
 
+        /**
+         * Set the priority of task in the queue of pool, tasks of higher priority run first
+         * and tasks of equal priority run in order.
+         * <p>It has no effect on the cached pool, which has no queue,
+         * and on the work-stealing pool, which doesn't order tasks.</p>
+         *
+         * @param priority The priority of task, {@link Thread#NORM_PRIORITY} by default.
+         * @return the task
+         */
+        public Task<T> setQueuePriority(@IntRange(from = 1, to = 10) final int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Set the priority of thread while the task runs, which is independent of the
+         * priority of task in the queue of pool.
+         *
+         * @param threadPriority The priority of thread.
+         * @return the task
+         */
+        public Task<T> setThreadPriority(@IntRange(from = 1, to = 10) final int threadPriority) {
+            this.threadPriority = threadPriority;
+            return this;
+        }
 
         @Override
         public void run() {
+            if (state != NEW) return;
+            final TaskHook hook = sTaskHook;
+            if (hook == null) {
+                runWithPriority();
+                return;
+            }
+            hook.beforeRun(this);
+            final long start = System.nanoTime();
+            try {
+                runWithPriority();
+            } finally {
+                hook.afterRun(this, System.nanoTime() - start);
+            }
+        }
+
+        private void runWithPriority() {
+            final int threadPriority = this.threadPriority;
+            if (threadPriority == 0) {
+                runInBackground();
+                return;
+            }
+            final Thread thread = Thread.currentThread();
+            final int oldPriority = thread.getPriority();
+            thread.setPriority(threadPriority);
+            try {
+                runInBackground();
+            } finally {
+                thread.setPriority(oldPriority);
+            }
+        }
+
+        private void runInBackground() {
             try {
                 final T result = doInBackground();
                 if (state != NEW) return;
@@ -1009,11 +2207,11 @@ public final class ThreadUtils {
                     });
                 } else {
                     state = COMPLETING;
+                    removeScheduleByTask(this);
                     Deliver.post(new Runnable() {
                         @Override
                         public void run() {
                             onSuccess(result);
-                            removeScheduleByTask(Task.this);
                         }
                     });
                 }
@@ -1021,30 +2219,897 @@ public final class ThreadUtils {
                 if (state != NEW) return;
 
                 state = EXCEPTIONAL;
+                removeScheduleByTask(this);
                 Deliver.post(new Runnable() {
                     @Override
                     public void run() {
                         onFail(throwable);
-                        removeScheduleByTask(Task.this);
                     }
                 });
             }
         }
 
+        private void reject(final Throwable throwable) {
+            if (state != NEW) return;
+
+            state = EXCEPTIONAL;
+            removeScheduleByTask(this);
+            Deliver.post(new Runnable() {
+                @Override
+                public void run() {
+                    onFail(throwable);
+                }
+            });
+        }
+
         public void cancel() {
             if (state != NEW) return;
 
             state = CANCELLED;
+            removeScheduleByTask(this);
             Deliver.post(new Runnable() {
                 @Override
                 public void run() {
                     onCancel();
-                    removeScheduleByTask(Task.this);
                 }
             });
         }
     }
 
+    /**
+     * The function of a stage of {@link Promise}.
+     *
+     * @param <T> The type of input.
+     * @param <R> The type of output.
+     */
+    public interface Func<T, R> {
+
+        R apply(T t) throws Throwable;
+    }
+
+    /**
+     * The callback of {@link Promise}, delivered to the main thread.
+     *
+     * @param <T> The type of the result.
+     */
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        /**
+         * Called if it fails, with {@link CancellationException} if it is cancelled.
+         *
+         * @param t The failure.
+         */
+        void onFail(Throwable t);
+    }
+
+    /**
+     * The result of async computation, which composes stages in background threads.
+     * <p>Stages run in the given pools, or in the thread which completes the previous stage,
+     * and only {@link #deliver(Callback)} posts to the main thread.</p>
+     *
+     * @param <T> The type of the result.
+     */
+    public static final class Promise<T> implements Future<T> {
+
+        private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                command.run();
+            }
+        };
+
+        private boolean done;
+        private T result;
+        private Throwable error;
+        private List<Runnable> listeners;
+        // the work which completes the promise, set by supplyAsync
+        private Executor sourcePool;
+        private Runnable source;
+        private Thread runner;
+
+        /**
+         * The work queued to complete the promise, which fails it if discarded from the queue.
+         */
+        private abstract static class Stage implements Runnable {
+            final Promise<?> target;
+
+            Stage(final Promise<?> target) {
+                this.target = target;
+            }
+        }
+
+        /**
+         * Return a promise completed by the callable in the pool.
+         * <p>Cancelling the promise or its timeout stops the callable: it is removed from
+         * the queue of pool, or never called if it's still queued, and the thread calling it
+         * is interrupted by {@link #cancel(boolean) cancel(true)}.</p>
+         *
+         * @param callable The callable to call.
+         * @param pool     The thread pool.
+         * @param <T>      The type of the result.
+         * @return the promise
+         */
+        public static <T> Promise<T> supplyAsync(final Callable<T> callable, final Executor pool) {
+            final Promise<T> promise = new Promise<>();
+            final Runnable source = new Stage(promise) {
+                @Override
+                public void run() {
+                    synchronized (promise) {
+                        if (promise.done) return;
+                        promise.runner = Thread.currentThread();
+                    }
+                    try {
+                        promise.complete(callable.call());
+                    } catch (Throwable t) {
+                        promise.completeExceptionally(t);
+                    } finally {
+                        synchronized (promise) {
+                            promise.runner = null;
+                            promise.sourcePool = null;
+                            promise.source = null;
+                        }
+                    }
+                }
+            };
+            synchronized (promise) {
+                promise.sourcePool = pool;
+                promise.source = source;
+            }
+            execute(pool, promise, source);
+            return promise;
+        }
+
+        /**
+         * Return a promise completed with the results of all promises in order,
+         * or the first failure.
+         *
+         * @param promises The promises.
+         * @return the promise
+         */
+        public static Promise<List<Object>> allOf(final Promise<?>... promises) {
+            final Promise<List<Object>> all = new Promise<>();
+            final Object[] results = new Object[promises.length];
+            final AtomicInteger remaining = new AtomicInteger(promises.length);
+            if (promises.length == 0) all.complete(new ArrayList<>());
+            for (int i = 0; i < promises.length; i++) {
+                final int index = i;
+                final Promise<?> promise = promises[i];
+                promise.listen(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (promise.error != null) {
+                            all.completeExceptionally(promise.error);
+                            return;
+                        }
+                        results[index] = promise.result;
+                        if (remaining.decrementAndGet() == 0) {
+                            all.complete(Arrays.asList(results));
+                        }
+                    }
+                });
+            }
+            return all;
+        }
+
+        /**
+         * Return a promise completed the same way as the first completed promise.
+         *
+         * @param promises The promises.
+         * @return the promise
+         */
+        public static Promise<Object> anyOf(final Promise<?>... promises) {
+            final Promise<Object> any = new Promise<>();
+            for (final Promise<?> promise : promises) {
+                promise.listen(new Runnable() {
+                    @Override
+                    public void run() {
+                        any.finish(promise.result, promise.error);
+                    }
+                });
+            }
+            return any;
+        }
+
+        /**
+         * Return a promise completed the same way as this one, so that a caller sharing
+         * this promise can cancel or complete its own without affecting the others.
+         */
+        private Promise<T> fork() {
+            final Promise<T> child = new Promise<>();
+            listen(new Runnable() {
+                @Override
+                public void run() {
+                    child.finish(result, error);
+                }
+            });
+            return child;
+        }
+
+        private static void execute(final Executor pool,
+                                    final Promise<?> promise,
+                                    final Runnable runnable) {
+            try {
+                pool.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                promise.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Complete the promise with the result if it's not done.
+         *
+         * @param value The result.
+         * @return {@code true}: it is completed by the call<br>{@code false}: otherwise
+         */
+        public boolean complete(final T value) {
+            return finish(value, null);
+        }
+
+        /**
+         * Complete the promise with the failure if it's not done.
+         *
+         * @param t The failure.
+         * @return {@code true}: it is completed by the call<br>{@code false}: otherwise
+         */
+        public boolean completeExceptionally(@NonNull final Throwable t) {
+            return finish(null, t);
+        }
+
+        /**
+         * Return the promise of applying the function to the result in the completing thread.
+         *
+         * @param fn  The function.
+         * @param <R> The type of the function's result.
+         * @return the promise
+         */
+        public <R> Promise<R> thenApply(final Func<? super T, ? extends R> fn) {
+            return thenApplyAsync(fn, DIRECT);
+        }
+
+        /**
+         * Return the promise of applying the function to the result in the pool.
+         *
+         * @param fn   The function.
+         * @param pool The thread pool.
+         * @param <R>  The type of the function's result.
+         * @return the promise
+         */
+        public <R> Promise<R> thenApplyAsync(final Func<? super T, ? extends R> fn,
+                                             final Executor pool) {
+            final Promise<R> next = new Promise<>();
+            listen(new Runnable() {
+                @Override
+                public void run() {
+                    if (error != null) {
+                        next.completeExceptionally(error);
+                        return;
+                    }
+                    execute(pool, next, new Stage(next) {
+                        @Override
+                        public void run() {
+                            if (next.isDone()) return;
+                            try {
+                                next.complete(fn.apply(result));
+                            } catch (Throwable t) {
+                                next.completeExceptionally(t);
+                            }
+                        }
+                    });
+                }
+            });
+            return next;
+        }
+
+        /**
+         * Return the promise which recovers the failure by the function.
+         *
+         * @param fn The function.
+         * @return the promise
+         */
+        public Promise<T> exceptionally(final Func<Throwable, ? extends T> fn) {
+            final Promise<T> next = new Promise<>();
+            listen(new Runnable() {
+                @Override
+                public void run() {
+                    if (error == null) {
+                        next.complete(result);
+                        return;
+                    }
+                    try {
+                        next.complete(fn.apply(error));
+                    } catch (Throwable t) {
+                        next.completeExceptionally(t);
+                    }
+                }
+            });
+            return next;
+        }
+
+        /**
+         * Fail the promise with {@link TimeoutException} if it's not done in time.
+         * <p>The callable of {@link #supplyAsync(Callable, Executor)} is then removed from
+         * the queue of pool, but it isn't interrupted if it's running.</p>
+         *
+         * @param timeout The max time to wait.
+         * @param unit    The time unit of the timeout parameter.
+         * @return the promise
+         */
+        public Promise<T> orTimeout(final long timeout, final TimeUnit unit) {
+            if (isDone()) return this;
+            final ScheduledFuture<?> schedule = getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (isDone()) return;
+                    // stopped first, so that it's off the queue once the promise fails
+                    stopSource(false);
+                    completeExceptionally(new TimeoutException());
+                }
+            }, timeout, unit);
+            listen(new Runnable() {
+                @Override
+                public void run() {
+                    schedule.cancel(false);
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Deliver the result to the callback in the main thread.
+         *
+         * @param callback The callback.
+         * @return the promise
+         */
+        public Promise<T> deliver(final Callback<? super T> callback) {
+            listen(new Runnable() {
+                @Override
+                public void run() {
+                    final T value = result;
+                    final Throwable t = error;
+                    Deliver.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (t == null) {
+                                callback.onSuccess(value);
+                            } else {
+                                callback.onFail(t);
+                            }
+                        }
+                    });
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Cancel the promise and stop the callable of {@link #supplyAsync(Callable, Executor)}.
+         * <p>The promises derived from this one fail with {@link CancellationException},
+         * while the promises this one is derived from are not affected.</p>
+         *
+         * @param mayInterruptIfRunning True to interrupt the thread calling the callable.
+         * @return {@code true}: it is cancelled by the call<br>{@code false}: it's done already
+         */
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            if (!finish(null, new CancellationException())) return false;
+            stopSource(mayInterruptIfRunning);
+            return true;
+        }
+
+        private void stopSource(final boolean interrupt) {
+            final Executor pool;
+            final Runnable source;
+            synchronized (this) {
+                pool = sourcePool;
+                source = this.source;
+                sourcePool = null;
+                this.source = null;
+                // the runner is cleared under the lock once the callable returns
+                if (interrupt && runner != null) runner.interrupt();
+            }
+            if (pool instanceof ThreadPoolExecutor) ((ThreadPoolExecutor) pool).remove(source);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return error instanceof CancellationException;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public synchronized T get() throws InterruptedException, ExecutionException {
+            if (!done) checkBlockingWait("Promise.get");
+            while (!done) {
+                wait();
+            }
+            return report();
+        }
+
+        @Override
+        public synchronized T get(final long timeout, @NonNull final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (!done) checkBlockingWait("Promise.get");
+            while (!done) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return report();
+        }
+
+        private T report() throws ExecutionException {
+            if (error == null) return result;
+            if (error instanceof CancellationException) throw (CancellationException) error;
+            throw new ExecutionException(error);
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean finish(final Object value, final Throwable t) {
+            final List<Runnable> ls;
+            synchronized (this) {
+                if (done) return false;
+                done = true;
+                result = (T) value;
+                error = t;
+                ls = listeners;
+                listeners = null;
+                notifyAll();
+            }
+            if (ls != null) {
+                for (Runnable listener : ls) {
+                    listener.run();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Run the listener when it's done, in the completing thread or immediately.
+         */
+        private void listen(final Runnable listener) {
+            synchronized (this) {
+                if (!done) {
+                    if (listeners == null) listeners = new ArrayList<>(2);
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+    }
+
+    /**
+     * The detector which pings the main thread from the scheduler thread.
+     */
+    private static final class StallDetector implements Runnable {
+        private final long thresholdNanos;
+        private final Runnable pong = new Runnable() {
+            @Override
+            public void run() {
+                pingNanos = 0;
+            }
+        };
+        // 0 if the last ping is answered
+        private volatile long pingNanos;
+        private boolean reported;
+        private ScheduledFuture<?> schedule;
+
+        StallDetector(final long thresholdNanos) {
+            this.thresholdNanos = thresholdNanos;
+        }
+
+        void start() {
+            final long period = Math.max(1, thresholdNanos / 2);
+            schedule = getScheduler().scheduleWithFixedDelay(
+                    this, period, period, TimeUnit.NANOSECONDS
+            );
+        }
+
+        void stop() {
+            schedule.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            final long ping = pingNanos;
+            if (ping == 0) {
+                reported = false;
+                pingNanos = System.nanoTime();
+                Deliver.MAIN_HANDLER.post(pong);
+                return;
+            }
+            final long stalled = System.nanoTime() - ping;
+            if (stalled < thresholdNanos || reported) return;
+            reported = true;
+            final Throwable stack = new Throwable("main thread stack");
+            stack.setStackTrace(Looper.getMainLooper().getThread().getStackTrace());
+            Log.w("ThreadUtils", "main thread stalled for "
+                    + TimeUnit.NANOSECONDS.toMillis(stalled) + "ms", stack);
+        }
+    }
+
+    private static final class WorkKey {
+        final Executor pool;
+        final String   key;
+
+        WorkKey(final Executor pool, final String key) {
+            this.pool = pool;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WorkKey)) return false;
+            final WorkKey other = (WorkKey) o;
+            return pool == other.pool && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(pool) + key.hashCode();
+        }
+    }
+
+    private static final class Debounce {
+        final Promise<Object> promise = new Promise<>();
+        ScheduledFuture<?> schedule;
+        int generation;
+    }
+
+    /**
+     * The hook invoked around every run of {@link Task}, in the thread which runs it.
+     */
+    public interface TaskHook {
+
+        void beforeRun(Task<?> task);
+
+        /**
+         * Called after the task runs, even if it throws.
+         *
+         * @param task          The task.
+         * @param durationNanos The time of run, in nanoseconds.
+         */
+        void afterRun(Task<?> task, long durationNanos);
+    }
+
+    /**
+     * The snapshot of metrics of a thread pool.
+     * <p>Histograms have log2 buckets of microseconds, bucket i counts durations
+     * in [2^(i-1), 2^i) microseconds, bucket 0 counts durations under 1 microsecond.</p>
+     */
+    public static final class PoolStats {
+        private final String name;
+        private final int poolSize;
+        private final int activeCount;
+        private final int queueSize;
+        private final long completedCount;
+        private final long rejectedCount;
+        private final long[] queueWaitHistogram;
+        private final long[] executeHistogram;
+
+        PoolStats(final String name,
+                  final int poolSize,
+                  final int activeCount,
+                  final int queueSize,
+                  final long completedCount,
+                  final long rejectedCount,
+                  final long[] queueWaitHistogram,
+                  final long[] executeHistogram) {
+            this.name = name;
+            this.poolSize = poolSize;
+            this.activeCount = activeCount;
+            this.queueSize = queueSize;
+            this.completedCount = completedCount;
+            this.rejectedCount = rejectedCount;
+            this.queueWaitHistogram = queueWaitHistogram;
+            this.executeHistogram = executeHistogram;
+        }
+
+        /**
+         * Return the name of pool, such as {@code io}, {@code cpu} or {@code fixed(4)}.
+         *
+         * @return the name of pool
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Return the count of threads in the pool.
+         *
+         * @return the count of threads in the pool
+         */
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /**
+         * Return the approximate count of threads running tasks.
+         *
+         * @return the approximate count of threads running tasks
+         */
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        /**
+         * Return the count of tasks waiting in the queue.
+         *
+         * @return the count of tasks waiting in the queue
+         */
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        /**
+         * Return the count of completed tasks, -1 if unknown.
+         * <p>It is unknown for the work-stealing pool.</p>
+         *
+         * @return the count of completed tasks, -1 if unknown
+         */
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        /**
+         * Return the count of tasks rejected by the pool or discarded from its queue.
+         *
+         * @return the count of rejected tasks, 0 for the work-stealing pool
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * Return the histogram of time waiting in the queue.
+         * <p>It is empty for the cached pool, which hands tasks over without a queue,
+         * and for the work-stealing pool.</p>
+         *
+         * @return the counts of log2 buckets of microseconds
+         */
+        public long[] getQueueWaitHistogram() {
+            return queueWaitHistogram.clone();
+        }
+
+        /**
+         * Return the histogram of execution time.
+         * <p>It is empty for the work-stealing pool.</p>
+         *
+         * @return the counts of log2 buckets of microseconds
+         */
+        public long[] getExecuteHistogram() {
+            return executeHistogram.clone();
+        }
+
+        /**
+         * Return the upper bound of the percentile of queue wait time, in microseconds.
+         *
+         * @param percentile The percentile, in [0, 1].
+         * @return the upper bound of the percentile, in microseconds, 0 if nothing is recorded
+         */
+        public long getQueueWaitPercentileMicros(final double percentile) {
+            return Histogram.percentile(queueWaitHistogram, percentile);
+        }
+
+        /**
+         * Return the upper bound of the percentile of execution time, in microseconds.
+         *
+         * @param percentile The percentile, in [0, 1].
+         * @return the upper bound of the percentile, in microseconds, 0 if nothing is recorded
+         */
+        public long getExecutePercentileMicros(final double percentile) {
+            return Histogram.percentile(executeHistogram, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return name
+                    + ": poolSize=" + poolSize
+                    + ", active=" + activeCount
+                    + ", queue=" + queueSize
+                    + ", completed=" + completedCount
+                    + ", rejected=" + rejectedCount
+                    + ", wait(p50/p99)=" + getQueueWaitPercentileMicros(0.5)
+                    + "/" + getQueueWaitPercentileMicros(0.99) + "us"
+                    + ", execute(p50/p99)=" + getExecutePercentileMicros(0.5)
+                    + "/" + getExecutePercentileMicros(0.99) + "us";
+        }
+    }
+
+    /**
+     * The histogram of durations, striped by thread so recording takes no lock
+     * and rarely contends.
+     */
+    private static final class Histogram {
+        static final int BUCKETS = 32;
+        private static final int STRIPES;
+
+        static {
+            int stripes = 1;
+            while (stripes < CPU_COUNT * 2) {
+                stripes <<= 1;
+            }
+            STRIPES = stripes;
+        }
+
+        // one row of buckets per stripe, a row spans several cache lines
+        private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+
+        void record(final long durationNanos) {
+            final long micros = durationNanos / 1000;
+            final int bucket = micros <= 0
+                    ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            counts.incrementAndGet(stripe * BUCKETS + bucket);
+        }
+
+        long[] snapshot() {
+            final long[] snapshot = new long[BUCKETS];
+            for (int i = 0, len = counts.length(); i < len; i++) {
+                snapshot[i % BUCKETS] += counts.get(i);
+            }
+            return snapshot;
+        }
+
+        static long percentile(final long[] histogram, final double percentile) {
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            if (total == 0) return 0;
+            final long target = Math.max(1, (long) Math.ceil(total * percentile));
+            long sum = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                sum += histogram[i];
+                if (sum >= target) return 1L << i;
+            }
+            return 1L << (histogram.length - 1);
+        }
+    }
+
+    /**
+     * The thread pool which records the time of waiting in queue and of execution.
+     */
+    private static final class UtilsThreadPoolExecutor extends ThreadPoolExecutor {
+        private static final ThreadLocal<long[]> START_NANOS = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+        private final String name;
+        private final Histogram waitHistogram = new Histogram();
+        private final Histogram executeHistogram = new Histogram();
+
+        UtilsThreadPoolExecutor(final String name,
+                                final int corePoolSize,
+                                final int maximumPoolSize,
+                                final long keepAliveTime,
+                                final TimeUnit unit,
+                                final BlockingQueue<Runnable> workQueue,
+                                final ThreadFactory threadFactory,
+                                final RejectedExecutionHandler handler) {
+            super(corePoolSize, maximumPoolSize, keepAliveTime, unit,
+                    workQueue, threadFactory, handler);
+            this.name = name;
+            if (workQueue instanceof PriorityTaskQueue) {
+                ((PriorityTaskQueue) workQueue).waitHistogram = waitHistogram;
+            }
+        }
+
+        @Override
+        protected void beforeExecute(final Thread t, final Runnable r) {
+            START_NANOS.get()[0] = System.nanoTime();
+        }
+
+        @Override
+        protected void afterExecute(final Runnable r, final Throwable t) {
+            executeHistogram.record(System.nanoTime() - START_NANOS.get()[0]);
+        }
+
+        PoolStats snapshot() {
+            final long[] executed = executeHistogram.snapshot();
+            long completed = 0;
+            for (long count : executed) {
+                completed += count;
+            }
+            final RejectedExecutionHandler handler = getRejectedExecutionHandler();
+            return new PoolStats(name,
+                    getPoolSize(),
+                    getActiveCount(),
+                    getQueue().size(),
+                    completed,
+                    handler instanceof UtilsRejectedHandler
+                            ? ((UtilsRejectedHandler) handler).rejectedCount.get() : 0,
+                    waitHistogram.snapshot(),
+                    executed
+            );
+        }
+    }
+
+    @IntDef({POLICY_ABORT, POLICY_CALLER_RUNS, POLICY_BLOCK, POLICY_DISCARD_OLDEST})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface RejectPolicy {
+    }
+
+    private static final class UtilsRejectedHandler implements RejectedExecutionHandler {
+        private static final int DISCARD_ATTEMPTS = 3;
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        @Override
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+            // tryExecute waits for the queue itself and tells the caller
+            if (TRY_EXECUTING.get() != null) {
+                throw new RejectedExecutionException("Task " + r + " rejected from " + executor);
+            }
+            // the timer must not run tasks or wait for queues, or all the other tasks are late
+            if (!executor.isShutdown()
+                    && Thread.currentThread() != sSchedulerThread) {
+                switch (sRejectPolicy) {
+                    case POLICY_CALLER_RUNS:
+                        r.run();
+                        return;
+                    case POLICY_BLOCK:
+                        checkBlockingWait("POLICY_BLOCK");
+                        try {
+                            if (executor.getQueue().offer(
+                                    r, sBlockTimeoutMillis, TimeUnit.MILLISECONDS
+                            )) {
+                                return;
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        break;
+                    case POLICY_DISCARD_OLDEST:
+                        // offer to the queue directly, executing again could be rejected
+                        // again and recurse as long as other threads fill the queue
+                        final BlockingQueue<Runnable> queue = executor.getQueue();
+                        for (int i = 0; i < DISCARD_ATTEMPTS; i++) {
+                            final Runnable oldest = queue instanceof PriorityTaskQueue
+                                    ? ((PriorityTaskQueue) queue).pollOldest() : queue.poll();
+                            if (oldest != null) {
+                                rejectedCount.incrementAndGet();
+                                discard(oldest);
+                            }
+                            if (queue.offer(r)) {
+                                // shut down while offering
+                                if (executor.isShutdown() && executor.remove(r)) break;
+                                executor.prestartCoreThread();
+                                return;
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Task " + r + " rejected from " + executor);
+        }
+
+        private static void discard(Runnable r) {
+            if (r instanceof PriorityRunnable) r = ((PriorityRunnable) r).runnable;
+            if (r instanceof Task) {
+                ((Task) r).reject(new RejectedExecutionException("Task " + r + " discarded"));
+            } else if (r instanceof Promise.Stage) {
+                ((Promise.Stage) r).target.completeExceptionally(
+                        new RejectedExecutionException("Promise " + r + " discarded")
+                );
+            } else if (r instanceof Future) {
+                ((Future) r).cancel(false);
+            }
+        }
+    }
+
     private static final class UtilsThreadFactory extends AtomicLong
             implements ThreadFactory {
         private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
@@ -0,0 +1,1079 @@
+package com.blankj.utilcode.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <pre>
+ *     author: Blankj
+ *     blog  : http://blankj.com
+ *     time  : 2026/10/17
+ *     desc  : test CacheUtils
+ * </pre>
+ */
+public class CacheUtilsTest {
+
+    private static final int WRITERS    = 16;
+    private static final int KEYS       = 64;
+    private static final int OPERATIONS = 2000;
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = File.createTempFile("CacheUtilsTest", "");
+        assertTrue(cacheDir.delete());
+        assertTrue(cacheDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteDir(cacheDir);
+    }
+
+    @Test
+    public void putGetRemoveConcurrently() throws Exception {
+        stress(CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, Integer.MAX_VALUE), cacheDir);
+    }
+
+    @Test
+    public void putGetRemoveConcurrentlyWithMemoryCacheAndShards() throws Exception {
+        stress(CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, Integer.MAX_VALUE, 4)
+                .setMemoryCacheSize(64 * 1024)
+                .setChecksumEnabled(true)
+                .setCompressThreshold(512), cacheDir);
+    }
+
+    @Test
+    public void putConcurrentlyWithinLimit() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir, 256 * 1024, 16);
+        stress(cacheUtils, cacheDir);
+        assertTrue(cacheUtils.getCacheCount() <= 16);
+        assertTrue(cacheUtils.getCacheSize() <= 256 * 1024);
+    }
+
+    @Test
+    public void putOverQuotaEvictsLeastRecentlyUsed() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, 100);
+        for (int i = 0; i < 100; i++) {
+            cacheUtils.put("key" + i, newValue(i, i));
+            Thread.sleep(1);
+        }
+        assertNotNull(cacheUtils.getBytes("key0"));
+        Thread.sleep(1);
+        cacheUtils.put("key100", newValue(100, 100));
+
+        assertEquals(100, cacheUtils.getCacheCount());
+        assertNotNull(cacheUtils.getBytes("key0"));
+        assertNull(cacheUtils.getBytes("key1"));
+        assertNotNull(cacheUtils.getBytes("key100"));
+    }
+
+    /**
+     * Eviction only looks at the eldest usage of each stripe, so a put over quota
+     * costs about the same with 10k and 100k files cached, a scan of the usages
+     * would make it 10 times slower.
+     * <p>Measured on one machine, the scan of the synchronized map before the index took
+     * 0.58 ms per put with 10k files and 6.2 ms with 100k, the index takes 0.57 ms and
+     * 0.69 ms, most of it the sync of the file.</p>
+     */
+    @Test
+    public void putOverQuotaCostDoesNotGrowWithCount() throws Exception {
+        final long small = timePutsOverQuota(new File(cacheDir, "small"), 10000);
+        final long large = timePutsOverQuota(new File(cacheDir, "large"), 100000);
+        final String costs = "put over quota: " + small + " ns with 10k files, " + large
+                + " ns with 100k files";
+        System.out.println(costs);
+        assertTrue(costs, large < 5 * small);
+    }
+
+    @Test
+    public void putAllGetAllRemoveAll() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        final Map<String, byte[]> values = new HashMap<>();
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            values.put("key" + i, newValue(i, i));
+            keys.add("key" + i);
+        }
+        cacheUtils.putAll(values);
+        keys.add("missing");
+
+        final Map<String, byte[]> result = cacheUtils.getAll(keys);
+        assertEquals(256, result.size());
+        for (int i = 0; i < 256; i++) {
+            checkValue(i, result.get("key" + i));
+        }
+        assertTrue(cacheUtils.removeAll(keys));
+        assertEquals(0, cacheUtils.getCacheCount());
+    }
+
+    @Test
+    public void putAllRemoveAllFlushJournalOnReturn() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        final Map<String, byte[]> values = new HashMap<>();
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            values.put("key" + i, newValue(i, i));
+            if (i % 2 == 0) keys.add("key" + i);
+        }
+        cacheUtils.putAll(values);
+        cacheUtils.removeAll(keys);
+
+        int puts = 0, dirties = 0, removes = 0;
+        for (String line : readJournal().split("\n")) {
+            if (line.startsWith("P ")) puts++;
+            if (line.startsWith("D ")) dirties++;
+            if (line.startsWith("R ")) removes++;
+        }
+        assertEquals(64, puts);
+        assertEquals(64, dirties);
+        assertEquals(32, removes);
+        assertEquals(32, cacheUtils.getCacheCount());
+    }
+
+    @Test
+    public void getAllRethrowsFailureOfChunk() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            cacheUtils.put("key" + i, newValue(i, i));
+            keys.add("key" + i);
+        }
+        // the last chunk runs on the io pool
+        keys.add(null);
+        try {
+            cacheUtils.getAll(keys);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    /**
+     * Compare getAll with reading the keys one by one, the gain needs more than
+     * one core and reads that wait on storage, so it is only checked not to lose.
+     */
+    @Test
+    public void getAllComparedWithLoop() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            cacheUtils.put("key" + i, newValue(i, i));
+            keys.add("key" + i);
+        }
+        long loop = Long.MAX_VALUE, all = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (String key : keys) {
+                assertNotNull(cacheUtils.getBytes(key));
+            }
+            loop = Math.min(loop, System.nanoTime() - start);
+            start = System.nanoTime();
+            assertEquals(256, cacheUtils.getAll(keys).size());
+            all = Math.min(all, System.nanoTime() - start);
+        }
+        assertTrue("256 keys: " + loop / 1000 + " us by loop, " + all / 1000 + " us by getAll",
+                all < 2 * loop);
+    }
+
+    @Test
+    public void putGetByCodecs() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        cacheUtils.put("int", 42, Integer.class);
+        cacheUtils.put("long", Long.MIN_VALUE, Long.class);
+        cacheUtils.put("string", "中文 text", String.class);
+        final List<String> list = new ArrayList<>();
+        list.add("a");
+        list.add("");
+        list.add("c");
+        cacheUtils.put("list", list, CacheUtils.Codecs.listOf(CacheUtils.Codecs.STRING));
+
+        assertEquals(Integer.valueOf(42), cacheUtils.get("int", Integer.class));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), cacheUtils.get("long", Long.class));
+        assertEquals("中文 text", cacheUtils.get("string", String.class));
+        assertEquals(list, cacheUtils.get("list", CacheUtils.Codecs.listOf(CacheUtils.Codecs.STRING)));
+        assertNull(cacheUtils.get("missing", Integer.class));
+        try {
+            cacheUtils.put("object", new Object(), Object.class);
+            fail("no codec of Object is registered");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void getCorruptValueByCodecReturnsDefault() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        final CacheUtils.Codec<List<String>> codec =
+                CacheUtils.Codecs.listOf(CacheUtils.Codecs.STRING);
+        // a negative length, a length past the end and a list cut in the middle
+        cacheUtils.put("negative", new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0});
+        cacheUtils.put("huge", new byte[]{0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 'a'});
+        cacheUtils.put("cut", new byte[]{0, 0, 0, 2, 0, 0, 0, 1, 'a', 0, 0, 0, 9, 'b'});
+
+        assertEquals("default", cacheUtils.get("negative", String.class, "default"));
+        assertEquals("default", cacheUtils.get("huge", String.class, "default"));
+        assertNull(cacheUtils.get("huge", codec));
+        assertNull(cacheUtils.get("cut", codec));
+    }
+
+    /**
+     * A list of ints put by codec is stored in less than half the bytes of the same list
+     * as serializable, and both read back equal.
+     */
+    @Test
+    public void codecComparedWithSerializable() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        final CacheUtils.Codec<List<Integer>> codec = CacheUtils.Codecs.listOf(CacheUtils.Codecs.INT);
+        final ArrayList<Integer> list = newList(100);
+        cacheUtils.put("codec", list, codec);
+        cacheUtils.put("serializable", list);
+        assertEquals(list, cacheUtils.get("codec", codec));
+        assertEquals(list, cacheUtils.getSerializable("serializable"));
+
+        final int byCodec = cacheUtils.getBytes("codec").length;
+        final int bySerializable = cacheUtils.getBytes("serializable").length;
+        assertTrue(byCodec + " bytes by codec, " + bySerializable + " bytes by serializable",
+                byCodec * 2 < bySerializable);
+    }
+
+    /**
+     * Round-trip values through the bytes of each built-in codec and of the path which
+     * stores them today, without disk io: boxed values and lists go through
+     * {@link java.io.ObjectOutputStream}, strings through their bytes.
+     * Each codec is at least twice as fast as serialization, while the string codec
+     * costs at most 5 times the bytes of string, for the length and the reused buffer.
+     */
+    @Test
+    public void codecsComparedWithExistingPaths() throws Exception {
+        final StringBuilder report = new StringBuilder();
+        final RoundTrip serializable = new RoundTrip("serializable2Bytes", "bytes2Object");
+        compareCodec(report, CacheUtils.Codecs.INT, 123456789, serializable, 2);
+        compareCodec(report, CacheUtils.Codecs.LONG, 1234567890123L, serializable, 2);
+        compareCodec(report, CacheUtils.Codecs.FLOAT, 1.5f, serializable, 2);
+        compareCodec(report, CacheUtils.Codecs.DOUBLE, 1.5d, serializable, 2);
+        compareCodec(report, CacheUtils.Codecs.BOOLEAN, true, serializable, 2);
+        compareCodec(report, CacheUtils.Codecs.STRING, new String(newText(256)), serializable, 2);
+        compareCodec(report, CacheUtils.Codecs.listOf(CacheUtils.Codecs.INT), newList(100),
+                serializable, 2);
+        // the bytes of string are the least the string codec can do
+        compareCodec(report, CacheUtils.Codecs.STRING, new String(newText(256)),
+                new RoundTrip("string2Bytes", "bytes2String"), 1 / 5d);
+        System.out.print(report);
+    }
+
+    /**
+     * Assert that the codec round-trips the value faster than the existing path
+     * by the factor, and append both costs to the report.
+     */
+    private static <T> void compareCodec(final StringBuilder report,
+                                         final CacheUtils.Codec<T> codec,
+                                         final T value,
+                                         final RoundTrip existing,
+                                         final double factor) throws Exception {
+        final RoundTrip byCodec = new RoundTrip(codec);
+        assertEquals(value, byCodec.run(value));
+        assertEquals(value, existing.run(value));
+        // alternate the batches, so that both are compiled and disturbed alike
+        long codecNanos = Long.MAX_VALUE;
+        long existingNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            codecNanos = Math.min(codecNanos, byCodec.nanosPerCall(value));
+            existingNanos = Math.min(existingNanos, existing.nanosPerCall(value));
+        }
+        final String costs = value.getClass().getSimpleName() + ": " + codecNanos
+                + " ns by codec, " + existingNanos + " ns by " + existing.encode.getName();
+        report.append(costs).append('\n');
+        assertTrue(costs, codecNanos * factor < existingNanos);
+    }
+
+    /**
+     * The encoding and decoding of a value by the private helpers of CacheUtils.
+     */
+    private static final class RoundTrip {
+        private static final int CALLS = 2000;
+        private final Method encode;
+        private final Method decode;
+        private final Object codec;
+
+        RoundTrip(final String encode, final String decode) throws Exception {
+            final Class<?> helper = Class.forName(CacheUtils.class.getName() + "$CacheHelper");
+            this.encode = findMethod(helper, encode);
+            this.decode = findMethod(helper, decode);
+            this.codec = null;
+        }
+
+        RoundTrip(final CacheUtils.Codec<?> codec) throws Exception {
+            final Class<?> buffer = Class.forName(CacheUtils.class.getName() + "$CodecBuffer");
+            this.encode = buffer.getDeclaredMethod("encode", Object.class, CacheUtils.Codec.class);
+            this.decode = buffer.getDeclaredMethod("decode", byte[].class, CacheUtils.Codec.class);
+            this.encode.setAccessible(true);
+            this.decode.setAccessible(true);
+            this.codec = codec;
+        }
+
+        Object run(final Object value) throws Exception {
+            if (codec == null) return decode.invoke(null, encode.invoke(null, value));
+            return decode.invoke(null, encode.invoke(null, value, codec), codec);
+        }
+
+        long nanosPerCall(final Object value) throws Exception {
+            final long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                run(value);
+            }
+            return (System.nanoTime() - start) / CALLS;
+        }
+
+        private static Method findMethod(final Class<?> clazz, final String name) {
+            for (Method method : clazz.getDeclaredMethods()) {
+                if (method.getName().equals(name)) {
+                    method.setAccessible(true);
+                    return method;
+                }
+            }
+            throw new AssertionError(name + " not found");
+        }
+    }
+
+    @Test
+    public void keysSpreadAcrossShards() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, 400, 4);
+        assertEquals(4, cacheUtils.getShardCount());
+        for (int i = 0; i < 200; i++) {
+            cacheUtils.put("key" + i, new byte[100]);
+        }
+        final long fileSize = cacheUtils.getCacheSize() / 200;
+        int count = 0;
+        long size = 0;
+        for (int shard = 0; shard < 4; shard++) {
+            final int shardCount = cacheUtils.getShardCacheCount(shard);
+            assertTrue(shard + ": " + shardCount, shardCount >= 30 && shardCount <= 70);
+            assertEquals(shardCount * fileSize, cacheUtils.getShardCacheSize(shard));
+            assertEquals(shardCount, countFiles(new File(cacheDir, "shard-" + shard)));
+            count += shardCount;
+            size += cacheUtils.getShardCacheSize(shard);
+        }
+        assertEquals(200, count);
+        assertEquals(cacheUtils.getCacheSize(), size);
+
+        // each shard evicts within its share of the quota
+        for (int i = 200; i < 1000; i++) {
+            cacheUtils.put("key" + i, new byte[100]);
+        }
+        for (int shard = 0; shard < 4; shard++) {
+            assertEquals(100, cacheUtils.getShardCacheCount(shard));
+        }
+        assertEquals(400, cacheUtils.getCacheCount());
+    }
+
+    @Test
+    public void sweptSizeOfShards() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, 400, 4);
+        for (int i = 0; i < 40; i++) {
+            cacheUtils.put("key" + i, new byte[100], 1);
+        }
+        final long[] sizes = new long[4];
+        for (int shard = 0; shard < 4; shard++) {
+            sizes[shard] = cacheUtils.getShardCacheSize(shard);
+        }
+        Thread.sleep(1100);
+        assertEquals(sum(sizes), cacheUtils.sweep());
+        for (int shard = 0; shard < 4; shard++) {
+            assertEquals(sizes[shard], cacheUtils.getShardSweptSize(shard));
+            assertEquals(0, cacheUtils.getShardCacheCount(shard));
+        }
+        assertEquals(sum(sizes), cacheUtils.getSweptSize());
+    }
+
+    @Test
+    public void getInstanceWithAnotherShardCount() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, 16, 4);
+        assertSame(cacheUtils, CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, 16, 4));
+        try {
+            CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, 16, 2);
+            fail("the shard count of an open directory changed");
+        } catch (IllegalArgumentException expected) {
+        }
+        // wait for the shards to load before the directory is deleted
+        assertEquals(0, cacheUtils.getCacheCount());
+    }
+
+    @Test
+    public void removeOldestForgetsMissingFile() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir, Long.MAX_VALUE, 4);
+        for (String key : new String[]{"a", "b", "c", "d"}) {
+            cacheUtils.put(key, key.getBytes("UTF-8"));
+            Thread.sleep(5);
+        }
+        // b is deleted behind the cache, then a is used again so that b is the oldest
+        assertTrue(new File(cacheDir, String.valueOf("b".hashCode())).delete());
+        assertNotNull(cacheUtils.getBytes("a"));
+        Thread.sleep(5);
+        cacheUtils.put("e", "e".getBytes("UTF-8"));
+
+        assertEquals(4, cacheUtils.getCacheCount());
+        for (String key : new String[]{"a", "c", "d", "e"}) {
+            assertNotNull(key, cacheUtils.getBytes(key));
+        }
+        assertNull(cacheUtils.getBytes("b"));
+    }
+
+    @Test
+    public void replayJournalReconcilesWithDirectory() throws Exception {
+        writeFile(new File(cacheDir, "1"), 10);
+        writeFile(new File(cacheDir, "2"), 20);// replaced, but its put record is lost
+        writeFile(new File(cacheDir, "4"), 40);// never journaled
+        writeJournal("P 1 10 1000\n"
+                + "P 2 5 1000\n"
+                + "D 2\n"
+                + "P 3 30 1000\n");// deleted behind the journal
+
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        // the journal is trusted, only the dirty file is checked on the disk
+        assertEquals(3, cacheUtils.getCacheCount());
+        assertEquals(10 + 20 + 30, cacheUtils.getCacheSize());
+        // the file deleted behind the journal is forgotten once it is looked up
+        assertNull(cacheUtils.getBytes("\u0003"));
+        assertEquals(2, cacheUtils.getCacheCount());
+        assertEquals(10 + 20, cacheUtils.getCacheSize());
+        // the file missed by the journal is counted once it is replaced
+        cacheUtils.put("\u0004", new byte[]{1});
+        assertEquals(3, cacheUtils.getCacheCount());
+        assertEquals(10 + 20 + new File(cacheDir, "4").length(), cacheUtils.getCacheSize());
+    }
+
+    @Test
+    public void replayJournalDropsTruncatedLastLine() throws Exception {
+        writeFile(new File(cacheDir, "1"), 10);
+        writeFile(new File(cacheDir, "2"), 20);
+        writeFile(new File(cacheDir, "5"), 50);// a scan would count it
+        writeJournal("P 1 10 1000\n"
+                + "P 2 20 10");// cut by a crash
+
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        assertEquals(1, cacheUtils.getCacheCount());
+        assertEquals(10, cacheUtils.getCacheSize());
+        // the journal is rebuilt, so the next record isn't appended to the cut line
+        cacheUtils.put("\u0006", new byte[]{1});
+        final String journal = readJournal();
+        assertFalse(journal, journal.contains("P 2 20 10"));
+        assertTrue(journal, journal.endsWith("\n"));
+        assertEquals("P 1 10 1000", journal.split("\n")[3]);
+    }
+
+    @Test
+    public void replayJournalWithMalformedLineScans() throws Exception {
+        writeFile(new File(cacheDir, "1"), 10);
+        writeFile(new File(cacheDir, "5"), 50);
+        writeJournal("P 1 10 1000\n"
+                + "X 2\n"
+                + "P 3 30 1000\n");
+
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        assertEquals(2, cacheUtils.getCacheCount());
+        assertEquals(10 + 50, cacheUtils.getCacheSize());
+    }
+
+    /**
+     * Put and remove while a long journal is replayed, the mutations don't wait for it
+     * and win over the replayed usages of their files.
+     */
+    @Test
+    public void mutateWhileReplayingJournal() throws Exception {
+        final int count = 100000;
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 100; i < 100 + count; i++) {
+            sb.append("P ").append(i).append(" 1 1000\n");
+        }
+        writeFile(new File(cacheDir, "1"), 10);
+        writeFile(new File(cacheDir, "2"), 20);
+        sb.append("P 1 10 1000\nP 2 20 1000\n");
+        writeJournal(sb.toString());
+
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        cacheUtils.put("\u0001", new byte[100]);
+        assertTrue(cacheUtils.remove("\u0002"));
+        cacheUtils.put("\u0003", new byte[30]);
+
+        final long size = new File(cacheDir, "1").length() + new File(cacheDir, "3").length();
+        assertEquals(count + 2, cacheUtils.getCacheCount());
+        assertEquals(count + size, cacheUtils.getCacheSize());
+        assertFalse(new File(cacheDir, "2").exists());
+    }
+
+    @Test
+    public void putCompressibleValueStoresLess() throws Exception {
+        final CacheUtils raw = CacheUtils.getInstance(new File(cacheDir, "raw"));
+        final CacheUtils deflated = CacheUtils.getInstance(new File(cacheDir, "deflated"))
+                .setCompressThreshold(1024);
+        final byte[] text = newText(64 * 1024);
+        final byte[] noise = new byte[64 * 1024];
+        new Random(0).nextBytes(noise);
+        for (int i = 0; i < 50; i++) {
+            raw.put("text" + i, text);
+            assertArrayEquals(text, raw.getBytes("text" + i));
+            deflated.put("text" + i, text);
+            assertArrayEquals(text, deflated.getBytes("text" + i));
+        }
+        final long rawSize = raw.getCacheSize();
+        final long deflatedSize = deflated.getCacheSize();
+        assertTrue(rawSize + " bytes raw, " + deflatedSize + " bytes deflated",
+                deflatedSize < rawSize / 2);
+        // a value which doesn't shrink is stored raw
+        deflated.put("noise", noise);
+        assertArrayEquals(noise, deflated.getBytes("noise"));
+        assertTrue(deflated.getCacheSize() - deflatedSize > noise.length);
+    }
+
+    /**
+     * Read text of 100 KB and 2 MB from a warm cache, deflated and raw.
+     * <p>A warm raw read only copies from the page cache, so inflating costs about 10 times
+     * as much, and pays off when the value is read from flash or the quota is tight.
+     * Within 25 times, the pooled inflater is reused and inflates in one pass.</p>
+     */
+    @Test
+    public void getDeflatedValueComparedWithRaw() throws Exception {
+        final CacheUtils raw = CacheUtils.getInstance(new File(cacheDir, "raw"));
+        final CacheUtils deflated = CacheUtils.getInstance(new File(cacheDir, "deflated"))
+                .setCompressThreshold(1024);
+        final StringBuilder report = new StringBuilder();
+        for (int length : new int[]{100 * 1024, 2 * 1024 * 1024}) {
+            final byte[] text = newText(length);
+            raw.put("text", text);
+            deflated.put("text", text);
+            assertArrayEquals(text, raw.getBytes("text"));
+            assertArrayEquals(text, deflated.getBytes("text"));
+
+            final int calls = 50 * 1024 * 1024 / length;
+            long rawNanos = Long.MAX_VALUE;
+            long deflatedNanos = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                rawNanos = Math.min(rawNanos, nanosPerGet(raw, calls));
+                deflatedNanos = Math.min(deflatedNanos, nanosPerGet(deflated, calls));
+            }
+            final String costs = length / 1024 + " KB: " + rawNanos / 1000 + " us raw, "
+                    + deflatedNanos / 1000 + " us deflated";
+            report.append(costs).append('\n');
+            assertTrue(costs, deflatedNanos < 25 * rawNanos);
+        }
+        System.out.print(report);
+    }
+
+    private static long nanosPerGet(final CacheUtils cacheUtils, final int calls) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            assertNotNull(cacheUtils.getBytes("text"));
+        }
+        return (System.nanoTime() - start) / calls;
+    }
+
+    @Test
+    public void openInputStreamVerifiesChecksumOfDeflatedValue() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir)
+                .setChecksumEnabled(true)
+                .setCompressThreshold(0);
+        cacheUtils.put("key", new byte[4096]);
+        // the length in front of the deflated bytes is skipped by the stream, only the checksum
+        // catches it
+        final RandomAccessFile raf =
+                new RandomAccessFile(new File(cacheDir, String.valueOf("key".hashCode())), "rw");
+        try {
+            raf.seek(24);
+            raf.write(raf.read() ^ 1);
+        } finally {
+            raf.close();
+        }
+
+        final InputStream is = cacheUtils.openInputStream("key");
+        assertNotNull(is);
+        try {
+            final byte[] buffer = new byte[1024];
+            while (is.read(buffer) != -1) {
+                // read to the end
+            }
+            fail("checksum isn't verified");
+        } catch (IOException expected) {
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void memoryCacheCountsHitsAndMisses() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        cacheUtils.put("disk", new byte[]{1});
+        cacheUtils.setMemoryCacheSize(1024);
+        cacheUtils.put("memory", new byte[]{2});
+
+        assertArrayEquals(new byte[]{2}, cacheUtils.getBytes("memory"));
+        assertEquals(1, cacheUtils.getMemoryCacheHitCount());
+        assertEquals(0, cacheUtils.getMemoryCacheMissCount());
+        // a miss reads the disk and fills the memory cache
+        assertArrayEquals(new byte[]{1}, cacheUtils.getBytes("disk"));
+        assertEquals(1, cacheUtils.getMemoryCacheMissCount());
+        assertArrayEquals(new byte[]{1}, cacheUtils.getBytes("disk"));
+        assertEquals(2, cacheUtils.getMemoryCacheHitCount());
+        assertNull(cacheUtils.getBytes("absent"));
+        assertEquals(2, cacheUtils.getMemoryCacheMissCount());
+        assertEquals(2, cacheUtils.getMemoryCacheSize());
+
+        cacheUtils.setMemoryCacheSize(0);
+        assertEquals(0, cacheUtils.getMemoryCacheSize());
+        assertEquals(0, cacheUtils.getMemoryCacheHitCount());
+        assertArrayEquals(new byte[]{2}, cacheUtils.getBytes("memory"));
+    }
+
+    /**
+     * Streams and buffers look up the memory cache once and count it like the bytes.
+     */
+    @Test
+    public void memoryCacheCountsStreamsAndBuffers() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        cacheUtils.put("buffer", new byte[]{1});
+        cacheUtils.put("stream", new byte[]{2});
+        cacheUtils.setMemoryCacheSize(1024);
+
+        // a miss of buffer reads the disk and fills the memory cache
+        assertArrayEquals(new byte[]{1}, toBytes(cacheUtils.getByteBuffer("buffer")));
+        assertEquals(0, cacheUtils.getMemoryCacheHitCount());
+        assertEquals(1, cacheUtils.getMemoryCacheMissCount());
+        assertArrayEquals(new byte[]{1}, toBytes(cacheUtils.getByteBuffer("buffer")));
+        assertEquals(1, cacheUtils.getMemoryCacheHitCount());
+        assertNull(cacheUtils.getByteBuffer("absent"));
+        assertEquals(2, cacheUtils.getMemoryCacheMissCount());
+
+        // a miss of stream reads the disk without filling the memory cache
+        assertArrayEquals(new byte[]{2}, readAll(cacheUtils.openInputStream("stream")));
+        assertEquals(3, cacheUtils.getMemoryCacheMissCount());
+        assertArrayEquals(new byte[]{1}, readAll(cacheUtils.openInputStream("buffer")));
+        assertEquals(2, cacheUtils.getMemoryCacheHitCount());
+        assertNull(cacheUtils.openInputStream("absent"));
+        assertEquals(2, cacheUtils.getMemoryCacheHitCount());
+        assertEquals(4, cacheUtils.getMemoryCacheMissCount());
+    }
+
+    @Test
+    public void memoryCacheExpiresWithSaveTime() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir).setMemoryCacheSize(1024);
+        cacheUtils.put("key", new byte[]{1}, 1);
+        assertArrayEquals(new byte[]{1}, cacheUtils.getBytes("key"));
+        assertEquals(1, cacheUtils.getMemoryCacheHitCount());
+        Thread.sleep(1100);
+        // the entry is still in memory but due, so it is removed from both tiers
+        assertNull(cacheUtils.getBytes("key"));
+        assertEquals(2, cacheUtils.getMemoryCacheHitCount());
+        assertEquals(0, cacheUtils.getMemoryCacheSize());
+        assertEquals(0, cacheUtils.getCacheCount());
+        assertEquals(0, countFiles(cacheDir));
+    }
+
+    @Test
+    public void memoryCacheCopiesOnReadAndWrite() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir).setMemoryCacheSize(1024);
+        final byte[] value = {1, 2, 3};
+        cacheUtils.put("key", value);
+        value[0] = 9;
+        final byte[] read = cacheUtils.getBytes("key");
+        assertArrayEquals(new byte[]{1, 2, 3}, read);
+        read[1] = 9;
+        assertArrayEquals(new byte[]{1, 2, 3}, cacheUtils.getBytes("key"));
+        assertEquals(2, cacheUtils.getMemoryCacheHitCount());
+        assertTrue(cacheUtils.getByteBuffer("key").isReadOnly());
+    }
+
+    @Test
+    public void getLegacyEntries() throws Exception {
+        final long now = System.currentTimeMillis() / 1000;
+        writeLegacyFile("timed", "_$" + String.format("%010d", now + 3600) + "$_timed");
+        writeLegacyFile("expired", "_$" + String.format("%010d", now - 3600) + "$_expired");
+        writeLegacyFile("plain", "plain");
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        assertEquals(3, cacheUtils.getCacheCount());
+
+        assertEquals("timed", cacheUtils.getString("timed"));
+        assertEquals("plain", cacheUtils.getString("plain"));
+        assertEquals("plain", new String(toBytes(cacheUtils.getByteBuffer("plain"))));
+        assertNull(cacheUtils.getString("expired"));
+        assertEquals(2, cacheUtils.getCacheCount());
+    }
+
+    @Test
+    public void getByteBufferMapsLargeValue() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir).setChecksumEnabled(true);
+        final byte[] small = newText(256 * 1024 - 1);
+        final byte[] large = newText(256 * 1024);
+        cacheUtils.put("small", small);
+        cacheUtils.put("large", large);
+
+        final ByteBuffer heap = cacheUtils.getByteBuffer("small");
+        assertFalse(heap.isDirect());
+        assertTrue(heap.isReadOnly());
+        assertArrayEquals(small, toBytes(heap));
+        final ByteBuffer mapped = cacheUtils.getByteBuffer("large");
+        assertTrue(mapped.isDirect());
+        assertTrue(mapped.isReadOnly());
+        assertArrayEquals(large, toBytes(mapped));
+    }
+
+    @Test
+    public void putAndGetByStreams() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir).setChecksumEnabled(true);
+        final byte[] value = newText(1024 * 1024 + 1);
+        final CacheUtils.CacheOutputStream os = cacheUtils.openOutputStream("key");
+        for (int i = 0; i < value.length; i += 4096) {
+            os.write(value, i, Math.min(4096, value.length - i));
+        }
+        os.close();
+        assertEquals(1, cacheUtils.getCacheCount());
+
+        assertArrayEquals(value, readAll(cacheUtils.openInputStream("key")));
+        assertArrayEquals(value, cacheUtils.getBytes("key"));
+        assertNull(cacheUtils.openInputStream("absent"));
+    }
+
+    @Test
+    public void streamPublishesOnCloseOnly() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        cacheUtils.put("key", new byte[]{1});
+
+        final CacheUtils.CacheOutputStream aborted = cacheUtils.openOutputStream("key");
+        aborted.write(new byte[]{2, 2});
+        aborted.flush();
+        assertArrayEquals(new byte[]{1}, cacheUtils.getBytes("key"));
+        assertEquals(1, countTempFiles());
+        aborted.abort();
+        assertArrayEquals(new byte[]{1}, cacheUtils.getBytes("key"));
+        assertEquals(0, countTempFiles());
+        try {
+            aborted.write(3);
+            fail("an aborted stream is still open");
+        } catch (IOException expected) {
+        }
+        // closing after abort publishes nothing
+        aborted.close();
+        assertArrayEquals(new byte[]{1}, cacheUtils.getBytes("key"));
+
+        final CacheUtils.CacheOutputStream committed = cacheUtils.openOutputStream("key");
+        committed.write(new byte[]{3, 3, 3});
+        assertArrayEquals(new byte[]{1}, cacheUtils.getBytes("key"));
+        committed.close();
+        assertArrayEquals(new byte[]{3, 3, 3}, cacheUtils.getBytes("key"));
+        assertEquals(1, cacheUtils.getCacheCount());
+        assertEquals(0, countTempFiles());
+    }
+
+    @Test
+    public void sweepRemovesExpiredInBackground() throws Exception {
+        final CacheUtils cacheUtils = CacheUtils.getInstance(cacheDir);
+        cacheUtils.put("kept", new byte[100]);
+        final long keptSize = cacheUtils.getCacheSize();
+        for (int i = 0; i < 10; i++) {
+            cacheUtils.put("expiring" + i, new byte[100], 1);
+        }
+        final long size = cacheUtils.getCacheSize();
+        assertEquals(11, cacheUtils.getCacheCount());
+        cacheUtils.setSweepInterval(100, TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < 100 && cacheUtils.getCacheCount() > 1; i++) {
+                Thread.sleep(50);
+            }
+        } finally {
+            cacheUtils.setSweepInterval(0, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1, cacheUtils.getCacheCount());
+        assertEquals(keptSize, cacheUtils.getCacheSize());
+        assertEquals(size - keptSize, cacheUtils.getSweptSize());
+        assertEquals(1, countFiles(cacheDir));
+        assertArrayEquals(new byte[100], cacheUtils.getBytes("kept"));
+        // nothing is left for a sweep now
+        assertEquals(0, cacheUtils.sweep());
+    }
+
+    /**
+     * Put, get and remove random keys from 16 threads, each value carries its key and
+     * a pattern derived from its seed, so a torn or mixed value never passes the check.
+     */
+    private static void stress(final CacheUtils cacheUtils, final File cacheDir) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(WRITERS);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicInteger reads = new AtomicInteger();
+        for (int i = 0; i < WRITERS; i++) {
+            final Random random = new Random(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < OPERATIONS && error.get() == null; j++) {
+                            final int key = random.nextInt(KEYS);
+                            final int op = random.nextInt(10);
+                            if (op < 6) {
+                                cacheUtils.put("key" + key, newValue(key, random.nextInt()));
+                            } else if (op < 9) {
+                                final byte[] value = cacheUtils.getBytes("key" + key);
+                                if (value != null) {
+                                    checkValue(key, value);
+                                    reads.incrementAndGet();
+                                }
+                            } else {
+                                cacheUtils.remove("key" + key);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue("writers timed out", done.await(2, TimeUnit.MINUTES));
+        if (error.get() != null) throw new AssertionError(error.get());
+        assertTrue(reads.get() > 0);
+
+        // the counters match what is left
+        int count = 0;
+        for (int key = 0; key < KEYS; key++) {
+            final byte[] value = cacheUtils.getBytes("key" + key);
+            if (value != null) {
+                checkValue(key, value);
+                count++;
+            }
+        }
+        assertEquals(count, cacheUtils.getCacheCount());
+        assertEquals(count, countFiles(cacheDir));
+    }
+
+    /**
+     * Fill the cache to its count limit, then return the best time of a put which
+     * evicts the oldest file.
+     * <p>The files are laid out along with their journal, so that filling doesn't take
+     * count puts.</p>
+     */
+    private static long timePutsOverQuota(final File dir, final int count) throws IOException {
+        assertTrue(dir.mkdirs());
+        final StringBuilder sb = new StringBuilder("CacheUtils.journal\n1\n\n");
+        for (int i = 0; i < count; i++) {
+            writeFile(new File(dir, "f" + i), 256);
+            sb.append("P f").append(i).append(" 256 ").append(1000 + i).append('\n');
+        }
+        final Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, "journal")), "US-ASCII");
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+        final CacheUtils cacheUtils = CacheUtils.getInstance(dir, Long.MAX_VALUE, count);
+        assertEquals(count, cacheUtils.getCacheCount());
+        final byte[] value = new byte[256];
+        final int rounds = 5, puts = 500;
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < puts; i++) {
+                cacheUtils.put("key" + round + "-" + i, value);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / puts);
+        }
+        assertEquals(count, cacheUtils.getCacheCount());
+        assertFalse(new File(dir, "f" + (rounds * puts - 1)).exists());
+        assertTrue(new File(dir, "f" + rounds * puts).exists());
+        return best;
+    }
+
+    private static byte[] newValue(final int key, final int seed) {
+        final int length = 8 + (seed >>> 1) % 4096;
+        final byte[] value = new byte[length];
+        putInt(value, 0, key);
+        putInt(value, 4, seed);
+        for (int i = 8; i < length; i++) {
+            value[i] = (byte) (seed * 31 + i);
+        }
+        return value;
+    }
+
+    private static void checkValue(final int key, final byte[] value) {
+        assertTrue("value too short: " + value.length, value.length >= 8);
+        assertEquals("value of another key", key, getInt(value, 0));
+        final int seed = getInt(value, 4);
+        assertEquals("torn value", 8 + (seed >>> 1) % 4096, value.length);
+        for (int i = 8; i < value.length; i++) {
+            if (value[i] != (byte) (seed * 31 + i)) {
+                throw new AssertionError("corrupt value of key" + key + " at " + i);
+            }
+        }
+    }
+
+    private static byte[] newText(final int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        final Random random = new Random(length);
+        while (sb.length() < length) {
+            sb.append("line ").append(sb.length()).append(": key").append(random.nextInt(64))
+                    .append(" = value").append(random.nextInt(1000)).append('\n');
+        }
+        sb.setLength(length);
+        return sb.toString().getBytes();
+    }
+
+    private static ArrayList<Integer> newList(final int size) {
+        final ArrayList<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(i * 1000);
+        }
+        return list;
+    }
+
+    private static long sum(final long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private int countTempFiles() {
+        final String[] names = new File(cacheDir, "tmp").list();
+        return names == null ? 0 : names.length;
+    }
+
+    private void writeLegacyFile(final String key, final String content) throws IOException {
+        final FileOutputStream fos =
+                new FileOutputStream(new File(cacheDir, String.valueOf(key.hashCode())));
+        try {
+            fos.write(content.getBytes("US-ASCII"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static byte[] readAll(final InputStream is) throws IOException {
+        assertNotNull(is);
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try {
+            final byte[] buffer = new byte[8192];
+            for (int len; (len = is.read(buffer)) != -1; ) {
+                read.write(buffer, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        return read.toByteArray();
+    }
+
+    private static byte[] toBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static void putInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static int countFiles(final File cacheDir) {
+        int count = 0;
+        final List<File> dirs = new ArrayList<>();
+        dirs.add(cacheDir);
+        while (!dirs.isEmpty()) {
+            final File[] files = dirs.remove(dirs.size() - 1).listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                final String name = file.getName();
+                if (file.isDirectory()) {
+                    if (!"tmp".equals(name)) dirs.add(file);
+                } else if (!name.startsWith("journal")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void writeFile(final File file, final int length) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(new byte[length]);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private void writeJournal(final String records) throws IOException {
+        final Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(cacheDir, "journal")), "US-ASCII");
+        try {
+            writer.write("CacheUtils.journal\n1\n\n");
+            writer.write(records);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String readJournal() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(new File(cacheDir, "journal"), "r");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return new String(bytes, "US-ASCII");
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void deleteDir(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    assertFalse(file.exists() && !file.delete());
+                }
+            }
+        }
+        dir.delete();
+    }
+}
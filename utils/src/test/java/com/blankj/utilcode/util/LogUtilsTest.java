@@ -0,0 +1,749 @@
+package com.blankj.utilcode.util;
+
+import android.app.Application;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <pre>
+ *     author: Blankj
+ *     blog  : http://blankj.com
+ *     time  : 2026/10/17
+ *     desc  : test LogUtils
+ * </pre>
+ */
+public class LogUtilsTest {
+
+    private static final int THREADS = 4;
+    private static final int CALLS   = 50000;
+
+    private static final String[] POLICIES = {"drop", "block", "sample"};
+    private static final String   LINE_SEP = System.getProperty("line.separator");
+
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.init(new Application());
+        logDir = File.createTempFile("LogUtilsTest", "");
+        assertTrue(logDir.delete());
+        assertTrue(logDir.mkdirs());
+        LogUtils.getConfig()
+                .setLogSwitch(true)
+                .setConsoleSwitch(false)
+                .setLog2FileSwitch(true)
+                .setDir(logDir)
+                .setFilePrefix("test")
+                .setLogHeadSwitch(false)
+                .setBorderSwitch(false)
+                .setFileBufferSize(256)
+                .setFileFlushInterval(1, TimeUnit.SECONDS)
+                .setFileOverflowPolicy(LogUtils.OVERFLOW_BLOCK)
+                .setFileMappedSwitch(false)
+                .setFileBinarySwitch(false)
+                .setFileFilter(LogUtils.V);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LogUtils.flush();
+        LogUtils.getConfig()
+                .setLog2FileSwitch(false)
+                .setDir((File) null)
+                .setRateLimit(0, 1)
+                .setSampleRate(1)
+                .setSuppressedSummaryInterval(10, TimeUnit.SECONDS);
+        deleteDir(logDir);
+    }
+
+    @Test
+    public void log2FileWithDropPolicy() throws Exception {
+        log2FileFromThreads(LogUtils.OVERFLOW_DROP);
+    }
+
+    @Test
+    public void log2FileWithSamplePolicy() throws Exception {
+        log2FileFromThreads(LogUtils.OVERFLOW_SAMPLE);
+    }
+
+    @Test
+    public void log2FileWithBlockPolicy() throws Exception {
+        assertEquals(0, log2FileFromThreads(LogUtils.OVERFLOW_BLOCK));
+    }
+
+    @Test
+    public void errorIsOnDiskOnReturn() throws Exception {
+        LogUtils.getConfig().setFileFlushInterval(1, TimeUnit.HOURS);
+        LogUtils.dTag("LogUtilsTest", "debug");
+        LogUtils.eTag("LogUtilsTest", "error");
+
+        final List<String> lines = readLines(logDir);
+        assertTrue(lines.toString(), lines.get(lines.size() - 1).endsWith("/LogUtilsTest: error"));
+    }
+
+    /**
+     * An error waits for the file writer at most the timeout, even if the writer is stuck
+     * on the disk.
+     */
+    @Test
+    public void errorWaitsForStuckWriterUntilTimeout() throws Exception {
+        LogUtils.getConfig().setFileErrorFlushTimeout(50, TimeUnit.MILLISECONDS);
+        LogUtils.dTag("LogUtilsTest", "debug");
+        LogUtils.flush();
+        final Object sink = getField(LogUtils.class, null, "sFileSink");
+        final Writer writer = (Writer) getField(sink.getClass(), sink, "mWriter");
+        final CountDownLatch release = new CountDownLatch(1);
+        setField(sink, "mWriter", new FilterWriter(writer) {
+            @Override
+            public void write(final char[] cbuf, final int off, final int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(cbuf, off, len);
+            }
+        });
+        try {
+            final long start = System.nanoTime();
+            LogUtils.eTag("LogUtilsTest", "error");
+            final long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(waitMillis + " ms", waitMillis >= 50 && waitMillis < 1000);
+        } finally {
+            release.countDown();
+            LogUtils.getConfig().setFileErrorFlushTimeout(100, TimeUnit.MILLISECONDS);
+        }
+        LogUtils.flush();
+        final List<String> lines = readLines(logDir);
+        assertTrue(lines.toString(), lines.get(lines.size() - 1).endsWith("/LogUtilsTest: error"));
+    }
+
+    private static Object getField(final Class<?> clazz, final Object target, final String name)
+            throws Exception {
+        final Field field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private static void setField(final Object target, final String name, final Object value)
+            throws Exception {
+        final Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * A disabled or filtered log with a preallocated array of arguments returns before
+     * anything is formatted, so it allocates nothing.
+     */
+    @Test
+    public void filteredLogAllocatesNothing() throws Exception {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        final long id = Thread.currentThread().getId();
+        final Object[] args = {"filtered", 42};
+        final int calls = 100000;
+
+        LogUtils.getConfig().setFileFilter(LogUtils.E);
+        logCalls(args, calls);
+        long start = threadBean.getThreadAllocatedBytes(id);
+        logCalls(args, calls);
+        final long filtered = threadBean.getThreadAllocatedBytes(id) - start;
+
+        LogUtils.getConfig().setFileFilter(LogUtils.V).setLogSwitch(false);
+        logCalls(args, calls);
+        start = threadBean.getThreadAllocatedBytes(id);
+        logCalls(args, calls);
+        final long disabled = threadBean.getThreadAllocatedBytes(id) - start;
+
+        // less than a byte a call, the bean itself may allocate a little
+        assertTrue(filtered + " bytes filtered", filtered < calls);
+        assertTrue(disabled + " bytes disabled", disabled < calls);
+    }
+
+    @Test
+    public void logInToStringOfArgument() throws Exception {
+        final Object inner = new Object() {
+            @Override
+            public String toString() {
+                LogUtils.dTag("LogUtilsTest", "inner", "log");
+                return "inner";
+            }
+        };
+        LogUtils.dTag("LogUtilsTest", "outer", inner, "done");
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+
+        final StringBuilder sb = new StringBuilder();
+        for (String line : readLines(logDir)) {
+            sb.append(line).append('\n');
+        }
+        final String text = sb.toString();
+        assertTrue(text, text.contains("args[0] = inner"));
+        assertTrue(text, text.contains("args[0] = outer"));
+        assertTrue(text, text.contains("args[1] = inner"));
+        assertTrue(text, text.contains("args[2] = done"));
+    }
+
+    @Test
+    public void mappedSegmentsRollAndKeepMax() throws Exception {
+        logToSegmentsAndKeepMax(false);
+    }
+
+    @Test
+    public void binarySegmentsRollAndKeepMax() throws Exception {
+        logToSegmentsAndKeepMax(true);
+    }
+
+    /**
+     * Log through 4 KB segments until they rolled many times, the newest are kept
+     * and hold the last logs without gap.
+     */
+    private void logToSegmentsAndKeepMax(final boolean binary) throws Exception {
+        LogUtils.getConfig()
+                .setFileMappedSwitch(true)
+                .setFileBinarySwitch(binary)
+                .setFileSegmentSize(4096)
+                .setFileMaxSegments(3);
+        final int count = 3000;
+        for (int i = 0; i < count; i++) {
+            LogUtils.dTag("LogUtilsTest", "seq " + i);
+        }
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+        // the prepared next one isn't counted
+        final List<File> segments = listSegments(logDir);
+        assertEquals(segments.toString(), 3 + 1, segments.size());
+
+        int expected = -1;
+        for (File segment : segments) {
+            for (String line : readSegment(segment, binary).split("\n")) {
+                final int index = line.indexOf(": seq ");
+                if (index < 0) continue;
+                final int seq = Integer.parseInt(line.substring(index + 6).trim());
+                if (expected != -1) assertEquals(expected, seq);
+                expected = seq + 1;
+            }
+        }
+        assertEquals(count, expected);
+    }
+
+    @Test
+    public void textSegmentEndsCutLineOnReopen() throws Exception {
+        reopenSegmentCutByCrash(false);
+    }
+
+    @Test
+    public void binarySegmentDropsCutRecordOnReopen() throws Exception {
+        reopenSegmentCutByCrash(true);
+    }
+
+    /**
+     * Copy a full-size segment which is still open, as if the process died, cut a write
+     * after its logs, then reopen it in another dir and log on.
+     */
+    private void reopenSegmentCutByCrash(final boolean binary) throws Exception {
+        LogUtils.getConfig()
+                .setFileMappedSwitch(true)
+                .setFileBinarySwitch(binary)
+                .setFileSegmentSize(4096)
+                .setFileMaxSegments(3);
+        for (int i = 0; i < 10; i++) {
+            LogUtils.dTag("LogUtilsTest", "seq " + i);
+        }
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+        final File segment = listSegments(logDir).get(0);
+        final byte[] bytes = readBytes(segment);
+        assertEquals(4096, bytes.length);
+
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        // a record whose first byte isn't written yet, or the head of a line
+        final byte[] cut = binary
+                ? new byte[]{0, 9, 1, 2, 3}
+                : "LogUtilsTest: cut".getBytes("UTF-8");
+        System.arraycopy(cut, 0, bytes, end, cut.length);
+        final File crashDir = new File(logDir, "crash");
+        assertTrue(crashDir.mkdirs());
+        final File crashed = new File(crashDir, segment.getName());
+        final RandomAccessFile raf = new RandomAccessFile(crashed, "rw");
+        try {
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+
+        LogUtils.getConfig().setDir(crashDir);
+        LogUtils.dTag("LogUtilsTest", "seq " + 10);
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+
+        int expected = 0;
+        final List<String> lines = Arrays.asList(readSegment(crashed, binary).split("\n"));
+        for (String line : lines) {
+            final int index = line.indexOf(": seq ");
+            if (index < 0) continue;
+            assertEquals(line, expected++, Integer.parseInt(line.substring(index + 6).trim()));
+        }
+        assertEquals(11, expected);
+        final String last = lines.get(lines.size() - 1);
+        assertTrue(last, last.endsWith("/LogUtilsTest: seq 10"));
+        if (!binary) {
+            assertEquals("LogUtilsTest: cut", lines.get(lines.size() - 2).trim());
+        }
+    }
+
+    private static byte[] readBytes(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void binaryRecordIsSeenOnlyWithItsFirstByte() throws Exception {
+        final byte[] bytes = logToOneSegment(true, "first 1", "second 2");
+        final int end = findEnd(bytes);
+        final File segment = new File(logDir, "cut.bin");
+        // the whole record is there but its first byte, as in the middle of a write
+        final int last = findLastRecord(bytes, end);
+        writeBytes(segment, Arrays.copyOf(bytes, end), last);
+        String text = readSegment(segment, true);
+        assertTrue(text, text.endsWith("/LogUtilsTest: first 1" + LINE_SEP));
+
+        writeBytes(segment, Arrays.copyOf(bytes, end), -1);
+        text = readSegment(segment, true);
+        assertTrue(text, text.endsWith("/LogUtilsTest: second 2" + LINE_SEP));
+    }
+
+    @Test
+    public void truncatedBinarySegmentDecodesWholeRecords() throws Exception {
+        final byte[] bytes = logToOneSegment(true, "first 1", "second 2");
+        final int end = findEnd(bytes);
+        final File segment = new File(logDir, "cut.bin");
+        writeBytes(segment, Arrays.copyOf(bytes, end - 3), -1);
+        final String text = readSegment(segment, true);
+        assertTrue(text, text.endsWith("/LogUtilsTest: first 1" + LINE_SEP));
+        assertTrue(text, !text.contains("second"));
+    }
+
+    @Test
+    public void fullDictionaryFallsBackToInlineStrings() throws Exception {
+        // more templates without numbers than the dictionary holds
+        final String[] msgs = new String[5000];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = "template " + Integer.toString(i, 26).replace('0', 'z')
+                    .replace('1', 'y').replace('2', 'x').replace('3', 'w').replace('4', 'v')
+                    .replace('5', 'u').replace('6', 't').replace('7', 's').replace('8', 'r')
+                    .replace('9', 'q');
+        }
+        final File segment = new File(logDir, "full.bin");
+        writeBytes(segment, logToOneSegment(true, msgs), -1);
+        final String[] lines = readSegment(segment, true).split("\n");
+        int index = 0;
+        for (String line : lines) {
+            if (line.contains("/LogUtilsTest: ")) {
+                assertTrue(line, line.endsWith("/LogUtilsTest: " + msgs[index++]));
+            }
+        }
+        assertEquals(msgs.length, index);
+    }
+
+    @Test
+    public void binaryKeepsUnusualMessages() throws Exception {
+        final String[] msgs = {
+                "arg \u0001 marker 12",
+                "nul \u0000 byte 34",
+                "leading zeros 007 and 0 and 100",
+                "long 1234567890123456789012 number",
+                "unicode \u00e9\u4e2d 5"
+        };
+        final File segment = new File(logDir, "unusual.bin");
+        writeBytes(segment, logToOneSegment(true, msgs), -1);
+        final String[] lines = readSegment(segment, true).split("\n");
+        final List<String> logs = new ArrayList<>();
+        for (String line : lines) {
+            final int index = line.indexOf("/LogUtilsTest: ");
+            if (index >= 0) logs.add(line.substring(index + 15).replace("\r", ""));
+        }
+        // NUL is written as a space, like in text segments
+        assertEquals(Arrays.asList(msgs[0], "nul   byte 34", msgs[2], msgs[3], msgs[4]), logs);
+    }
+
+    @Test
+    public void binaryTakesLessSpaceThanText() throws Exception {
+        final String[] tags = {"Network", "Database", "Ui"};
+        final String[] msgs = new String[20000];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = tags[i % 3] + ": request " + (i * 7919 % 100000) + " took "
+                    + (i % 250) + " ms with status " + (i % 7 == 0 ? 500 : 200);
+        }
+        final int text = findEnd(logToOneSegment(false, msgs));
+        tearDown();
+        setUp();
+        final int binary = findEnd(logToOneSegment(true, msgs));
+        assertTrue(text + " bytes of text, " + binary + " bytes of binary", binary * 4 <= text);
+    }
+
+    /**
+     * Log the messages to one 4 MB segment and return its bytes while it is still open.
+     */
+    private byte[] logToOneSegment(final boolean binary, final String... msgs) throws Exception {
+        LogUtils.getConfig()
+                .setFileMappedSwitch(true)
+                .setFileBinarySwitch(binary)
+                .setFileSegmentSize(4 * 1024 * 1024)
+                .setFileMaxSegments(3);
+        for (String msg : msgs) {
+            LogUtils.dTag("LogUtilsTest", msg);
+        }
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+        return readBytes(listSegments(logDir).get(0));
+    }
+
+    private static int findEnd(final byte[] bytes) {
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Return the offset of the last record of the binary segment.
+     */
+    private static int findLastRecord(final byte[] bytes, final int end) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, end);
+        assertTrue(LogDecoder.readMagic(buffer));
+        final LogDecoder.Parser parser = new LogDecoder.Parser(buffer);
+        int last = buffer.position();
+        while (true) {
+            final int start = buffer.position();
+            if (parser.next() == 0) return last;
+            last = start;
+        }
+    }
+
+    /**
+     * Write the bytes to the file, with the byte at zero offset cleared if it is not -1.
+     */
+    private static void writeBytes(final File file, final byte[] bytes, final int zero)
+            throws IOException {
+        if (zero != -1) bytes[zero] = 0;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<File> listSegments(final File dir) {
+        final List<File> segments = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("test-")) segments.add(file);
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(final File o1, final File o2) {
+                return getSegmentIndex(o1) - getSegmentIndex(o2);
+            }
+        });
+        return segments;
+    }
+
+    private static int getSegmentIndex(final File segment) {
+        final String name = segment.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1, name.lastIndexOf('.')));
+    }
+
+    private static String readSegment(final File segment, final boolean binary) throws IOException {
+        if (binary) {
+            final StringWriter writer = new StringWriter();
+            LogDecoder.decode(segment, writer);
+            return writer.toString();
+        }
+        final RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int end = 0;
+            while (end < bytes.length && bytes[end] != 0) {
+                end++;
+            }
+            return new String(bytes, 0, end, "UTF-8");
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void rateLimitOfTag() throws Exception {
+        LogUtils.getConfig()
+                .setRateLimit("spam", 100, 10)
+                .setSuppressedSummaryInterval(300, TimeUnit.MILLISECONDS);
+        long calls = 0;
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(1050);
+        while (System.nanoTime() < end) {
+            LogUtils.dTag("spam", "x");
+            calls++;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        // the summary of the rest comes with the next log which passes
+        Thread.sleep(350);
+        LogUtils.dTag("spam", "x");
+        calls++;
+        LogUtils.getConfig().setRateLimit("spam", 0, 1);
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+
+        int passed = 0, summaries = 0;
+        long suppressed = 0;
+        for (String line : readLines(logDir)) {
+            if (line.endsWith("/spam: x")) {
+                passed++;
+            } else if (line.contains("suppressed ")) {
+                summaries++;
+                final String count = line.substring(line.indexOf("suppressed ") + 11);
+                suppressed += Long.parseLong(count.substring(0, count.indexOf(' ')));
+            }
+        }
+        final String counts = passed + " of " + calls + " calls passed in " + seconds + " s, "
+                + summaries + " summaries";
+        assertEquals(counts, calls, passed + suppressed);
+        assertTrue(counts, passed <= 10 + 100 * (seconds + 0.35) + 1);
+        assertTrue(counts, summaries >= 2);
+    }
+
+    @Test
+    public void sampleRateOfTag() throws Exception {
+        LogUtils.getConfig().setSampleRate("sampled", 0.1f);
+        for (int i = 0; i < 100000; i++) {
+            LogUtils.dTag("sampled", "z");
+        }
+        LogUtils.getConfig().setSampleRate("sampled", 1);
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+
+        int kept = 0;
+        for (String line : readLines(logDir)) {
+            if (line.endsWith("/sampled: z")) kept++;
+        }
+        assertTrue("kept " + kept + " of 100000", kept > 9000 && kept < 11000);
+    }
+
+    @Test
+    public void rateLimitSkipsUntaggedWarnings() throws Exception {
+        LogUtils.getConfig().setRateLimit(1, 1);
+        for (int i = 0; i < 1000; i++) {
+            LogUtils.d("debug");
+        }
+        for (int i = 0; i < 5; i++) {
+            LogUtils.w("warn");
+            LogUtils.e("error");
+        }
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+
+        int debug = 0, warn = 0, error = 0;
+        for (String line : readLines(logDir)) {
+            if (line.endsWith(": debug")) debug++;
+            if (line.endsWith(": warn")) warn++;
+            if (line.endsWith(": error")) error++;
+        }
+        assertTrue(debug <= 2);
+        assertEquals(5, warn);
+        assertEquals(5, error);
+    }
+
+    @Test
+    public void rateLimitOfManyTags() throws Exception {
+        LogUtils.getConfig().setRateLimit(1, 1);
+        for (int i = 0; i < 5000; i++) {
+            LogUtils.dTag("tag" + i, "y");
+        }
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+
+        int passed = 0;
+        for (String line : readLines(logDir)) {
+            if (line.endsWith(": y")) passed++;
+        }
+        // tags past the cap share one bucket
+        assertTrue(String.valueOf(passed), passed <= 256 + 1);
+    }
+
+    /**
+     * A log suppressed by sampling or rate limit returns long before it is formatted,
+     * so it costs a fraction of one which is written.
+     */
+    @Test
+    public void suppressedLogCost() throws Exception {
+        final Object[] args = {"suppressed"};
+        final int calls = 1000000;
+        final long written = bestNanosPerCall(args, 100000, "cold");
+        LogUtils.getConfig()
+                .setSuppressedSummaryInterval(1, TimeUnit.HOURS)
+                .setSampleRate("hot", 0);
+        final long sampled = bestNanosPerCall(args, calls, "hot");
+        LogUtils.getConfig().setSampleRate("hot", 1).setRateLimit("hot", 1, 1);
+        final long limited = bestNanosPerCall(args, calls, "hot");
+        LogUtils.getConfig().setRateLimit("hot", 0, 1);
+        final String costs = written + " ns/call written, " + sampled + " ns/call sampled out, "
+                + limited + " ns/call rate limited";
+        assertTrue(costs, sampled * 4 < written);
+        assertTrue(costs, limited * 4 < written);
+    }
+
+    private static long bestNanosPerCall(final Object[] args, final int calls, final String tag) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            final long start = System.nanoTime();
+            logCalls(args, calls, tag);
+            best = Math.min(best, (System.nanoTime() - start) / calls);
+        }
+        return best;
+    }
+
+    private static void logCalls(final Object[] args, final int calls) {
+        logCalls(args, calls, "LogUtilsTest");
+    }
+
+    private static void logCalls(final Object[] args, final int calls, final String tag) {
+        for (int i = 0; i < calls; i++) {
+            LogUtils.log(LogUtils.D, tag, args);
+        }
+    }
+
+    /**
+     * Log from 4 threads to file and measure the latency of each call, every call
+     * ends up in the file or in the count of dropped logs. Unless the policy blocks,
+     * 99% of calls return within a millisecond, the caller never waits for the disk.
+     *
+     * @return the count of dropped logs
+     */
+    private long log2FileFromThreads(final int policy) throws Exception {
+        LogUtils.getConfig().setFileOverflowPolicy(policy);
+        final long[][] latencies = new long[THREADS][CALLS];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < THREADS; i++) {
+            final long[] latency = latencies[i];
+            final String[] msgs = new String[CALLS];
+            for (int j = 0; j < CALLS; j++) {
+                msgs[j] = "call " + i + " " + j;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < CALLS; j++) {
+                            final long begin = System.nanoTime();
+                            LogUtils.dTag("LogUtilsTest", msgs[j]);
+                            latency[j] = System.nanoTime() - begin;
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue("loggers timed out", done.await(2, TimeUnit.MINUTES));
+        if (error.get() != null) throw new AssertionError(error.get());
+        assertTrue(LogUtils.flush(1, TimeUnit.MINUTES));
+
+        long written = 0, dropped = 0;
+        for (String line : readLines(logDir)) {
+            if (line.contains(": call ")) {
+                written++;
+            } else if (line.endsWith(" logs dropped by overflow policy.")) {
+                final String count = line.substring(0, line.lastIndexOf(" logs dropped"));
+                dropped += Long.parseLong(count.substring(count.lastIndexOf(' ') + 1));
+            }
+        }
+        assertEquals(THREADS * CALLS, written + dropped);
+
+        final long[] all = new long[THREADS * CALLS];
+        for (int i = 0; i < THREADS; i++) {
+            System.arraycopy(latencies[i], 0, all, i * CALLS, CALLS);
+        }
+        Arrays.sort(all);
+        final long p99 = all[all.length / 100 * 99];
+        if (policy != LogUtils.OVERFLOW_BLOCK) {
+            assertTrue(POLICIES[policy] + ": p99 " + p99 / 1000.0 + " us",
+                    p99 < TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return dropped;
+    }
+
+    private static List<String> readLines(final File dir) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files == null) return lines;
+        Arrays.sort(files);
+        for (File file : files) {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return lines;
+    }
+
+    private static void deleteDir(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,1176 @@
+package com.blankj.utilcode.util;
+
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <pre>
+ *     author: Blankj
+ *     blog  : http://blankj.com
+ *     time  : 2026/10/17
+ *     desc  : test ThreadUtils
+ * </pre>
+ */
+public class ThreadUtilsTest {
+
+    private static final String SCHEDULER_PREFIX = "scheduled-pool-";
+    private static final int    QUEUE_CAPACITY   = 128;
+
+    /**
+     * Submit tasks without and with delay, all of them share one scheduler thread
+     * and the ones without delay never start it, so they run at least twice as fast
+     * as with a scheduler thread started per task.
+     */
+    @Test
+    public void executeByCachedSharesSchedulerThread() throws Exception {
+        final int count = 20000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            ThreadUtils.executeByCached(new CountTask(latch));
+        }
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        final long shared = TimeUnit.SECONDS.toNanos(1) * count / (System.nanoTime() - start);
+        assertTrue(countSchedulerThreads() <= 1);
+        final long perTask = runWithSchedulerPerTask(2000);
+        final String rates = shared + " tasks/s starting " + countSchedulerThreads()
+                + " scheduler threads, " + perTask + " tasks/s starting one per task";
+        System.out.println(rates);
+        assertTrue(rates, shared > 2 * perTask);
+
+        final CountDownLatch delayed = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            ThreadUtils.executeByCachedWithDelay(new CountTask(delayed), 1, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(delayed.await(1, TimeUnit.MINUTES));
+        assertEquals(1, countSchedulerThreads());
+    }
+
+    @Test
+    public void cancelBeforeDelayNeverRuns() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountTask[] tasks = new CountTask[100];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new CountTask(new CountDownLatch(1)) {
+                @Override
+                public Integer doInBackground() {
+                    return runs.incrementAndGet();
+                }
+            };
+            ThreadUtils.executeByCachedWithDelay(tasks[i], 100, TimeUnit.MILLISECONDS);
+        }
+        for (CountTask task : tasks) {
+            ThreadUtils.cancel(task);
+        }
+        Thread.sleep(300);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void parallelForCoversRangeOnce() throws Exception {
+        final AtomicIntegerArray counts = new AtomicIntegerArray(100003);
+        ThreadUtils.parallelFor(0, counts.length(), 1000, new ThreadUtils.RangeAction() {
+            @Override
+            public void run(final int from, final int to) {
+                for (int i = from; i < to; i++) {
+                    counts.incrementAndGet(i);
+                }
+            }
+        });
+        for (int i = 0; i < counts.length(); i++) {
+            assertEquals(1, counts.get(i));
+        }
+    }
+
+    @Test
+    public void parallelForRethrowsFailure() throws Exception {
+        try {
+            ThreadUtils.parallelFor(0, 10000, 100, new ThreadUtils.RangeAction() {
+                @Override
+                public void run(final int from, final int to) {
+                    if (from <= 5000 && 5000 < to) throw new IllegalStateException("chunk " + from);
+                }
+            });
+            fail("the failure of a chunk is lost");
+        } catch (IllegalStateException expected) {
+            assertEquals("chunk 5000", expected.getMessage());
+        }
+    }
+
+    /**
+     * Call parallelFor from more cpu tasks than the pool has threads, the callers run
+     * the chunks nobody picks up, so they never wait on each other.
+     */
+    @Test
+    public void parallelForFromCpuTasks() throws Exception {
+        final int tasks = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        final int length = 1 << 20;
+        final long sequential = sumSquares(0, length);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            ThreadUtils.executeByCpu(new ThreadUtils.SimpleTask<Long>() {
+                @Override
+                public Long doInBackground() {
+                    final AtomicLong sum = new AtomicLong();
+                    ThreadUtils.parallelFor(0, length, new ThreadUtils.RangeAction() {
+                        @Override
+                        public void run(final int from, final int to) {
+                            sum.addAndGet(sumSquares(from, to));
+                        }
+                    });
+                    return sum.get();
+                }
+
+                @Override
+                public void onSuccess(final Long result) {
+                    if (result != sequential) error.compareAndSet(null, new AssertionError(result));
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFail(final Throwable t) {
+                    error.compareAndSet(null, t);
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue("parallelFor deadlocked", latch.await(1, TimeUnit.MINUTES));
+        if (error.get() != null) throw new AssertionError(error.get());
+    }
+
+    /**
+     * The work-stealing pool is only used since Android 5.0,
+     * so the test turns it on behind {@link ThreadUtils#setCpuPoolWorkStealing(boolean)}.
+     */
+    @Test
+    public void parallelForOnWorkStealingPool() throws Exception {
+        setCpuPoolWorkStealing(true);
+        try {
+            final AtomicIntegerArray counts = new AtomicIntegerArray(100003);
+            final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            ThreadUtils.parallelFor(0, counts.length(), 1000, new ThreadUtils.RangeAction() {
+                @Override
+                public void run(final int from, final int to) {
+                    threads.add(Thread.currentThread().getName());
+                    for (int i = from; i < to; i++) {
+                        counts.incrementAndGet(i);
+                    }
+                }
+            });
+            for (int i = 0; i < counts.length(); i++) {
+                assertEquals(1, counts.get(i));
+            }
+            boolean stolen = false;
+            for (String thread : threads) {
+                if (thread.startsWith("cpu-stealing-pool-")) stolen = true;
+            }
+            assertTrue(threads.toString(), stolen);
+
+            try {
+                ThreadUtils.parallelFor(0, 10000, 100, new ThreadUtils.RangeAction() {
+                    @Override
+                    public void run(final int from, final int to) {
+                        if (from == 5000) throw new IllegalStateException("chunk " + from);
+                    }
+                });
+                fail("the failure of a chunk is lost");
+            } catch (IllegalStateException expected) {
+                assertEquals("chunk 5000", expected.getMessage());
+            }
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<String> thread = new AtomicReference<>();
+            ThreadUtils.executeByCpu(new CountTask(latch) {
+                @Override
+                public Integer doInBackground() {
+                    thread.set(Thread.currentThread().getName());
+                    return 0;
+                }
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(thread.get(), thread.get().startsWith("cpu-stealing-pool-"));
+        } finally {
+            setCpuPoolWorkStealing(false);
+        }
+    }
+
+    /**
+     * Burst CPU_COUNT times 1, 4 and 16 tasks into the cpu pool and the work-stealing pool,
+     * and report tasks/s and the latency of each task from its submission to its callback.
+     * The work-stealing pool accepts every burst, with at least half the throughput
+     * of the cpu pool.
+     */
+    @Test
+    public void workStealingComparedWithCpuPool() throws Exception {
+        final int cpuCount = Runtime.getRuntime().availableProcessors();
+        final StringBuilder report = new StringBuilder();
+        try {
+            for (int factor : new int[]{1, 4, 16}) {
+                final int tasks = cpuCount * factor;
+                final Burst pool = bestBurst(false, tasks);
+                final Burst stealing = bestBurst(true, tasks);
+                final String costs = tasks + " tasks: cpu pool " + pool
+                        + ", work-stealing pool " + stealing;
+                report.append(costs).append('\n');
+                assertEquals(costs, 0, stealing.rejected);
+                assertTrue(costs, stealing.tasksPerSecond * 2 > pool.tasksPerSecond);
+            }
+        } finally {
+            setCpuPoolWorkStealing(false);
+        }
+        System.out.print(report);
+    }
+
+    /**
+     * Return the burst of best throughput out of 5, after one to warm up.
+     */
+    private static Burst bestBurst(final boolean workStealing, final int tasks) throws Exception {
+        setCpuPoolWorkStealing(workStealing);
+        Burst best = Burst.run(tasks);
+        for (int round = 0; round < 5; round++) {
+            final Burst burst = Burst.run(tasks);
+            if (round == 0 || burst.tasksPerSecond > best.tasksPerSecond) best = burst;
+        }
+        return best;
+    }
+
+    private static final class Burst {
+        private long tasksPerSecond;
+        private long p50Micros;
+        private long p99Micros;
+        private int  rejected;
+
+        static Burst run(final int tasks) throws InterruptedException {
+            final long[] latencies = new long[tasks];
+            final AtomicInteger rejected = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(tasks);
+            final long start = System.nanoTime();
+            for (int i = 0; i < tasks; i++) {
+                final int index = i;
+                final long submitted = System.nanoTime();
+                ThreadUtils.executeByCpu(new ThreadUtils.SimpleTask<Long>() {
+                    @Override
+                    public Long doInBackground() {
+                        return sumSquares(0, 200000);
+                    }
+
+                    @Override
+                    public void onSuccess(final Long result) {
+                        latencies[index] = System.nanoTime() - submitted;
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFail(final Throwable t) {
+                        if (t instanceof RejectedExecutionException) rejected.incrementAndGet();
+                        latencies[index] = System.nanoTime() - submitted;
+                        latch.countDown();
+                    }
+                });
+            }
+            assertTrue(latch.await(1, TimeUnit.MINUTES));
+            final Burst burst = new Burst();
+            burst.tasksPerSecond = TimeUnit.SECONDS.toNanos(1) * tasks
+                    / Math.max(1, System.nanoTime() - start);
+            // the latch publishes the latencies
+            Arrays.sort(latencies);
+            burst.p50Micros = latencies[tasks / 2] / 1000;
+            burst.p99Micros = latencies[(tasks - 1) * 99 / 100] / 1000;
+            burst.rejected = rejected.get();
+            return burst;
+        }
+
+        @Override
+        public String toString() {
+            return tasksPerSecond + " tasks/s, p50 " + p50Micros + " us, p99 " + p99Micros
+                    + " us, " + rejected + " rejected";
+        }
+    }
+
+    private static void setCpuPoolWorkStealing(final boolean workStealing) throws Exception {
+        final Field field = ThreadUtils.class.getDeclaredField("sCpuWorkStealing");
+        field.setAccessible(true);
+        field.setBoolean(null, workStealing);
+    }
+
+    @Test
+    public void queuePriorityOrdersTasksFifoWithinPriority() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = blockFixedPool();
+        final CountDownLatch done = new CountDownLatch(4);
+        ThreadUtils.executeByFixed(1, new OrderTask("a", order, done));
+        ThreadUtils.executeByFixed(1, new OrderTask("b", order, done).setQueuePriority(10));
+        ThreadUtils.executeByFixed(1, new OrderTask("c", order, done));
+        ThreadUtils.executeByFixed(1, new OrderTask("d", order, done).setQueuePriority(10));
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("b", "d", "a", "c"), order);
+    }
+
+    /**
+     * A task is ranked 100 ms ahead per priority, so a task of priority 1 which
+     * waited 1 s is no longer overtaken by a task of priority 10.
+     */
+    @Test
+    public void queuePriorityAgesWaitingTasks() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = blockFixedPool();
+        final CountDownLatch done = new CountDownLatch(3);
+        ThreadUtils.executeByFixed(1, new OrderTask("old", order, done).setQueuePriority(1));
+        Thread.sleep(1000);
+        ThreadUtils.executeByFixed(1, new OrderTask("urgent", order, done).setQueuePriority(10));
+        ThreadUtils.executeByFixed(1, new OrderTask("low", order, done).setQueuePriority(1));
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("old", "urgent", "low"), order);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void deprecatedPriorityIsPriorityOfThread() throws Exception {
+        final AtomicInteger priority = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        ThreadUtils.executeByFixed(1, new CountTask(latch) {
+            @Override
+            public Integer doInBackground() {
+                priority.set(Thread.currentThread().getPriority());
+                return 0;
+            }
+        }, Thread.MAX_PRIORITY);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Thread.MAX_PRIORITY, priority.get());
+    }
+
+    /**
+     * Occupy the thread of the fixed pool of size 1, so that the tasks queue up.
+     */
+    private static CountDownLatch blockFixedPool() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadUtils.executeByFixed(1, new CountTask(new CountDownLatch(1)) {
+            @Override
+            public Integer doInBackground() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void rejectByAbort() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            saturate(pool, release);
+            final long rejected = ThreadUtils.getRejectedCount(pool);
+            final RecordTask task = new RecordTask();
+            ThreadUtils.executeByIo(task);
+            assertTrue(task.failure.get() instanceof RejectedExecutionException);
+            assertEquals(rejected + 1, ThreadUtils.getRejectedCount(pool));
+        } finally {
+            release.countDown();
+            drain(pool);
+        }
+    }
+
+    @Test
+    public void rejectByCallerRuns() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_CALLER_RUNS);
+        try {
+            saturate(pool, release);
+            final long rejected = ThreadUtils.getRejectedCount(pool);
+            final RecordTask task = new RecordTask();
+            ThreadUtils.executeByIo(task);
+            assertEquals(Thread.currentThread().getName(), task.thread.get());
+            assertEquals(rejected, ThreadUtils.getRejectedCount(pool));
+        } finally {
+            ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_ABORT);
+            release.countDown();
+            drain(pool);
+        }
+    }
+
+    @Test
+    public void rejectByBlock() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_BLOCK, 100, TimeUnit.MILLISECONDS);
+        try {
+            saturate(pool, release);
+            final long rejected = ThreadUtils.getRejectedCount(pool);
+            final RecordTask task = new RecordTask();
+            final long start = System.nanoTime();
+            ThreadUtils.executeByIo(task);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            assertTrue(task.failure.get() instanceof RejectedExecutionException);
+            assertEquals(rejected + 1, ThreadUtils.getRejectedCount(pool));
+
+            // the queue makes room while waiting
+            final RecordTask queued = new RecordTask();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ignore) {
+                    }
+                    release.countDown();
+                }
+            }).start();
+            ThreadUtils.executeByIo(queued);
+            assertTrue(queued.done.await(10, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(1), queued.result.get());
+        } finally {
+            ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_ABORT);
+            release.countDown();
+            drain(pool);
+        }
+    }
+
+    @Test
+    public void rejectByDiscardOldest() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_DISCARD_OLDEST);
+        try {
+            final List<RecordTask> queued = saturate(pool, release);
+            final long rejected = ThreadUtils.getRejectedCount(pool);
+            final RecordTask task = new RecordTask();
+            ThreadUtils.executeByIo(task);
+            assertTrue(queued.get(0).failure.get() instanceof RejectedExecutionException);
+            assertEquals(QUEUE_CAPACITY, ThreadUtils.getQueueSize(pool));
+            assertEquals(rejected + 1, ThreadUtils.getRejectedCount(pool));
+
+            release.countDown();
+            assertTrue(task.done.await(10, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(1), task.result.get());
+            assertNull(queued.get(1).failure.get());
+        } finally {
+            ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_ABORT);
+            release.countDown();
+            drain(pool);
+        }
+    }
+
+    /**
+     * Promises discarded from the queue fail instead of never completing,
+     * and a discarded coalesced key is released for later callers.
+     */
+    @Test
+    public void rejectPromiseByDiscardOldest() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> callable = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 1;
+            }
+        };
+        ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_DISCARD_OLDEST);
+        try {
+            occupy(pool, release);
+            final ThreadUtils.Promise<Integer> coalesced =
+                    ThreadUtils.supplyCoalesced("discarded", pool, callable);
+            final ThreadUtils.Promise<Integer> supplied = ThreadUtils.supplyByIo(callable);
+            final ThreadUtils.Promise<Integer> applied = ThreadUtils.supplyByCpu(callable)
+                    .thenApplyAsync(new ThreadUtils.Func<Integer, Integer>() {
+                        @Override
+                        public Integer apply(final Integer value) {
+                            return value + 1;
+                        }
+                    }, pool);
+            // the stage is queued once the cpu pool completes the source
+            for (int i = 0; i < 1000 && ThreadUtils.getQueueSize(pool) < 3; i++) {
+                Thread.sleep(1);
+            }
+            final List<ThreadUtils.Promise<Integer>> kept = new ArrayList<>();
+            while (ThreadUtils.getQueueSize(pool) < QUEUE_CAPACITY) {
+                kept.add(ThreadUtils.supplyByIo(callable));
+            }
+            for (int i = 0; i < 3; i++) {
+                kept.add(ThreadUtils.supplyByIo(callable));
+            }
+            assertRejected(coalesced);
+            assertRejected(supplied);
+            assertRejected(applied);
+            assertEquals(QUEUE_CAPACITY, ThreadUtils.getQueueSize(pool));
+
+            release.countDown();
+            for (ThreadUtils.Promise<Integer> promise : kept) {
+                assertEquals(1, (int) promise.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, (int) ThreadUtils.supplyCoalesced("discarded", pool, callable)
+                    .get(10, TimeUnit.SECONDS));
+        } finally {
+            ThreadUtils.setRejectPolicy(ThreadUtils.POLICY_ABORT);
+            release.countDown();
+            drain(pool);
+        }
+    }
+
+    private static void assertRejected(final ThreadUtils.Promise<?> promise) throws Exception {
+        try {
+            promise.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void tryExecuteWaitsForQueue() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            saturate(pool, release);
+            final long rejected = ThreadUtils.getRejectedCount(pool);
+            final RecordTask task = new RecordTask();
+            assertFalse(ThreadUtils.tryExecuteByIo(task, 50, TimeUnit.MILLISECONDS));
+            assertNull(task.failure.get());
+            assertEquals(rejected, ThreadUtils.getRejectedCount(pool));
+
+            release.countDown();
+            assertTrue(ThreadUtils.tryExecuteByIo(task, 10, TimeUnit.SECONDS));
+            assertTrue(task.done.await(10, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(1), task.result.get());
+        } finally {
+            release.countDown();
+            drain(pool);
+        }
+    }
+
+    @Test
+    public void promiseChaining() throws Exception {
+        final ThreadUtils.Promise<Integer> promise = ThreadUtils.supplyByCpu(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 2;
+            }
+        }).thenApply(new ThreadUtils.Func<Integer, Integer>() {
+            @Override
+            public Integer apply(final Integer value) {
+                return value * 3;
+            }
+        }).thenApplyAsync(new ThreadUtils.Func<Integer, Integer>() {
+            @Override
+            public Integer apply(final Integer value) {
+                return value + 1;
+            }
+        }, ThreadUtils.getIoPool());
+        assertEquals(Integer.valueOf(7), promise.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void promiseAllOfAndAnyOf() throws Exception {
+        final ThreadUtils.Promise<Integer> first = new ThreadUtils.Promise<>();
+        final ThreadUtils.Promise<Integer> second = new ThreadUtils.Promise<>();
+        final ThreadUtils.Promise<List<Object>> all = ThreadUtils.Promise.allOf(first, second);
+        final ThreadUtils.Promise<Object> any = ThreadUtils.Promise.anyOf(first, second);
+        second.complete(2);
+        assertEquals(2, any.get(10, TimeUnit.SECONDS));
+        assertFalse(all.isDone());
+        first.complete(1);
+        assertEquals(Arrays.<Object>asList(1, 2), all.get(10, TimeUnit.SECONDS));
+
+        final ThreadUtils.Promise<Integer> failed = new ThreadUtils.Promise<>();
+        final ThreadUtils.Promise<List<Object>> allFailed =
+                ThreadUtils.Promise.allOf(failed, new ThreadUtils.Promise<Integer>());
+        final IllegalStateException error = new IllegalStateException();
+        failed.completeExceptionally(error);
+        try {
+            allFailed.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertSame(error, expected.getCause());
+        }
+        assertTrue(ThreadUtils.Promise.allOf().get(10, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void promiseExceptionally() throws Exception {
+        final AtomicInteger applied = new AtomicInteger();
+        final ThreadUtils.Promise<Integer> promise = ThreadUtils.supplyByIo(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                throw new IllegalStateException("fail");
+            }
+        }).thenApply(new ThreadUtils.Func<Integer, Integer>() {
+            @Override
+            public Integer apply(final Integer value) {
+                applied.incrementAndGet();
+                return value;
+            }
+        }).exceptionally(new ThreadUtils.Func<Throwable, Integer>() {
+            @Override
+            public Integer apply(final Throwable t) {
+                return "fail".equals(t.getMessage()) ? -1 : -2;
+            }
+        });
+        assertEquals(Integer.valueOf(-1), promise.get(10, TimeUnit.SECONDS));
+        assertEquals(0, applied.get());
+    }
+
+    @Test
+    public void promiseTimeoutStopsQueuedCallable() throws Exception {
+        final ExecutorService pool = ThreadUtils.getFixedPool(1);
+        final CountDownLatch release = blockFixedPool();
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            final ThreadUtils.Promise<Integer> promise = ThreadUtils.supplyByCustom(pool,
+                    new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return calls.incrementAndGet();
+                        }
+                    }).orTimeout(50, TimeUnit.MILLISECONDS);
+            try {
+                promise.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof TimeoutException);
+            }
+            assertEquals(0, ThreadUtils.getQueueSize(pool));
+        } finally {
+            release.countDown();
+        }
+        assertNull(ThreadUtils.supplyByCustom(pool, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return null;
+            }
+        }).get(10, TimeUnit.SECONDS));
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void promiseCancelInterruptsRunningCallable() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final ThreadUtils.Promise<Integer> promise = ThreadUtils.supplyByIo(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return 0;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(promise.cancel(true));
+        assertTrue(promise.isCancelled());
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertFalse(promise.cancel(true));
+    }
+
+    /**
+     * There is no main looper on the JVM, so the callback runs in the completing thread.
+     */
+    @Test
+    public void promiseDeliverCallsBackOnce() throws Exception {
+        final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        final ThreadUtils.Callback<Integer> callback = new ThreadUtils.Callback<Integer>() {
+            @Override
+            public void onSuccess(final Integer result) {
+                results.add(result);
+            }
+
+            @Override
+            public void onFail(final Throwable t) {
+                results.add(t);
+            }
+        };
+        final ThreadUtils.Promise<Integer> promise = new ThreadUtils.Promise<>();
+        promise.deliver(callback);
+        assertTrue(results.isEmpty());
+        promise.complete(1);
+        promise.complete(2);
+        promise.deliver(callback);
+        assertEquals(Arrays.<Object>asList(1, 1), results);
+
+        final ThreadUtils.Promise<Integer> cancelled = new ThreadUtils.Promise<>();
+        cancelled.deliver(callback);
+        cancelled.cancel(false);
+        assertTrue(results.get(2) instanceof CancellationException);
+    }
+
+    @Test
+    public void poolStatsRecordWaitAndExecution() throws Exception {
+        final ExecutorService pool = ThreadUtils.getFixedPool(1);
+        final CountDownLatch release = blockFixedPool();
+        final ThreadUtils.PoolStats before = ThreadUtils.getPoolStats(pool);
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            ThreadUtils.executeByFixed(1, new CountTask(done));
+        }
+        final ThreadUtils.PoolStats queued = ThreadUtils.getPoolStats(pool);
+        assertEquals("fixed(1)", queued.getName());
+        assertEquals(1, queued.getPoolSize());
+        assertEquals(1, queued.getActiveCount());
+        assertEquals(10, queued.getQueueSize());
+        Thread.sleep(20);
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        final ThreadUtils.PoolStats after = ThreadUtils.getPoolStats(pool);
+        // the last task may not be recorded yet, the blocking one is
+        assertTrue(after.getCompletedCount() - before.getCompletedCount() >= 10);
+        assertEquals(10, sum(after.getQueueWaitHistogram()) - sum(before.getQueueWaitHistogram()));
+        assertTrue(after.getQueueWaitPercentileMicros(1) >= 16384);
+        assertEquals(before.getRejectedCount(), after.getRejectedCount());
+    }
+
+    @Test
+    public void taskHookRunsAroundTask() throws Exception {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountTask task = new CountTask(latch) {
+            @Override
+            public Integer doInBackground() {
+                calls.add("run");
+                return 0;
+            }
+        };
+        ThreadUtils.setTaskHook(new ThreadUtils.TaskHook() {
+            @Override
+            public void beforeRun(final ThreadUtils.Task<?> t) {
+                if (t == task) calls.add("before");
+            }
+
+            @Override
+            public void afterRun(final ThreadUtils.Task<?> t, final long durationNanos) {
+                if (t == task) calls.add("after " + (durationNanos >= 0));
+            }
+        });
+        try {
+            ThreadUtils.executeByIo(task);
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 100 && calls.size() < 3; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("before", "run", "after true"), calls);
+        } finally {
+            ThreadUtils.setTaskHook(null);
+        }
+    }
+
+    @Test
+    public void coalescedJoinsCallInFlight() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> callable = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                release.await();
+                return calls.incrementAndGet();
+            }
+        };
+        final ThreadUtils.Promise<Integer> first =
+                ThreadUtils.supplyCoalesced("inFlight", pool, callable);
+        final ThreadUtils.Promise<Integer> second =
+                ThreadUtils.supplyCoalesced("inFlight", pool, callable);
+        assertTrue(first != second);
+        release.countDown();
+        assertEquals(1, (int) first.get(10, TimeUnit.SECONDS));
+        assertEquals(1, (int) second.get(10, TimeUnit.SECONDS));
+        // completed without window, so the next call executes again
+        assertEquals(2, (int) ThreadUtils.supplyCoalesced("inFlight", pool, callable)
+                .get(10, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void coalescedCancelOnlyAffectsCaller() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> callable = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return "done";
+            }
+        };
+        final ThreadUtils.Promise<String> cancelled =
+                ThreadUtils.supplyCoalesced("fork", pool, callable);
+        final ThreadUtils.Promise<String> kept =
+                ThreadUtils.supplyCoalesced("fork", pool, callable);
+        assertTrue(cancelled.cancel(true));
+        release.countDown();
+        assertEquals("done", kept.get(10, TimeUnit.SECONDS));
+        try {
+            cancelled.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void coalescedWindowThrottles() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> callable = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        };
+        assertEquals(1, (int) ThreadUtils.supplyCoalesced("window", pool, callable,
+                200, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS));
+        assertEquals(1, (int) ThreadUtils.supplyCoalesced("window", pool, callable,
+                200, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS));
+        Thread.sleep(400);
+        assertEquals(2, (int) ThreadUtils.supplyCoalesced("window", pool, callable,
+                200, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void coalescedKeyIsPerPool() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ThreadUtils.Promise<Integer> io = ThreadUtils.supplyCoalesced("pool",
+                ThreadUtils.getIoPool(), new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        release.await();
+                        return 1;
+                    }
+                });
+        final ThreadUtils.Promise<String> cpu = ThreadUtils.supplyCoalesced("pool",
+                ThreadUtils.getCpuPool(), new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "cpu";
+                    }
+                });
+        assertEquals("cpu", cpu.get(10, TimeUnit.SECONDS));
+        release.countDown();
+        assertEquals(1, (int) io.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void debouncedRestartsAndRunsLastCallable() throws Exception {
+        final ExecutorService pool = ThreadUtils.getIoPool();
+        final AtomicInteger calls = new AtomicInteger();
+        final List<ThreadUtils.Promise<Integer>> promises = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            final int value = i;
+            promises.add(ThreadUtils.supplyDebounced("debounce", pool, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    calls.incrementAndGet();
+                    return value;
+                }
+            }, 100, TimeUnit.MILLISECONDS));
+            Thread.sleep(50);
+        }
+        for (ThreadUtils.Promise<Integer> promise : promises) {
+            assertEquals(4, (int) promise.get(10, TimeUnit.SECONDS));
+        }
+        // each call within the delay restarts it
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(1, calls.get());
+        assertTrue(promises.get(0) != promises.get(1));
+    }
+
+    @Test
+    public void completionReleasesScheduleBeforeCallback() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Object> schedule = new AtomicReference<Object>("unset");
+        final CountTask task = new CountTask(latch) {
+            @Override
+            public void onSuccess(final Integer result) {
+                try {
+                    schedule.set(getSchedule(this));
+                } catch (Exception e) {
+                    schedule.set(e);
+                }
+                super.onSuccess(result);
+            }
+        };
+        ThreadUtils.executeByIoWithDelay(task, 50, TimeUnit.MILLISECONDS);
+        assertTrue(getSchedule(task) != null);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNull(schedule.get());
+    }
+
+    @Test
+    public void cancelDoesNotWaitForRunningTask() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final ThreadUtils.SimpleTask<Integer> task = new ThreadUtils.SimpleTask<Integer>() {
+            @Override
+            public Integer doInBackground() throws Throwable {
+                started.countDown();
+                release.await();
+                return 0;
+            }
+
+            @Override
+            public void onSuccess(final Integer result) {
+            }
+
+            @Override
+            public void onCancel() {
+                cancelled.countDown();
+            }
+        };
+        try {
+            ThreadUtils.executeByIoAtFixRate(task, 10, TimeUnit.SECONDS);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            final long start = System.nanoTime();
+            task.cancel();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            assertEquals(0, cancelled.getCount());
+            assertNull(getSchedule(task));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void blockingWaitIsFlaggedWhileDetecting() throws Exception {
+        // Looper is stubbed in unit tests, so every thread counts as the main thread
+        assertFalse(ThreadUtils.checkBlockingWait("test"));
+        final Class<?> detectorClass =
+                Class.forName(ThreadUtils.class.getName() + "$StallDetector");
+        final Constructor<?> constructor = detectorClass.getDeclaredConstructor(long.class);
+        constructor.setAccessible(true);
+        final Field field = ThreadUtils.class.getDeclaredField("sStallDetector");
+        field.setAccessible(true);
+        field.set(null, constructor.newInstance(TimeUnit.SECONDS.toNanos(1)));
+        try {
+            assertTrue(ThreadUtils.checkBlockingWait("test"));
+        } finally {
+            field.set(null, null);
+        }
+        assertFalse(ThreadUtils.checkBlockingWait("test"));
+    }
+
+    private static Object getSchedule(final ThreadUtils.Task<?> task) throws Exception {
+        final Field field = ThreadUtils.Task.class.getDeclaredField("schedule");
+        field.setAccessible(true);
+        return field.get(task);
+    }
+
+    private static long sum(final long[] histogram) {
+        long sum = 0;
+        for (long count : histogram) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * Occupy every thread of the pool until release, and fill its queue.
+     *
+     * @return the tasks in the queue, from the oldest
+     */
+    private static List<RecordTask> saturate(final ExecutorService pool,
+                                             final CountDownLatch release) throws Exception {
+        occupy(pool, release);
+        final List<RecordTask> queued = new ArrayList<>();
+        while (ThreadUtils.getQueueSize(pool) < QUEUE_CAPACITY) {
+            final RecordTask task = new RecordTask();
+            ThreadUtils.executeByIo(task);
+            queued.add(task);
+        }
+        assertEquals(QUEUE_CAPACITY, ThreadUtils.getQueueSize(pool));
+        return queued;
+    }
+
+    /**
+     * Occupy every thread of the pool until release.
+     */
+    private static void occupy(final ExecutorService pool,
+                               final CountDownLatch release) throws Exception {
+        final int threads = 2 * Runtime.getRuntime().availableProcessors() + 1;
+        final CountDownLatch started = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Wait for the queue of the saturated pool to be empty, so that the next test can use it.
+     */
+    private static void drain(final ExecutorService pool) throws Exception {
+        for (int i = 0; i < 1000 && ThreadUtils.getQueueSize(pool) > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, ThreadUtils.getQueueSize(pool));
+    }
+
+    private static long sumSquares(final int from, final int to) {
+        long sum = 0;
+        for (long i = from; i < to; i++) {
+            sum += i * i;
+        }
+        return sum;
+    }
+
+    /**
+     * Run tasks the way ThreadUtils did before the shared scheduler: each task starts
+     * a scheduler of its own, which dispatches it into the cached pool and is shut down
+     * once the task is done.
+     *
+     * @return the tasks/s
+     */
+    private static long runWithSchedulerPerTask(final int count) throws InterruptedException {
+        final ExecutorService pool = ThreadUtils.getCachedPool();
+        final CountDownLatch latch = new CountDownLatch(count);
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            scheduler.shutdown();
+                            try {
+                                scheduler.awaitTermination(60, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            latch.countDown();
+                        }
+                    });
+                }
+            });
+        }
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        return TimeUnit.SECONDS.toNanos(1) * count / (System.nanoTime() - start);
+    }
+
+    private static int countSchedulerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(SCHEDULER_PREFIX)) count++;
+        }
+        return count;
+    }
+
+    private static class RecordTask extends ThreadUtils.SimpleTask<Integer> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<String> thread = new AtomicReference<>();
+        private final AtomicReference<Integer> result = new AtomicReference<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        @Override
+        public Integer doInBackground() {
+            thread.set(Thread.currentThread().getName());
+            return 1;
+        }
+
+        @Override
+        public void onSuccess(final Integer result) {
+            this.result.set(result);
+            done.countDown();
+        }
+
+        @Override
+        public void onFail(final Throwable t) {
+            failure.set(t);
+            done.countDown();
+        }
+    }
+
+    private static class OrderTask extends ThreadUtils.SimpleTask<String> {
+
+        private final String name;
+        private final List<String> order;
+        private final CountDownLatch latch;
+
+        OrderTask(final String name, final List<String> order, final CountDownLatch latch) {
+            this.name = name;
+            this.order = order;
+            this.latch = latch;
+        }
+
+        @Override
+        public String doInBackground() {
+            order.add(name);
+            return name;
+        }
+
+        @Override
+        public void onSuccess(final String result) {
+            latch.countDown();
+        }
+    }
+
+    private static class CountTask extends ThreadUtils.SimpleTask<Integer> {
+
+        private final CountDownLatch latch;
+
+        CountTask(final CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public Integer doInBackground() {
+            return 0;
+        }
+
+        @Override
+        public void onSuccess(final Integer result) {
+            latch.countDown();
+        }
+    }
+}